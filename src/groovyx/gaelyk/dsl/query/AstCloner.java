@@ -0,0 +1,115 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.VariableScope;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.EmptyStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+
+/**
+ * Creates deep copies of the statements and expressions that
+ * the query transformation produces.
+ * <p/>
+ * Most of the expressions are copied by their own
+ * <code>transformExpression</code> method. The expressions that return
+ * <code>this</code> from that method (variables, constants, classes) are
+ * created anew. Unresolved <code>ClassNode</code> objects are copied too,
+ * because <code>ResolveVisitor</code> redirects them in place and a copy
+ * may be used by another source unit with other imports.
+ *
+ * @author V. Shyshkin
+ */
+public class AstCloner implements ExpressionTransformer {
+
+    @Override
+    public Expression transform(Expression expr) {
+        if (expr == null) {
+            return null;
+        }
+        Expression result;
+        if (expr instanceof VariableExpression) {
+            VariableExpression vexpr = (VariableExpression) expr;
+            result = new VariableExpression(vexpr.getName(), cloneType(vexpr.getOriginType()));
+        } else if (expr instanceof ConstantExpression) {
+            result = new ConstantExpression(((ConstantExpression) expr).getValue());
+        } else if (expr instanceof ClassExpression) {
+            result = new ClassExpression(cloneType(expr.getType()));
+        } else if (expr instanceof ConstructorCallExpression) {
+            result = new ConstructorCallExpression(cloneType(expr.getType()),
+                    transform(((ConstructorCallExpression) expr).getArguments()));
+        } else if (expr instanceof CastExpression) {
+            CastExpression cexpr = (CastExpression) expr;
+            CastExpression copy = new CastExpression(cloneType(cexpr.getType()),
+                    transform(cexpr.getExpression()), cexpr.isIgnoringAutoboxing());
+            copy.setCoerce(cexpr.isCoerce());
+            result = copy;
+        } else if (expr instanceof ClosureExpression) {
+            ClosureExpression cexpr = (ClosureExpression) expr;
+            result = new ClosureExpression(cloneParameters(cexpr.getParameters()), clone(cexpr.getCode()));
+        } else {
+            result = expr.transformExpression(this);
+        }
+        result.setSourcePosition(expr);
+        return result;
+    }
+
+    public List<Statement> clone(List<Statement> statements) {
+        List<Statement> result = new ArrayList<Statement>(statements.size());
+        for (Statement s : statements) {
+            result.add(clone(s));
+        }
+        return result;
+    }
+
+    public Statement clone(Statement stmt) {
+        Statement result;
+        if (stmt instanceof EmptyStatement) {
+            return stmt;
+        } else if (stmt instanceof BlockStatement) {
+            result = new BlockStatement(clone(((BlockStatement) stmt).getStatements()), new VariableScope());
+        } else if (stmt instanceof ExpressionStatement) {
+            result = new ExpressionStatement(transform(((ExpressionStatement) stmt).getExpression()));
+        } else if (stmt instanceof IfStatement) {
+            IfStatement ifStmt = (IfStatement) stmt;
+            result = new IfStatement((BooleanExpression) transform(ifStmt.getBooleanExpression()),
+                    clone(ifStmt.getIfBlock()), clone(ifStmt.getElseBlock()));
+        } else if (stmt instanceof ReturnStatement) {
+            result = new ReturnStatement(transform(((ReturnStatement) stmt).getExpression()));
+        } else {
+            throw new IllegalArgumentException("Can't clone the statement of type " + stmt.getClass().getName());
+        }
+        result.setStatementLabel(stmt.getStatementLabel());
+        result.setSourcePosition(stmt);
+        return result;
+    }
+
+    protected Parameter[] cloneParameters(Parameter[] parameters) {
+        if (parameters == null) {
+            return null;
+        }
+        Parameter[] result = new Parameter[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            Parameter p = parameters[i];
+            result[i] = new Parameter(cloneType(p.getOriginType()), p.getName(), transform(p.getInitialExpression()));
+            result[i].setSourcePosition(p);
+        }
+        return result;
+    }
+
+    protected ClassNode cloneType(ClassNode type) {
+        if (type == null || type.isResolved() || type.isPrimaryClassNode() || type.isRedirectNode()) {
+            return type;
+        }
+        ClassNode result = ClassHelper.makeWithoutCaching(type.getName());
+        result.setSourcePosition(type);
+        return result;
+    }
+}
@@ -62,16 +62,16 @@ public class ClosureVisitorSupport extends CodeVisitorSupport {
                     String nm = ((VariableExpression) expr).getName();
                     String tx = ((VariableExpression) expr).getText();
 
-                    if (!(Helper.isSupported(nm) && nm.equals(tx))) {
+                    if (!(QueryKeyword.clause(nm) != null && nm.equals(tx))) {
                         break;
                     }
                 } else if (expr instanceof MethodCallExpression) {
                     String nm = ((MethodCallExpression) expr).getMethod().getText();
                     String tx = ((MethodCallExpression) expr).getText();
-                    if (!(Helper.isSupported(nm))) {
+                    if (QueryKeyword.clause(nm) == null) {
                         break;
                     }
-                    if (nm.equals("from") || nm.equals("From")) {
+                    if (QueryKeyword.clause(nm) == QueryKeyword.FROM) {
                         fromCall = (MethodCallExpression) expr;
                     }
                 }
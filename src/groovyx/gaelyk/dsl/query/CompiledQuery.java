@@ -0,0 +1,103 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import groovy.lang.Closure;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A query defined once with <code>defineQuery</code> and executed many
+ * times with different values:
+ * <pre>
+ *   def adults = datastore.defineQuery {
+ *       select all, limit(10)
+ *       from Person
+ *       where age &gt;= minAge
+ *       orderBy age
+ *   }
+ *   adults.execute(minAge: 18, limit: 50)
+ *   adults(minAge: 21)
+ * </pre>
+ * The closure is transformed at compile time like any other query
+ * closure, so an execution doesn't validate or interpret anything. It
+ * only binds the values and runs the generated code. A name of the map
+ * refers either to a variable used as a value in the closure
+ * (<code>minAge</code>) or to an option (<code>limit</code>,
+ * <code>offset</code>, <code>chunkSize</code>, <code>prefetchSize</code>
+ * and <code>startCursor</code> for a cursor). A name which is not in the
+ * map keeps the value the closure gives it. The names the closure can
+ * bind are found when it is transformed, and a name outside of them, such
+ * as <code>limt</code>, is rejected with an
+ * <code>IllegalArgumentException</code>.
+ * <p/>
+ * Instances are immutable and may be executed by several threads at once.
+ *
+ * @author V. Shyshkin
+ */
+public class CompiledQuery {
+
+    private final DatastoreService service;
+    private final Set<String> names;
+    private final Closure<?> body;
+    /**
+     * Creates a query whose names are not checked, for a closure which
+     * was not transformed.
+     */
+    public CompiledQuery(DatastoreService service, Closure<?> body) {
+        this(service, null, body);
+    }
+    /**
+     * @param names the names the closure binds or <code>null</code> to
+     *   accept any name
+     */
+    public CompiledQuery(DatastoreService service, Collection<String> names, Closure<?> body) {
+        this.service = service;
+        this.names = names == null ? null : Collections.unmodifiableSet(new LinkedHashSet<String>(names));
+        this.body = body;
+    }
+    /**
+     * @return the names the query binds or <code>null</code> when they
+     *   are not known
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    public Object execute() {
+        return execute(null);
+    }
+    /**
+     * @param values the values of the bind parameters by their names.
+     *   May be <code>null</code>
+     * @return the result of the query
+     * @throws IllegalArgumentException if a name is not bound by the query
+     */
+    public Object execute(Map<String, ?> values) {
+        if (names != null && values != null) {
+            for (String name : values.keySet()) {
+                if (!names.contains(name)) {
+                    throw new IllegalArgumentException("Unknown parameter '" + name
+                            + "' of the query, expected one of " + names);
+                }
+            }
+        }
+        return body.call(new QueryArguments(service, values));
+    }
+    /**
+     * Allows a compiled query to be called as a closure:
+     * <code>adults()</code>.
+     */
+    public Object call() {
+        return execute(null);
+    }
+    /**
+     * Allows a compiled query to be called as a closure:
+     * <code>adults(minAge: 18)</code>.
+     */
+    public Object call(Map<String, ?> values) {
+        return execute(values);
+    }
+}
@@ -14,13 +14,15 @@ import org.codehaus.groovy.ast.CodeVisitorSupport;
  * as a Groovy  code. For example a string constant is represented as 
  * an identifier without quotes. This class helps to convert AST string
  * to a Groovy code string.
- * 
+ * <p/>
+ * The result is collected in a single <code>StringBuilder</code>, so the
+ * cost of the conversion is linear in the size of the expression.
  * 
  * @author V. Shyshkin
  */
 public class DefaultExpressionConverter extends CodeVisitorSupport implements GroovyCodeVisitor, ExpressionConverter {
     
-    private String result = "";
+    private final StringBuilder result = new StringBuilder();
     
     @Override
     public String convert(Expression expression) {
@@ -28,14 +30,14 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
     }
 
     public String getResult(Expression expression) {
-        result = "";
+        result.setLength(0);
         expression.visit(this);
-        return result;
+        return result.toString();
     }
     public String getResult(List<? extends Expression> expressions) {
-        result = "";
+        result.setLength(0);
         this.visitListOfExpressions(expressions);
-        return result;
+        return result.toString();
     }
     
     @Override
@@ -43,14 +45,14 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
         Expression oe = call.getObjectExpression();
         Expression me = call.getMethod();
         if (oe instanceof VariableExpression) {
-            this.result += oe.getText();
+            result.append(oe.getText());
         } else {
             // ??? call.getObjectExpression().visit(this);
             oe.visit(this);
         }
-        result += ".";
+        result.append(".");
         if (me instanceof VariableExpression) {
-            this.result += me.getText();
+            result.append(me.getText());
         } else {
             // ??? call.getMethod().visit(this);
             me.visit(this);
@@ -63,14 +65,14 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
         Expression oe = prop.getObjectExpression();
         Expression pe = prop.getProperty();
         if (oe instanceof VariableExpression) {
-            this.result += oe.getText();
+            result.append(oe.getText());
         } else {
             oe.visit(this);
         }
-        this.result += ".";
+        result.append(".");
 
         if (pe instanceof VariableExpression) {
-            this.result += pe.getText();
+            result.append(pe.getText());
         } else {
             pe.visit(this);
         }
@@ -80,19 +82,52 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
     public void visitConstantExpression(ConstantExpression expression) {
         Object value = expression.getValue();
         if (value instanceof String) {
-            result += "\"" + value + "\"";
+            appendString((String) value);
         } else {
-            result += value;
+            result.append(value);
+        }
+    }
+    /**
+     * Appends a given value as a double quoted string literal. The characters
+     * that have a special meaning in such a literal are escaped.
+     */
+    protected void appendString(String value) {
+        result.append('"');
+        appendEscaped(value);
+        result.append('"');
+    }
+
+    protected void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '$':
+                    result.append('\\').append(c);
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                default:
+                    result.append(c);
+            }
         }
     }
     @Override
     public void visitVariableExpression(VariableExpression expression) {
-        result += expression.getText();
+        result.append(expression.getText());
     }
     
     @Override
     public void visitClassExpression(ClassExpression expression) {
-        result += expression.getText();
+        result.append(expression.getText());
     }
 
 
@@ -103,7 +138,7 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
 
     @Override
     public void visitConstructorCallExpression(ConstructorCallExpression call) {
-        result += "new " + call.getType().getName();
+        result.append("new " + call.getType().getName());
         call.getArguments().visit(this);
     }
 
@@ -111,29 +146,29 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
     public void visitBinaryExpression(BinaryExpression expr) {
         Expression le = expr.getLeftExpression();
         Expression re = expr.getRightExpression();
-        result += "(";
+        result.append("(");
         if (le instanceof VariableExpression) {
-            this.result += le.getText();
+            result.append(le.getText());
         } else {
             expr.getLeftExpression().visit(this);
         }
-        this.result += expr.getOperation().getText();
+        result.append(expr.getOperation().getText());
 
         if (re instanceof VariableExpression) {
-            this.result += re.getText();
+            result.append(re.getText());
         } else {
             expr.getRightExpression().visit(this);
         }
-        if ( expr.getOperation().getText() == "[" ) {
-            result += "]";
+        if ("[".equals(expr.getOperation().getText())) {
+            result.append("]");
         }
-        result += ")";
+        result.append(")");
     }
     @Override
     public void visitListExpression(ListExpression listExpr) {
-        result += "[";
+        result.append("[");
         visitListOfExpressions(listExpr.getExpressions());
-        result += "]";
+        result.append("]");
     }
 
     @Override
@@ -148,100 +183,143 @@ public class DefaultExpressionConverter extends CodeVisitorSupport implements Gr
                 spread.visit(this);
             } else {
                 if (expression instanceof VariableExpression) {
-                    result += expression.getText();
+                    result.append(expression.getText());
                 } else {
                     expression.visit(this);
                 }
 
             }
             if (i++ != list.size() - 1) {
-                result += ",";
+                result.append(",");
             }
             
         }
     }
     @Override
     public void visitArgumentlistExpression(ArgumentListExpression ale) {
-        result += "(";
+        result.append("(");
         visitTupleExpression(ale);
-        result += ")";
+        result.append(")");
 
     }
     
-    /*
-     *  Not yet implemented ( overriden )
-     */
-/*    @Override
+    @Override
     public void visitTernaryExpression(TernaryExpression expression) {
+        result.append("(");
         expression.getBooleanExpression().visit(this);
+        result.append(" ? ");
         expression.getTrueExpression().visit(this);
+        result.append(" : ");
         expression.getFalseExpression().visit(this);
+        result.append(")");
     }
 
     @Override
     public void visitShortTernaryExpression(ElvisOperatorExpression expression) {
-        visitTernaryExpression(expression);
+        result.append("(");
+        expression.getTrueExpression().visit(this);
+        result.append(" ?: ");
+        expression.getFalseExpression().visit(this);
+        result.append(")");
     }
 
     @Override
-    public void visitPostfixExpression(PostfixExpression expression) {
+    public void visitNotExpression(NotExpression expression) {
+        result.append("!(");
         expression.getExpression().visit(this);
+        result.append(")");
     }
 
     @Override
-    public void visitPrefixExpression(PrefixExpression expression) {
-        expression.getExpression().visit(this);
+    public void visitUnaryMinusExpression(UnaryMinusExpression expression) {
+        Expression expr = expression.getExpression();
+        result.append("-");
+        if (expr instanceof ConstantExpression || expr instanceof VariableExpression) {
+            expr.visit(this);
+        } else {
+            result.append("(");
+            expr.visit(this);
+            result.append(")");
+        }
     }
 
     @Override
-    public void visitBooleanExpression(BooleanExpression expression) {
+    public void visitPostfixExpression(PostfixExpression expression) {
+        result.append("(");
         expression.getExpression().visit(this);
+        result.append(expression.getOperation().getText());
+        result.append(")");
     }
 
     @Override
-    public void visitNotExpression(NotExpression expression) {
+    public void visitPrefixExpression(PrefixExpression expression) {
+        result.append("(");
+        result.append(expression.getOperation().getText());
         expression.getExpression().visit(this);
-    }
-
-    @Override
-    public void visitTupleExpression(TupleExpression expression) {
-        visitListOfExpressions(expression.getExpressions());
-    }
-
-    
-    @Override
-    public void visitArrayExpression(ArrayExpression expression) {
-        visitListOfExpressions(expression.getExpressions());
-        visitListOfExpressions(expression.getSizeExpression());
+        result.append(")");
     }
 
     @Override
     public void visitMapExpression(MapExpression expression) {
+        if (expression.getMapEntryExpressions().isEmpty()) {
+            result.append("[:]");
+            return;
+        }
+        result.append("[");
         visitListOfExpressions(expression.getMapEntryExpressions());
-
+        result.append("]");
     }
 
     @Override
     public void visitMapEntryExpression(MapEntryExpression expression) {
         expression.getKeyExpression().visit(this);
+        result.append(":");
         expression.getValueExpression().visit(this);
-
     }
 
     @Override
     public void visitRangeExpression(RangeExpression expression) {
+        result.append("(");
         expression.getFrom().visit(this);
+        result.append(expression.isInclusive() ? ".." : "..<");
         expression.getTo().visit(this);
+        result.append(")");
     }
 
     @Override
-    public void visitUnaryMinusExpression(UnaryMinusExpression expression) {
-        expression.getExpression().visit(this);
+    public void visitCastExpression(CastExpression expression) {
+        result.append("(");
+        if (expression.isCoerce()) {
+            expression.getExpression().visit(this);
+            result.append(" as ").append(expression.getType().getName());
+        } else {
+            result.append("(").append(expression.getType().getName()).append(")");
+            expression.getExpression().visit(this);
+        }
+        result.append(")");
+    }
+
+    @Override
+    public void visitGStringExpression(GStringExpression expression) {
+        List<ConstantExpression> strings = expression.getStrings();
+        List<Expression> values = expression.getValues();
+        result.append('"');
+        for (int i = 0; i < Math.max(strings.size(), values.size()); i++) {
+            if (i < strings.size()) {
+                appendEscaped(String.valueOf(strings.get(i).getValue()));
+            }
+            if (i < values.size()) {
+                result.append("${");
+                values.get(i).visit(this);
+                result.append("}");
+            }
+        }
+        result.append('"');
     }
 
     @Override
-    public void visitUnaryPlusExpression(UnaryPlusExpression expression) {
+    public void visitSpreadExpression(SpreadExpression expression) {
+        result.append("*");
         expression.getExpression().visit(this);
     }
-*/    
 }
@@ -1,6 +1,8 @@
 package groovyx.gaelyk.dsl.query
 
+import com.google.appengine.api.datastore.DatastoreServiceConfig
 import com.google.appengine.api.datastore.DatastoreServiceFactory
+import java.util.concurrent.Future
 /**
  *
  * @author V. Shyshkin
@@ -9,6 +11,26 @@ class Entitystore {
     static Object executeQuery(Closure closure) {
         closure(DatastoreServiceFactory.datastoreService)
     }
+
+    static CompiledQuery defineQuery(Closure closure) {
+        new CompiledQuery(DatastoreServiceFactory.datastoreService, closure)
+    }
+
+    static CompiledQuery defineQuery(List<String> names, Closure closure) {
+        new CompiledQuery(DatastoreServiceFactory.datastoreService, names, closure)
+    }
+
+    static Future executeQueryAsync(Closure closure) {
+        closure(DatastoreServiceFactory.asyncDatastoreService)
+    }
+
+    static Future executeQueryAsync(DatastoreServiceConfig config, Closure closure) {
+        closure(DatastoreServiceFactory.getAsyncDatastoreService(config))
+    }
+
+    static QueryPlan transformedText(Closure closure) {
+        closure(DatastoreServiceFactory.datastoreService)
+    }
     
 /*    Object query(Closure closure) {
         closure(DatastoreServiceFactory.datastoreService)
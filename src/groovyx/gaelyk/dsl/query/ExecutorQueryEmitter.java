@@ -0,0 +1,260 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.Statement;
+
+import static groovyx.gaelyk.dsl.query.QueryNodeFactory.*;
+
+/**
+ * Produces a transformed closure which delegates the work to the
+ * precompiled @{link QueryExecutor}.
+ * <p/>
+ * The parts of the query are collected into a @{link QueryDescriptor}
+ * created once in a static field of the class that owns the closure. The
+ * closure only evaluates the values which are not constants and calls
+ * the executor. For example the closure
+ * <pre>
+ *   select all, limit(10)
+ *   from Person
+ *   where age &gt; minAge
+ * </pre>
+ * becomes
+ * <pre>
+ *   QueryExecutor.execute((DatastoreService) it, Owner.hoistedDescriptor0__123, [minAge] as Object[])
+ * </pre>
+ * and the class gets
+ * <pre>
+ *   private static final QueryDescriptor hoistedDescriptor0__123 =
+ *       new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+ *           .option('limit', 10)
+ *           .filter('age', Query.FilterOperator.GREATER_THAN)
+ * </pre>
+ * The values are bound for the closure of <code>defineQuery</code> in the
+ * same way as by @{link NodeQueryEmitter}. The call of
+ * <code>executeQuery</code> itself is replaced with the call of the executor
+ * (see @{link QueryTransformer#inline}), so
+ * <code>datastore.executeQuery {...}</code> becomes
+ * <pre>
+ *   QueryExecutor.execute((DatastoreService) datastore, Owner.hoistedDescriptor0__123, [minAge] as Object[])
+ * </pre>
+ * A predicate <code>where (a == 1) || (b == 2)</code> is described with
+ * <code>.disjunct(0, 0).filter('a', ...).disjunct(0, 1).filter('b', ...).conjunct()</code>
+ * and is executed as a union of queries (see @{link QueryMerger}).
+ * <p/>
+ * The closure of <code>executeQueryAsync</code> calls
+ * @{link QueryExecutor#executeAsync } with the asynchronous service.
+ * The closure of <code>transformedText</code> doesn't run the query: it
+ * calls @{link QueryExecutor#explain } with the descriptor and the text
+ * of the code the query is transformed into by the emitter
+ * <code>executeQuery</code> uses, the descriptor only describes the plan.
+ *
+ * @author V. Shyshkin
+ */
+public class ExecutorQueryEmitter extends NodeQueryEmitter {
+
+    /**
+     * The calls which configure the descriptor, as statements on the
+     * <code>descriptor__123</code> variable to be chained.
+     */
+    protected List<Statement> descriptorCalls = new ArrayList<Statement>();
+    /**
+     * The values of the parameters of the descriptor in the order they
+     * were declared.
+     */
+    protected List<Expression> arguments = new ArrayList<Expression>();
+    /**
+     * The datastore service when the call replaces the call of
+     * <code>executeQuery</code> or <code>null</code>.
+     */
+    protected Expression service;
+    /**
+     * <code>true</code> for the closure of <code>executeQueryAsync</code>.
+     */
+    protected boolean async;
+    /**
+     * The name of the place of the closure in the source or
+     * <code>null</code>.
+     */
+    protected String site;
+    /**
+     * <code>true</code> for the closure of <code>transformedText</code>.
+     */
+    protected boolean explain;
+    /**
+     * The text of the code of the query for the plan or <code>null</code>
+     * for the text of the call of the executor.
+     */
+    protected String code;
+
+    public ExecutorQueryEmitter(ClassNode owner) {
+        super(owner);
+    }
+    /**
+     * @param service the expression of the datastore service to be used
+     *   instead of the closure parameter
+     */
+    public void setService(Expression service) {
+        this.service = service;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+    /**
+     * @param site the name of the place of the closure in the source
+     *   (see @{link QueryDescriptor#site(String) })
+     */
+    public void setSite(String site) {
+        this.site = site;
+    }
+
+    public void setExplain(boolean explain) {
+        this.explain = explain;
+    }
+    /**
+     * @param code the text of the code the query is transformed into by
+     *   the emitter <code>executeQuery</code> uses (see
+     *   @{link QueryTransformer#generatedText })
+     */
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    @Override
+    protected Expression closureService() {
+        if (service != null) {
+            return service;
+        }
+        return async ? cast(type(DATASTORE + "AsyncDatastoreService"), new VariableExpression("it")) : super.closureService();
+    }
+    /**
+     * Adds a call to the descriptor. The value becomes an argument
+     * of the call when it is a constant and a parameter otherwise.
+     */
+    protected void describe(String method, Expression value, Expression... args) {
+        List<Expression> list = new ArrayList<Expression>();
+        for (Expression e : args) {
+            list.add(e);
+        }
+        if (value != null) {
+            if (isConstant(value)) {
+                list.add(value(value, null));
+            } else {
+                arguments.add(value(value, null));
+            }
+        }
+        descriptorCalls.add(stmt(call(var("descriptor"), method, list.toArray(new Expression[list.size()]))));
+    }
+
+    @Override
+    public void applyFetchOption(String name) {
+        Expression value = values.get(name);
+        if (value != null) {
+            describe("option", value, constant(name));
+        }
+    }
+    /**
+     * The executor itself skips <code>null</code> and zero values.
+     */
+    @Override
+    protected void applyIfSet(String name) {
+        applyFetchOption(name);
+    }
+
+    @Override
+    public void addFilter(String fieldName, boolean keyProperty, String operation, Expression value) {
+        Expression field = keyProperty ? dotted(DATASTORE + "Entity.KEY_RESERVED_PROPERTY") : constant(fieldName);
+        if (definition) {
+            value = bindVariable(value);
+        }
+        describe("filter", value, field, dotted(DATASTORE + operation));
+    }
+
+    /**
+     * The filters which follow belong to a disjunct of a <code>where</code>
+     * predicate joined with <code>||</code>.
+     *
+     * @param group the number of the predicate within the query
+     * @param branch the number of the disjunct within the predicate
+     */
+    public void disjunct(int group, int branch) {
+        descriptorCalls.add(stmt(call(var("descriptor"), "disjunct", constant(group), constant(branch))));
+    }
+    /**
+     * Ends the filters of the disjuncts of a predicate.
+     */
+    public void conjunct() {
+        descriptorCalls.add(stmt(call(var("descriptor"), "conjunct")));
+    }
+
+    @Override
+    public void addSort(String fieldName, boolean keyProperty, String direction) {
+        Expression field = keyProperty ? dotted(DATASTORE + "Entity.KEY_RESERVED_PROPERTY") : constant(fieldName);
+        describe("sort", null, field, dotted(DATASTORE + direction));
+    }
+
+    @Override
+    public void end() {
+        boolean cursor = clause == QueryKeyword.CURSOR;
+        boolean single = !cursor && result == QueryKeyword.SINGLE;
+        if (definition && !single) {
+            bindOptions(cursor);
+        }
+        Expression childOf = values.get("childOf");
+        if (childOf != null) {
+            arguments.add(value(childOf, null));
+            descriptorCalls.add(stmt(call(var("descriptor"), "ancestor")));
+        }
+        if (cursor && values.get("startCursor") != null) {
+            applyFetchOption("startCursor");
+        }
+        Expression each = cursor ? null : values.get("each");
+        if (each != null) {
+            arguments.add(value(each, null));
+            descriptorCalls.add(stmt(call(var("descriptor"), "each", consumerClass(), constant(reuse))));
+        }
+        if (cursor && values.get("prefetchPages") != null) {
+            applyFetchOption("prefetchPages");
+        }
+        if (site != null) {
+            descriptorCalls.add(stmt(call(var("descriptor"), "site", constant(site))));
+        }
+        boolean iterate = result == QueryKeyword.ITERATE;
+        String resultName = cursor ? (iterate ? "ITERATOR" : result == QueryKeyword.PAGES ? "PAGES" : "PAGE")
+                : each != null ? "EACH"
+                : iterate ? "ITERABLE"
+                : result == QueryKeyword.COUNT ? "COUNT"
+                : single ? "SINGLE"
+                : "LIST";
+        ClassNode descriptorType = type(RUNTIME + "QueryDescriptor");
+        Expression descriptor = chain(newInstance(RUNTIME + "QueryDescriptor",
+                constant(kind), dotted(RUNTIME + "QueryDescriptor.Result." + resultName),
+                constant(result == QueryKeyword.KEYS)), descriptorCalls);
+        String descriptorText = descriptor.getText();
+        if (canHoist()) {
+            descriptor = hoist("Descriptor", descriptorType, descriptor);
+        }
+        //
+        // The values are always passed as an array, a single null value
+        // would be taken for a null array otherwise
+        //
+        Expression execute = call(dotted(RUNTIME + "QueryExecutor"), async ? "executeAsync" : "execute",
+                service(), descriptor, objectArray(arguments));
+        if (explain) {
+            String code = this.code;
+            if (code == null) {
+                code = execute.getText();
+                if (!descriptor.getText().equals(descriptorText)) {
+                    code += "\n" + descriptor.getText() + " = " + descriptorText;
+                }
+            }
+            execute = call(dotted(RUNTIME + "QueryExecutor"), "explain",
+                    descriptor, constant(code), objectArray(arguments));
+        }
+        add(stmt(execute));
+    }
+}
@@ -0,0 +1,236 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.FetchOptions;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses the <code>chunkSize</code> and the <code>prefetchSize</code> of
+ * the queries which don't set them.
+ * <p/>
+ * The sizes are chosen for each query site, the closure a
+ * @{link QueryDescriptor} is created for, from the <code>limit</code> of
+ * the query or, without a limit, from the number of entities the earlier
+ * runs of the site returned:
+ * <ul>
+ *   <li>the first batch is large enough for the expected entities plus a
+ *       quarter, so a query usually completes with a single request.
+ *       The queries which stream their entities (<code>iterate</code>,
+ *       <code>each</code>) get a first batch of at most
+ *       @{link #STREAM_FIRST_BATCH} entities, so the first entity comes
+ *       soon;</li>
+ *   <li>the following batches have the same size, at least
+ *       @{link #MIN_CHUNK_SIZE}. When the runs of the site take more than
+ *       @{link #SLOW_MILLIS} on average the size is doubled, fewer round
+ *       trips paying more than larger responses;</li>
+ *   <li>neither is greater than @{link #MAX_SIZE}.</li>
+ * </ul>
+ * The first run of a site without a limit uses the defaults of the SDK.
+ * The lazy results of <code>iterate</code> and <code>iterator</code> are
+ * not recorded, see @{link #record }, and <code>single</code> and
+ * <code>cursor pages</code> are not tuned.
+ * <p/>
+ * The mode is off unless the system property @{link #ADAPTIVE_PROPERTY}
+ * is <code>"true"</code> or @{link #setEnabled } is called. It applies to
+ * the queries run by @{link QueryExecutor#execute }. The state of the
+ * sites is kept in memory and may be inspected with @{link #getSites() }.
+ *
+ * @author V. Shyshkin
+ */
+public class FetchSizeTuner {
+
+    public static final String ADAPTIVE_PROPERTY = "gaelyk.query.adaptiveFetch";
+    public static final int MAX_SIZE = 1000;
+    public static final int MIN_CHUNK_SIZE = 20;
+    public static final int STREAM_FIRST_BATCH = 50;
+    public static final long SLOW_MILLIS = 200;
+    /**
+     * The weight of the last run in the averages.
+     */
+    static final double WEIGHT = 0.25;
+
+    private static volatile boolean enabled = Boolean.getBoolean(ADAPTIVE_PROPERTY);
+    private static final ConcurrentMap<String, Site> sites = new ConcurrentHashMap<String, Site>();
+
+    private FetchSizeTuner() {
+    }
+
+    /**
+     * The state of a query site.
+     */
+    public static class Site {
+
+        private final String name;
+        private long runs;
+        private double meanSize;
+        private double meanMillis;
+        private int chunkSize;
+        private int prefetchSize;
+
+        Site(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getRuns() {
+            return runs;
+        }
+        /**
+         * @return the average number of entities returned by a run
+         */
+        public synchronized double getMeanSize() {
+            return meanSize;
+        }
+
+        public synchronized double getMeanMillis() {
+            return meanMillis;
+        }
+        /**
+         * @return the last chosen chunk size or zero
+         */
+        public synchronized int getChunkSize() {
+            return chunkSize;
+        }
+        /**
+         * @return the last chosen prefetch size or zero
+         */
+        public synchronized int getPrefetchSize() {
+            return prefetchSize;
+        }
+
+        synchronized void record(int size, long millis) {
+            if (runs == 0) {
+                meanSize = size;
+                meanMillis = millis;
+            } else {
+                meanSize += WEIGHT * (size - meanSize);
+                meanMillis += WEIGHT * (millis - meanMillis);
+            }
+            runs++;
+        }
+        /**
+         * Chooses the sizes of a run. The options are built under the
+         * lock, so the two sizes always come from the same decision even
+         * when other runs of the site choose theirs at the same time.
+         *
+         * @return the options with the chosen sizes only or
+         *   <code>null</code> when there is nothing to choose them from
+         */
+        synchronized FetchOptions choose(Integer limit, boolean streaming) {
+            double expected;
+            if (limit != null) {
+                expected = limit;
+            } else if (runs > 0) {
+                expected = meanSize * 1.25 + 1;
+            } else {
+                return null;
+            }
+            int size = (int) Math.min(MAX_SIZE, Math.max(1, Math.ceil(expected)));
+            prefetchSize = streaming ? Math.min(size, STREAM_FIRST_BATCH) : size;
+            chunkSize = Math.max(size, MIN_CHUNK_SIZE);
+            if (meanMillis > SLOW_MILLIS) {
+                chunkSize *= 2;
+            }
+            chunkSize = Math.min(chunkSize, MAX_SIZE);
+            return FetchOptions.Builder.withChunkSize(chunkSize).prefetchSize(prefetchSize);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + ": runs=" + runs + " meanSize=" + Math.round(meanSize)
+                    + " meanMillis=" + Math.round(meanMillis)
+                    + " chunkSize=" + chunkSize + " prefetchSize=" + prefetchSize;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        FetchSizeTuner.enabled = enabled;
+    }
+    /**
+     * @return the sites by their names
+     */
+    public static Map<String, Site> getSites() {
+        return Collections.unmodifiableMap(sites);
+    }
+    /**
+     * Forgets the state of all the sites.
+     */
+    public static void reset() {
+        sites.clear();
+    }
+
+    static Site site(QueryDescriptor descriptor) {
+        String name = descriptor.getSite();
+        Site site = sites.get(name);
+        if (site == null) {
+            Site created = new Site(name);
+            site = sites.putIfAbsent(name, created);
+            if (site == null) {
+                site = created;
+            }
+        }
+        return site;
+    }
+    /**
+     * @param descriptor the shape of the query
+     * @param options the options of the query, which must not be modified
+     * @return the options with the chosen sizes or the given options when
+     *   they set a size themselves or there is nothing to choose from
+     */
+    static FetchOptions tune(QueryDescriptor descriptor, FetchOptions options) {
+        if (options.getChunkSize() != null || options.getPrefetchSize() != null) {
+            return options;
+        }
+        QueryDescriptor.Result result = descriptor.getResult();
+        boolean streaming = result == QueryDescriptor.Result.ITERABLE
+                || result == QueryDescriptor.Result.ITERATOR
+                || result == QueryDescriptor.Result.EACH;
+        FetchOptions tuned = site(descriptor).choose(options.getLimit(), streaming);
+        if (tuned == null) {
+            return options;
+        }
+        if (options.getLimit() != null) {
+            tuned.limit(options.getLimit());
+        }
+        if (options.getOffset() != null) {
+            tuned.offset(options.getOffset());
+        }
+        if (options.getStartCursor() != null) {
+            tuned.startCursor(options.getStartCursor());
+        }
+        return tuned;
+    }
+    /**
+     * Records a run of a query.
+     * @param result the value the query returned. The size of a
+     *   <code>List</code> or a number, the count of <code>count</code> and
+     *   <code>each</code>, is recorded. The lazy results of
+     *   <code>iterate</code> and <code>iterator</code> are not: their size
+     *   is not known when the query returns, so their fetch sizes follow
+     *   the <code>limit</code> only and use the defaults of the SDK without
+     *   one
+     * @param start the value of <code>System.nanoTime()</code> when the
+     *   query started
+     */
+    static void record(QueryDescriptor descriptor, Object result, long start) {
+        int size;
+        if (result instanceof List) {
+            size = ((List<?>) result).size();
+        } else if (result instanceof Number) {
+            size = ((Number) result).intValue();
+        } else {
+            return;
+        }
+        site(descriptor).record(size, (System.nanoTime() - start) / 1000000);
+    }
+}
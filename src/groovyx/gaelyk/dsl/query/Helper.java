@@ -1,7 +1,5 @@
 package groovyx.gaelyk.dsl.query;
 
-import java.lang.reflect.Field;
-
 /**
  *
  * @author V. Shyshkin
@@ -11,27 +9,41 @@ public class Helper {
     public static final String NAME_SUFFIX = "__123";    
     public static final int MAX_STATEMENT_COUNT = 6;
     public static final int MIN_STATEMENT_COUNT = 2;
+    /**
+     * The system property that selects the back end used to produce the
+     * transformed closure code. Recognized values are <code>"executor"</code>
+     * (default), <code>"node"</code> and <code>"string"</code>.
+     */
+    public static final String BACKEND_PROPERTY = "gaelyk.query.backend";
+    public static final String EXECUTOR_BACKEND = "executor";
+    public static final String NODE_BACKEND = "node";
+    public static final String STRING_BACKEND = "string";
+    /**
+     * The system property that turns on the static mode. When set to
+     * <code>"true"</code> the code of each query is generated into a
+     * static method of the enclosing class annotated with
+     * <code>@groovy.transform.CompileStatic</code>, so the compilation
+     * fails when the code cannot be compiled statically. The mode needs
+     * Groovy 2.0 or later, an error is reported for each query otherwise.
+     */
+    public static final String STATIC_PROPERTY = "gaelyk.query.static";
+    /**
+     * The system property that logs the time the transformation of each
+     * source unit takes and a summary for each compilation when set to
+     * <code>"true"</code> (see @{link TransformStatistics}).
+     */
+    public static final String STATISTICS_PROPERTY = "gaelyk.query.transformStats";
     
-    public static boolean isSupported(String methodName) {
-        boolean result = false;
-        if (methodName.equals("select")  || methodName.equals("Select") || 
-            methodName.equals("cursor")  || methodName.equals("Cursor") ||    
-            methodName.equals("from")    || methodName.equals("From") ||
-            methodName.equals("where")   || methodName.equals("Where") ||  
-            methodName.equals("orderBy") || methodName.equals("OrderBy") ||
-            methodName.equals("options") || methodName.equals("Options") ||
-            methodName.equals("fetchOptions") || methodName.equals("FetchOptions")  ) {
-            result = true;
-        }
-        return result;
-    }
-    public static boolean hasField(Class bean, String fieldName) {
-        Field[] fields = bean.getDeclaredFields();
-        for ( Field field : fields) {
-            if ( field.getName().equals(fieldName)) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * Converts a given name to a new name .
+     * The new name is a concatenation of the oldName with the first
+     * letter in lower case and a @{link #NAME_SUFFIX } constant.
+     * 
+     * @param oldName the name to be converted
+     * @return the converted name
+     */
+    public static String trname(String oldName) {
+        String s1 = oldName.substring(0, 1).toLowerCase() + oldName.substring(1);
+        return s1 + NAME_SUFFIX;
     }
 }
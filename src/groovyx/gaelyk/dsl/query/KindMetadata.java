@@ -0,0 +1,232 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.CompileUnit;
+import org.codehaus.groovy.ast.FieldNode;
+import org.codehaus.groovy.ast.PropertyNode;
+
+/**
+ * Describes the properties of a class used as a kind in the
+ * <code>from entity as Person</code> statement.
+ * <p/>
+ * The description contains the declared and inherited fields, their
+ * types and a hint whether the datastore indexes the property. A field
+ * of type <code>Text</code> or <code>Blob</code> or a field annotated with
+ * <code>@Unindexed</code> is treated as unindexed. A field annotated with
+ * <code>@Ignore</code> as well as static and transient fields are not
+ * properties of the kind. The annotations are recognized by their simple
+ * names.
+ * <p/>
+ * Instances are cached. The metadata of a compiled class is kept while the
+ * class is loaded. The metadata of a class declared in the sources being
+ * compiled is kept while the <code>CompileUnit</code> is alive. So every
+ * closure of every source unit resolves a kind only once.
+ *
+ * @author V. Shyshkin
+ */
+public class KindMetadata {
+
+    private static final Map<Class<?>, KindMetadata> classCache =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, KindMetadata>());
+    /**
+     * <code>ClassNode</code> compares by name, so the source classes
+     * are cached by identity inside a map per <code>CompileUnit</code>.
+     */
+    private static final Map<CompileUnit, Map<ClassNode, KindMetadata>> nodeCache =
+            new WeakHashMap<CompileUnit, Map<ClassNode, KindMetadata>>();
+
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private final String name;
+    private final Map<String, String> propertyTypes = new HashMap<String, String>();
+    private final Set<String> unindexed = new HashSet<String>();
+    /**
+     * <code>false</code> when a super class cannot be inspected.
+     */
+    private boolean complete = true;
+
+    protected KindMetadata(String name) {
+        this.name = name;
+    }
+    /**
+     * @param type a class of a kind
+     * @return the cached metadata of the given class
+     */
+    public static KindMetadata forClass(Class<?> type) {
+        KindMetadata result = classCache.get(type);
+        if (result == null) {
+            result = new KindMetadata(type.getSimpleName());
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                result.collect(c);
+            }
+            classCache.put(type, result);
+        }
+        return result;
+    }
+    /**
+     * @param node a class node of a kind. When the node refers to a
+     *   compiled class the result is the same as for @{link #forClass}
+     * @param unit the compile unit which contains the node
+     * @return the cached metadata of the given class node
+     */
+    public static KindMetadata forClassNode(ClassNode node, CompileUnit unit) {
+        node = node.redirect();
+        if (node.isResolved()) {
+            return forClass(node.getTypeClass());
+        }
+        synchronized (nodeCache) {
+            Map<ClassNode, KindMetadata> unitCache = nodeCache.get(unit);
+            if (unitCache == null) {
+                unitCache = new IdentityHashMap<ClassNode, KindMetadata>();
+                nodeCache.put(unit, unitCache);
+            }
+            KindMetadata result = unitCache.get(node);
+            if (result == null) {
+                result = new KindMetadata(node.getNameWithoutPackage());
+                result.collect(node, unit);
+                unitCache.put(node, result);
+            }
+            return result;
+        }
+    }
+
+    private void collect(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            int mod = field.getModifiers();
+            if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || field.isSynthetic()
+                    || isInternalName(field.getName())) {
+                continue;
+            }
+            Set<String> annotations = new HashSet<String>();
+            for (Annotation a : field.getAnnotations()) {
+                annotations.add(a.annotationType().getSimpleName());
+            }
+            addProperty(field.getName(), field.getType().getName(), annotations);
+        }
+    }
+
+    private void collect(ClassNode node, CompileUnit unit) {
+        for (ClassNode c = node; c != null; c = superClass(c, unit)) {
+            if (c.isResolved()) {
+                if (c.getTypeClass() != Object.class) {
+                    KindMetadata parent = forClass(c.getTypeClass());
+                    propertyTypes.putAll(parent.propertyTypes);
+                    unindexed.addAll(parent.unindexed);
+                }
+                return;
+            }
+            if (!c.isPrimaryClassNode()) {
+                complete = false;
+                return;
+            }
+            //
+            // Before the class generation phase the properties
+            // have no backing fields yet
+            //
+            for (PropertyNode property : c.getProperties()) {
+                collect(property.getField());
+            }
+            for (FieldNode field : c.getFields()) {
+                collect(field);
+            }
+        }
+    }
+
+    private void collect(FieldNode field) {
+        //
+        // The fields of the properties are marked as synthetic by
+        // the parser, so only the modifier is checked
+        //
+        if (field.isStatic() || (field.getModifiers() & (Modifier.TRANSIENT | ACC_SYNTHETIC)) != 0
+                || isInternalName(field.getName())) {
+            return;
+        }
+        Set<String> annotations = new HashSet<String>();
+        for (AnnotationNode a : field.getAnnotations()) {
+            annotations.add(a.getClassNode().getNameWithoutPackage());
+        }
+        addProperty(field.getName(), field.getType().getName(), annotations);
+    }
+
+    private static ClassNode superClass(ClassNode node, CompileUnit unit) {
+        ClassNode result = node.getUnresolvedSuperClass(false);
+        if (result == null || result.equals(ClassHelper.OBJECT_TYPE)) {
+            return null;
+        }
+        result = result.redirect();
+        if (!result.isResolved() && !result.isPrimaryClassNode() && unit != null) {
+            ClassNode declared = unit.getClass(result.getName());
+            if (declared == null && node.getPackageName() != null) {
+                declared = unit.getClass(node.getPackageName() + "." + result.getName());
+            }
+            if (declared != null) {
+                result = declared;
+            }
+        }
+        return result;
+    }
+
+    private void addProperty(String propertyName, String typeName, Set<String> annotations) {
+        if (annotations.contains("Ignore") || propertyTypes.containsKey(propertyName)) {
+            return;
+        }
+        propertyTypes.put(propertyName, typeName);
+        if (annotations.contains("Unindexed")
+                || "com.google.appengine.api.datastore.Text".equals(typeName)
+                || "com.google.appengine.api.datastore.Blob".equals(typeName)
+                || "Text".equals(typeName) || "Blob".equals(typeName)) {
+            unindexed.add(propertyName);
+        }
+    }
+
+    private static boolean isInternalName(String name) {
+        return name.startsWith("$") || name.startsWith("__") || "metaClass".equals(name);
+    }
+    /**
+     * @return the simple name of the class which is the name of the kind
+     */
+    public String getName() {
+        return name;
+    }
+    /**
+     * @return <code>true</code> if the class or one of its super classes
+     *   declares the property. Always <code>true</code> when the metadata
+     *   is not complete
+     */
+    public boolean hasProperty(String propertyName) {
+        return !complete || propertyTypes.containsKey(propertyName);
+    }
+    /**
+     * @return the class name of the property type or <code>null</code>
+     */
+    public String getPropertyType(String propertyName) {
+        return propertyTypes.get(propertyName);
+    }
+
+    public boolean isUnindexed(String propertyName) {
+        return unindexed.contains(propertyName);
+    }
+    /**
+     * @return <code>false</code> if some super class could not be inspected
+     *   and the list of properties may be incomplete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public Set<String> getPropertyNames() {
+        return Collections.unmodifiableSet(propertyTypes.keySet());
+    }
+}
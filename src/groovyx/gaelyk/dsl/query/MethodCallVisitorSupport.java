@@ -1,6 +1,8 @@
 package groovyx.gaelyk.dsl.query;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import org.codehaus.groovy.ast.expr.*;
 import org.codehaus.groovy.ast.stmt.*;
 
@@ -26,7 +28,36 @@ public class MethodCallVisitorSupport extends CodeVisitorSupport {
 
     public static final int MAX_STATEMENT_COUNT = 6;
     public static final int MIN_STATEMENT_COUNT = 2;
+    /**
+     * The names of the objects whose methods accept a "query DSL" closure.
+     */
+    public static final String[] RECEIVER_NAMES = {"datastore", "Entitystore"};
+    
     protected VisitClosureHandler visitHandler;
+    /**
+     * The calls of <code>executeQuery</code>, <code>executeQueryAsync</code>,
+     * <code>defineQuery</code> and <code>transformedText</code> by the
+     * closures passed to them.
+     */
+    protected Map<ClosureExpression, MethodCallExpression> calls =
+            new IdentityHashMap<ClosureExpression, MethodCallExpression>();
+    /**
+     * The calls of <code>parallel</code> in the order they were found.
+     */
+    protected List<MethodCallExpression> parallelCalls = new ArrayList<MethodCallExpression>();
+
+    /**
+     * @param name a name of a variable
+     * @return <code>true</code> if the name is one of @{link #RECEIVER_NAMES}
+     */
+    public static boolean isReceiverName(CharSequence name) {
+        for (String receiver : RECEIVER_NAMES) {
+            if (receiver.contentEquals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     /**
      * Registers a handler to be notified when a closure is a "query DSL"
@@ -38,6 +69,23 @@ public class MethodCallVisitorSupport extends CodeVisitorSupport {
         this.visitHandler = handler;
     }
 
+    /**
+     * @return the method calls whose arguments are the "query DSL"
+     *   closures, by the closures
+     */
+    public Map<ClosureExpression, MethodCallExpression> getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return the calls of <code>parallel</code> whose
+     *   <code>query {...}</code> statements were registered as the
+     *   "query DSL" closures
+     */
+    public List<MethodCallExpression> getParallelCalls() {
+        return parallelCalls;
+    }
+
     @Override
     public void visitCastExpression(CastExpression expression) {
         expression.getExpression().visit(this);
@@ -99,16 +147,16 @@ public class MethodCallVisitorSupport extends CodeVisitorSupport {
                 String nm = ((VariableExpression) expr).getName();
                 String tx = ((VariableExpression) expr).getText();
 
-                if (!(Helper.isSupported(nm) && nm.equals(tx))) {
+                if (!(QueryKeyword.clause(nm) != null && nm.equals(tx))) {
                     break;
                 }
             } else if (expr instanceof MethodCallExpression) {
                 String nm = ((MethodCallExpression) expr).getMethod().getText();
                 //String tx = ((MethodCallExpression) expr).getText();
-                if (!(Helper.isSupported(nm))) {
+                if (QueryKeyword.clause(nm) == null) {
                     break;
                 }
-                if (nm.equals("from") || nm.equals("From")) {
+                if (QueryKeyword.clause(nm) == QueryKeyword.FROM) {
                     fromCall = (MethodCallExpression) expr;
                 }
             }
@@ -192,19 +240,24 @@ public class MethodCallVisitorSupport extends CodeVisitorSupport {
         boolean found = false;
         if (call.getObjectExpression() instanceof VariableExpression) {
             VariableExpression vexpr = (VariableExpression) call.getObjectExpression();
-            if (vexpr.getText().equals("datastore") || vexpr.getText().equals("Entitystore")) {
+            if (isReceiverName(vexpr.getText())) {
                 if (call.getMethod() instanceof ConstantExpression) {
                     ConstantExpression cexpr = (ConstantExpression) call.getMethod();
-                    if (cexpr.getValue().equals("executeQuery") || cexpr.getValue().equals("defineQuery")) {
+                    if (cexpr.getValue().equals("executeQuery") || cexpr.getValue().equals("defineQuery")
+                            || cexpr.getValue().equals("executeQueryAsync") || cexpr.getValue().equals("transformedText")) {
                         if (call.getArguments() instanceof ArgumentListExpression) {
                             ArgumentListExpression argListExpr = (ArgumentListExpression) call.getArguments();
-                            if (argListExpr.getExpressions().size() == 1 && (argListExpr.getExpressions().get(0) instanceof ClosureExpression)) {
+                            if (isClosureArgument(cexpr.getValue(), argListExpr.getExpressions())) {
                                 found = true;
-                                ClosureExpression closureExpr = (ClosureExpression) argListExpr.getExpressions().get(0);
+                                List<Expression> args = argListExpr.getExpressions();
+                                ClosureExpression closureExpr = (ClosureExpression) args.get(args.size() - 1);
+                                calls.put(closureExpr, call);
                                 visitHandler.success(closureExpr, getCastExpression(closureExpr));
                             }
                         }
 
+                    } else if (cexpr.getValue().equals("parallel")) {
+                        found = visitParallel(call);
                     }//if
                 }//if
             }//if
@@ -214,4 +267,56 @@ public class MethodCallVisitorSupport extends CodeVisitorSupport {
         }
 
     }
+    /**
+     * @return <code>true</code> when the only argument is a closure or,
+     *   for <code>executeQueryAsync</code>, the second argument after the
+     *   <code>DatastoreServiceConfig</code>
+     */
+    protected static boolean isClosureArgument(Object method, List<Expression> args) {
+        int size = "executeQueryAsync".equals(method) && args.size() == 2 ? 2 : 1;
+        return args.size() == size && args.get(size - 1) instanceof ClosureExpression;
+    }
+    /**
+     * Registers the closures of a block like
+     * <pre>
+     *   datastore.parallel {
+     *       users: query { select all; from User }
+     *       orders: query { select all; from Order }
+     *   }
+     * </pre>
+     * The statements which are not <code>query {...}</code> calls are
+     * left to the @{link QueryTransformer} to report.
+     *
+     * @param call the call of <code>parallel</code>
+     * @return <code>true</code> if the call has a closure as the last argument
+     */
+    protected boolean visitParallel(MethodCallExpression call) {
+        if (!(call.getArguments() instanceof ArgumentListExpression)) {
+            return false;
+        }
+        List<Expression> args = ((ArgumentListExpression) call.getArguments()).getExpressions();
+        if (args.isEmpty() || args.size() > 2 || !(args.get(args.size() - 1) instanceof ClosureExpression)) {
+            return false;
+        }
+        parallelCalls.add(call);
+        ClosureExpression body = (ClosureExpression) args.get(args.size() - 1);
+        for (Statement statement : ((BlockStatement) body.getCode()).getStatements()) {
+            if (!(statement instanceof ExpressionStatement)
+                    || !(((ExpressionStatement) statement).getExpression() instanceof MethodCallExpression)) {
+                continue;
+            }
+            MethodCallExpression query = (MethodCallExpression) ((ExpressionStatement) statement).getExpression();
+            if (!query.isImplicitThis() || !"query".equals(query.getMethodAsString())
+                    || !(query.getArguments() instanceof ArgumentListExpression)) {
+                continue;
+            }
+            List<Expression> queryArgs = ((ArgumentListExpression) query.getArguments()).getExpressions();
+            if (queryArgs.size() == 1 && queryArgs.get(0) instanceof ClosureExpression) {
+                ClosureExpression closureExpr = (ClosureExpression) queryArgs.get(0);
+                calls.put(closureExpr, query);
+                visitHandler.success(closureExpr, getCastExpression(closureExpr));
+            }
+        }
+        return true;
+    }
 }//class ClosureVisitorSupport
@@ -0,0 +1,613 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.lang.reflect.Modifier;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.CodeVisitorSupport;
+import org.codehaus.groovy.ast.FieldNode;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.ListExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.syntax.Types;
+
+import static groovyx.gaelyk.dsl.query.QueryNodeFactory.*;
+
+/**
+ * Creates the statements of the transformed closure directly with
+ * @{link QueryNodeFactory}.
+ * <p/>
+ * Unlike @{link StringQueryEmitter}, which produces the same generic code
+ * for every closure and lets it decide at run time what kind of query to
+ * execute, this emitter only records what the closure says and creates
+ * in @{link #end() } the statements that can actually run:
+ * <ul>
+ *   <li>one execution call for the <code>select</code> or
+ *       <code>cursor</code> mode of the closure;</li>
+ *   <li>one <code>Query</code> constructor for the <code>from</code>
+ *       statement and an ancestor test only when there is an ancestor;</li>
+ *   <li>local variables only for the values used more than once
+ *       (<code>childOf__123</code>, <code>startCursor__123</code>).</li>
+ * </ul>
+ * All local variables are declared with their types, classes are referred
+ * to by their fully qualified names and the values are cast where a method
+ * expects a particular type. So the statements need no imports and compile
+ * to direct method calls when the closure is in a class or a method
+ * annotated with <code>@CompileStatic</code> or <code>@TypeChecked</code>.
+ * <p/>
+ * When all the values of the options are constants, the
+ * <code>FetchOptions</code> is built once in a static field of the class
+ * that owns the closure (see @{link #hoist}), and so is each list of
+ * constants used as the value of a filter. The <code>Query</code> itself
+ * is always created by the closure: it takes the namespace of the
+ * <code>NamespaceManager</code> when it is constructed, so a shared
+ * instance would run every time in the namespace of the first run, and
+ * it cannot be constructed while the class is loaded outside of a
+ * request.
+ * <p/>
+ * The closure of <code>defineQuery</code> is called by a @{link CompiledQuery}
+ * with @{link QueryArguments}. For such a closure the values of the options
+ * and the variables used as values may be replaced with the values bound
+ * to their names (see @{link #bind}).
+ * For example the closure
+ * <pre>
+ *   select all, limit(10)
+ *   from Person
+ *   where age &gt; minAge
+ * </pre>
+ * becomes
+ * <pre>
+ *   FetchOptions fetchOptions__123 = FetchOptions.Builder.withDefaults()
+ *   fetchOptions__123.limit((int) 10)
+ *   Query query__123 = new Query('Person')
+ *   query__123.addFilter('age', Query.FilterOperator.GREATER_THAN, minAge)
+ *   ((DatastoreService) it).prepare(query__123).asList(fetchOptions__123)
+ * </pre>
+ * <p/>
+ * The expressions of the closure that hold the values of the query
+ * (<code>limit = max</code>, <code>where age &gt; minAge</code> and so on)
+ * are moved into the new statements as they are. They are neither
+ * printed to a string nor parsed again, so any expression the parser
+ * accepts can be used as a value and keeps its source position.
+ * See @{link #transplant(org.codehaus.groovy.ast.expr.Expression) }.
+ *
+ * @author V. Shyshkin
+ */
+public class NodeQueryEmitter implements QueryEmitter {
+
+    protected static final String DATASTORE = "com.google.appengine.api.datastore.";
+    protected static final String RUNTIME = "groovyx.gaelyk.dsl.query.";
+    protected static final String HOISTED_PREFIX = "hoisted";
+    /**
+     * The class which gets the static fields of the hoisted fetch options
+     * and lists or <code>null</code> when nothing is hoisted.
+     */
+    protected final ClassNode owner;
+
+    protected List<Statement> statements = new ArrayList<Statement>();
+    /**
+     * The expressions of the closure which are already placed into
+     * the new statements.
+     */
+    protected Map<Expression, Boolean> transplanted = new IdentityHashMap<Expression, Boolean>();
+    /**
+     * @{link QueryKeyword#SELECT} or @{link QueryKeyword#CURSOR}.
+     */
+    protected QueryKeyword clause = QueryKeyword.SELECT;
+    /**
+     * One of the keywords of the <code>QueryKeyword.Kind.RESULT</code> kind.
+     */
+    protected QueryKeyword result = QueryKeyword.ALL;
+    /**
+     * The name of the kind or <code>null</code> for a kindless query.
+     */
+    protected String kind;
+    /**
+     * The class of <code>from pojo as Person</code> or <code>null</code>.
+     */
+    protected String pojoClass;
+    /**
+     * <code>"pojo"</code>, <code>"entity"</code> or <code>null</code>.
+     */
+    protected String pojo;
+    /**
+     * <code>true</code> for <code>select each: {...}, reuse: true</code>.
+     */
+    protected boolean reuse;
+    /**
+     * The values of the options and of the ancestor by their names.
+     */
+    protected Map<String, Expression> values = new HashMap<String, Expression>();
+    /**
+     * The statements which configure <code>fetchOptions__123</code>.
+     */
+    protected List<Statement> fetchOptionStatements = new ArrayList<Statement>();
+    /**
+     * The <code>addFilter</code> and <code>addSort</code> statements.
+     */
+    protected List<Statement> queryStatements = new ArrayList<Statement>();
+    /**
+     * <code>false</code> when a value of a fetch option is not a constant.
+     */
+    protected boolean constantFetchOptions = true;
+    /**
+     * <code>true</code> for the closure of <code>defineQuery</code>.
+     */
+    protected boolean definition;
+    /**
+     * The names bound by @{link #bind} in the order they are found.
+     */
+    protected final Set<String> bindNames = new LinkedHashSet<String>();
+    /**
+     * The text of the hoisted fields by their names when only the text of the code is wanted (see
+     * @{link #setTextOnly}), <code>null</code> otherwise.
+     */
+    protected Map<String, String> hoistedText;
+
+    public NodeQueryEmitter() {
+        this(null);
+    }
+    /**
+     * @param owner the class which contains the closure. May be
+     *   <code>null</code>
+     */
+    public NodeQueryEmitter(ClassNode owner) {
+        this.owner = owner;
+    }
+
+    public boolean isDefinition() {
+        return definition;
+    }
+    /**
+     * @return the names that may be bound when the closure of
+     *   <code>defineQuery</code> is executed, known once the closure is
+     *   emitted
+     */
+    public Set<String> getBindNames() {
+        return Collections.unmodifiableSet(bindNames);
+    }
+    /**
+     * @param textOnly <code>true</code> when the statements are only
+     *   emitted for @{link #getText}: nothing is added to the
+     *   @{link #owner} then
+     */
+    public void setTextOnly(boolean textOnly) {
+        hoistedText = textOnly ? new LinkedHashMap<String, String>() : null;
+    }
+    /**
+     * @return the text of the statements followed by the lines like
+     *   <code>Owner.hoistedFetchOptions0__123 = ...</code> for the hoisted
+     *   fields, when the emitter is in the text only mode
+     */
+    public String getText() {
+        StringBuilder result = new StringBuilder();
+        for (Statement statement : getStatements()) {
+            if (result.length() > 0) {
+                result.append('\n');
+            }
+            result.append(text(statement, ""));
+        }
+        if (hoistedText != null) {
+            for (String member : hoistedText.values()) {
+                result.append('\n').append(member);
+            }
+        }
+        return result.toString();
+    }
+
+    public void setDefinition(boolean definition) {
+        this.definition = definition;
+    }
+
+    @Override
+    public void begin() {
+    }
+
+    @Override
+    public void assignConstant(String name, String value) {
+        QueryKeyword kw = QueryKeyword.lookup(name);
+        if (kw == QueryKeyword.SELECT || kw == QueryKeyword.CURSOR) {
+            clause = kw;
+        } else if (kw != null && kw.getKind() == QueryKeyword.Kind.RESULT) {
+            result = kw;
+        } else if ("kind".equals(name)) {
+            kind = value;
+        } else if ("pojo".equals(name)) {
+            pojo = value;
+        } else if ("reuse".equals(name)) {
+            reuse = Boolean.parseBoolean(value);
+        }
+    }
+    /**
+     * The class of a kind is used only to map the entities passed to
+     * the consumer of <code>select each: {...}</code>.
+     */
+    @Override
+    public void assignClass(String name, String className) {
+        if ("pojoClass".equals(name)) {
+            pojoClass = className;
+        }
+    }
+    /**
+     * @return the class literal the entities passed to a consumer are
+     *   mapped to or a <code>null</code> constant
+     */
+    protected Expression consumerClass() {
+        return "pojo".equals(pojo) && pojoClass != null ? classOf(pojoClass) : constant(null);
+    }
+
+    @Override
+    public void assignValue(String name, Expression value) {
+        if (definition) {
+            value = bindVariable(value);
+            QueryKeyword kw = QueryKeyword.lookup(name);
+            if (kw != null && kw.getKind() == QueryKeyword.Kind.OPTION) {
+                value = bind(name, value);
+            }
+        }
+        values.put(name, value);
+    }
+
+    @Override
+    public void applyFetchOption(String name) {
+        Expression value = values.get(name);
+        if (value != null) {
+            constantFetchOptions &= isConstant(value);
+            fetchOptionStatements.add(at(stmt(call(var("fetchOptions"), name, value(value, ClassHelper.int_TYPE))), value));
+        }
+    }
+    /**
+     * <code>chunkSize</code> and <code>prefetchSize</code> are applied only
+     * when their values are not <code>null</code> or zero. The test is
+     * omitted for a constant value.
+     */
+    @Override
+    public void endFetchOptions() {
+        applyIfSet("chunkSize");
+        applyIfSet("prefetchSize");
+    }
+
+    protected void applyIfSet(String name) {
+        Expression value = values.get(name);
+        if (value == null) {
+            return;
+        }
+        if (value instanceof ConstantExpression) {
+            Object v = ((ConstantExpression) value).getValue();
+            if (v != null && !(v instanceof Number && ((Number) v).intValue() == 0)) {
+                applyFetchOption(name);
+            }
+            return;
+        }
+        constantFetchOptions = false;
+        fetchOptionStatements.add(at(declare(name, ClassHelper.OBJECT_TYPE, value(value, null)), value));
+        fetchOptionStatements.add(ifThen(var(name), block(
+                stmt(call(var("fetchOptions"), name, cast(ClassHelper.int_TYPE, var(name)))))));
+    }
+
+    @Override
+    public void endFrom() {
+    }
+
+    @Override
+    public void addFilter(String fieldName, boolean keyProperty, String operation, Expression value) {
+        Expression field = keyProperty ? dotted(DATASTORE + "Entity.KEY_RESERVED_PROPERTY") : constant(fieldName);
+        if (definition) {
+            value = bindVariable(value);
+        }
+        Expression filterValue = value instanceof ListExpression && isConstant(value) && canHoist()
+                ? hoist("List", ClassHelper.LIST_TYPE.getPlainNodeReference(),
+                    call(dotted("java.util.Collections"), "unmodifiableList", value(value, null)))
+                : value(value, null);
+        queryStatements.add(at(stmt(call(var("query"), "addFilter", field, dotted(DATASTORE + operation), filterValue)), value));
+    }
+
+    @Override
+    public void addSort(String fieldName, boolean keyProperty, String direction) {
+        Expression field = keyProperty ? dotted(DATASTORE + "Entity.KEY_RESERVED_PROPERTY") : constant(fieldName);
+        queryStatements.add(stmt(call(var("query"), "addSort", field, dotted(DATASTORE + direction))));
+    }
+
+    @Override
+    public void end() {
+        boolean cursor = clause == QueryKeyword.CURSOR;
+        boolean single = !cursor && result == QueryKeyword.SINGLE;
+        if (definition && !single) {
+            bindOptions(cursor);
+        }
+        Expression startCursor = cursor ? values.get("startCursor") : null;
+        if (!single) {
+            ClassNode fetchOptionsType = type(DATASTORE + "FetchOptions");
+            Expression defaults = call(dotted(DATASTORE + "FetchOptions.Builder"), "withDefaults");
+            if (constantFetchOptions && startCursor == null && canHoist()) {
+                add(declare("fetchOptions", fetchOptionsType,
+                        hoist("FetchOptions", fetchOptionsType, chain(defaults, fetchOptionStatements))));
+            } else {
+                add(declare("fetchOptions", fetchOptionsType, defaults));
+                statements.addAll(fetchOptionStatements);
+            }
+        }
+        Expression childOf = values.get("childOf");
+        if (result == QueryKeyword.KEYS) {
+            queryStatements.add(0, stmt(call(var("query"), "setKeysOnly")));
+        }
+        ClassNode queryType = type(DATASTORE + "Query");
+        Expression newQuery = kind != null
+                ? newInstance(DATASTORE + "Query", constant(kind))
+                : newInstance(DATASTORE + "Query");
+        add(declare("query", queryType, newQuery));
+        if (childOf != null) {
+            add(at(declare("childOf", ClassHelper.OBJECT_TYPE, value(childOf, null)), childOf));
+            add(setAncestor());
+        }
+        statements.addAll(queryStatements);
+
+        Expression prepared = call(service(), "prepare", var("query"));
+        if (cursor) {
+            if (startCursor != null) {
+                add(at(declare("startCursor", ClassHelper.OBJECT_TYPE, value(startCursor, null)), startCursor));
+                add(setStartCursor());
+            }
+            if (result == QueryKeyword.PAGES) {
+                Expression prefetchPages = values.get("prefetchPages");
+                add(stmt(call(dotted(RUNTIME + "QueryExecutor"), "pages", service(), var("query"),
+                        var("fetchOptions"), prefetchPages == null ? constant(null) : value(prefetchPages, null))));
+            } else {
+                add(stmt(call(prepared, result == QueryKeyword.ITERATE
+                        ? "asQueryResultIterator" : "asQueryResultList", var("fetchOptions"))));
+            }
+        } else if (values.get("each") != null) {
+            Expression each = values.get("each");
+            add(at(stmt(call(dotted(RUNTIME + "QueryExecutor"), "each",
+                    call(prepared, "asIterable", var("fetchOptions")), consumerClass(), constant(reuse),
+                    value(each, type("groovy.lang.Closure")))), each));
+        } else if (result == QueryKeyword.ITERATE) {
+            add(stmt(call(prepared, "asIterable", var("fetchOptions"))));
+        } else if (result == QueryKeyword.COUNT) {
+            add(stmt(call(prepared, "countEntities", var("fetchOptions"))));
+        } else if (single) {
+            add(stmt(call(prepared, "asSingleEntity")));
+        } else {
+            add(stmt(call(prepared, "asList", var("fetchOptions"))));
+        }
+    }
+    /**
+     * Makes the options the closure of <code>defineQuery</code> doesn't
+     * set bindable by their names.
+     */
+    protected void bindOptions(boolean cursor) {
+        QueryKeyword[] options = {QueryKeyword.LIMIT, QueryKeyword.OFFSET,
+            QueryKeyword.CHUNK_SIZE, QueryKeyword.PREFETCH_SIZE};
+        for (QueryKeyword kw : options) {
+            if (values.containsKey(kw.getName()) || (cursor && kw == QueryKeyword.OFFSET)) {
+                continue;
+            }
+            values.put(kw.getName(), bind(kw.getName(), null));
+            applyIfSet(kw.getName());
+        }
+        if (cursor && !values.containsKey("startCursor")) {
+            values.put("startCursor", bind("startCursor", null));
+        }
+    }
+    /**
+     * @param name the name of a bind parameter
+     * @param value the expression used when the name is not bound or
+     *   <code>null</code>
+     * @return an expression like
+     *   <code>((QueryArguments) it).has('name') ? ((QueryArguments) it).get('name') : value</code>
+     */
+    protected Expression bind(String name, Expression value) {
+        bindNames.add(name);
+        Expression get = call(arguments(), "get", constant(name));
+        if (value == null) {
+            return get;
+        }
+        return ternary(call(arguments(), "has", constant(name)), get, value);
+    }
+    /**
+     * @return a bindable expression for a variable used as a value or
+     *   the value itself
+     */
+    protected Expression bindVariable(Expression value) {
+        if (value instanceof VariableExpression && !((VariableExpression) value).isThisExpression()
+                && !((VariableExpression) value).isSuperExpression()) {
+            return bind(((VariableExpression) value).getName(), value);
+        }
+        return value;
+    }
+
+    protected Expression arguments() {
+        return cast(type("groovyx.gaelyk.dsl.query.QueryArguments"), new VariableExpression("it"));
+    }
+    /**
+     * @return <code>true</code> when there is a class the static fields
+     *   can be added to
+     */
+    protected boolean canHoist() {
+        return owner != null && !owner.isInterface();
+    }
+    /**
+     * @return <code>true</code> for a constant or a list of constants
+     */
+    protected static boolean isConstant(Expression value) {
+        if (value instanceof ListExpression) {
+            for (Expression e : ((ListExpression) value).getExpressions()) {
+                if (!isConstant(e)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return value instanceof ConstantExpression;
+    }
+    /**
+     * Turns the statements like <code>query__123.addFilter(...)</code> into
+     * a chain of calls on a given receiver, which is possible because the
+     * methods of <code>Query</code> and <code>FetchOptions</code> return
+     * <code>this</code>.
+     */
+    protected static Expression chain(Expression receiver, List<Statement> calls) {
+        Expression result = receiver;
+        for (Statement st : calls) {
+            MethodCallExpression call = (MethodCallExpression) ((ExpressionStatement) st).getExpression();
+            call.setObjectExpression(result);
+            result = call;
+        }
+        return result;
+    }
+    /**
+     * Adds a <code>private static final</code> field initialized with
+     * a given expression to the @{link #owner}. The field is initialized once
+     * when the class is loaded and is only read afterwards, so it is safely
+     * shared by all threads executing the query.
+     * @param name <code>"FetchOptions"</code>, <code>"List"</code> or
+     *   <code>"Descriptor"</code>
+     * @return the expression that reads the field, which is only recorded
+     *   in @{link #hoistedText} in the text only mode
+     */
+    protected Expression hoist(String name, ClassNode type, Expression init) {
+        int index = 0;
+        while (owner.getField(HOISTED_PREFIX + name + index + Helper.NAME_SUFFIX) != null
+                || hoistedText != null && hoistedText.containsKey(HOISTED_PREFIX + name + index + Helper.NAME_SUFFIX)) {
+            index++;
+        }
+        String fieldName = HOISTED_PREFIX + name + index + Helper.NAME_SUFFIX;
+        Expression field = property(new ClassExpression(owner), fieldName);
+        if (hoistedText != null) {
+            hoistedText.put(fieldName, field.getText() + " = " + init.getText());
+            return field;
+        }
+        //
+        // The first field is initialized first, so a query in an initializer
+        // of a static field of the owner sees the field already set
+        //
+        owner.addFieldFirst(new FieldNode(fieldName, Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL,
+                type, owner, init));
+        return field;
+    }
+    /**
+     * @return a statement that sets the ancestor of <code>query__123</code>
+     *  when <code>childOf__123</code> is defined
+     */
+    protected Statement setAncestor() {
+        ClassNode key = type(DATASTORE + "Key");
+        Expression entityKey = call(dotted("org.codehaus.groovy.runtime.InvokerHelper"), "getProperty",
+                var("childOf"), constant("key"));
+        return ifThen(var("childOf"), block(
+                stmt(call(var("query"), "setAncestor",
+                    ternary(instanceOf(var("childOf"), DATASTORE + "Key"),
+                        cast(key, var("childOf")), cast(key, entityKey))))));
+    }
+    /**
+     * @return a statement that sets the start cursor of
+     *  <code>fetchOptions__123</code> when <code>startCursor__123</code> is
+     *  either a web safe string or a <code>Cursor</code>
+     */
+    protected Statement setStartCursor() {
+        ClassNode string = ClassHelper.STRING_TYPE;
+        Expression webSafe = and(and(
+                instanceOf(var("startCursor"), "java.lang.String"),
+                binary(call(cast(string, var("startCursor")), "trim"), Types.COMPARE_NOT_EQUAL, constant("null"))),
+                not(call(call(cast(string, var("startCursor")), "trim"), "isEmpty")));
+        return ifThen(var("startCursor"), block(
+                ifThenElse(webSafe,
+                    block(stmt(call(var("fetchOptions"), "startCursor",
+                        call(dotted(DATASTORE + "Cursor"), "fromWebSafeString", cast(string, var("startCursor")))))),
+                    ifThen(instanceOf(var("startCursor"), DATASTORE + "Cursor"),
+                        block(stmt(call(var("fetchOptions"), "startCursor",
+                            cast(type(DATASTORE + "Cursor"), var("startCursor")))))))));
+    }
+    /**
+     * @return the expression of the datastore service the query is
+     *   prepared with, that is the parameter of the closure
+     */
+    protected Expression service() {
+        return closureService();
+    }
+    /**
+     * @return the expression of the datastore service in the closure
+     */
+    protected Expression closureService() {
+        if (definition) {
+            return call(arguments(), "getService");
+        }
+        return cast(type(DATASTORE + "DatastoreService"), new VariableExpression("it"));
+    }
+    /**
+     * @param value an expression of the closure which holds a value of
+     *   the query
+     * @param type the type the value must be cast to or <code>null</code>
+     * @return the expression to be used in the new statements
+     */
+    protected Expression value(Expression value, ClassNode type) {
+        Expression result = transplant(value);
+        return type == null ? result : cast(type, result);
+    }
+    /**
+     * Prepares an expression of the original closure to be a part of
+     * the new statements.
+     * <p/>
+     * The statements of the closure are dropped after the transformation,
+     * so the expression is taken as it is. Only the variable bindings
+     * are cleared: the expression gets into a block with other local
+     * variables, and the bindings are restored for the new block by
+     * the variable scope visitor. When the same expression is requested
+     * again a copy is returned, because an AST node must not have two
+     * parents.
+     */
+    protected Expression transplant(Expression value) {
+        if (transplanted.put(value, Boolean.TRUE) != null) {
+            return new AstCloner().transform(value);
+        }
+        value.visit(SCOPE_RESET);
+        return value;
+    }
+
+    private static final CodeVisitorSupport SCOPE_RESET = new CodeVisitorSupport() {
+
+        @Override
+        public void visitVariableExpression(VariableExpression expression) {
+            if (expression.getAccessedVariable() != null && expression.getAccessedVariable() != expression) {
+                expression.setAccessedVariable(null);
+                expression.setClosureSharedVariable(false);
+            }
+        }
+
+        @Override
+        public void visitClosureExpression(ClosureExpression expression) {
+            expression.setVariableScope(null);
+            super.visitClosureExpression(expression);
+        }
+    };
+    /**
+     * Gives a generated statement the source position of the value
+     * of the closure it was made for.
+     */
+    protected static Statement at(Statement statement, Expression value) {
+        statement.setSourcePosition(value);
+        return statement;
+    }
+
+    protected void add(Statement statement) {
+        statements.add(statement);
+    }
+
+    @Override
+    public List<Statement> getStatements() {
+        return statements;
+    }
+}
@@ -0,0 +1,123 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the queries of a <code>parallel</code> block:
+ * <pre>
+ *   def results = datastore.parallel(deadline: 2.5) {
+ *       users: query { select all; from User; where active == true }
+ *       orders: query { select count; from Order }
+ *   }
+ *   results.users ...
+ *   results.orders ...
+ * </pre>
+ * The transformed block starts all the queries with @{link #start } one
+ * after another, so their datastore requests run at the same time, and
+ * then waits for them with @{link #getResults() }.
+ * <p/>
+ * The queries run on the receiver of <code>parallel</code> when it is an
+ * <code>AsyncDatastoreService</code>, otherwise on the asynchronous
+ * service of the <code>DatastoreServiceFactory</code>.
+ * <p/>
+ * The queries share one deadline, counted from the creation of the
+ * instance. Each query is started on a service whose
+ * <code>DatastoreServiceConfig</code> has the time left as its deadline,
+ * so the datastore doesn't answer a request after the deadline, and each
+ * result is waited for with the time left (see
+ * @{link QueryFuture#get(long, TimeUnit) }). A result which is not
+ * completed when the deadline expires is not waited for: a
+ * <code>DatastoreTimeoutException</code> is thrown instead. The
+ * configuration of a service cannot be read, so a receiver is replaced
+ * with a service of the factory when a deadline is given.
+ *
+ * @author V. Shyshkin
+ */
+public class ParallelQueries {
+
+    private final Object receiver;
+    /**
+     * The deadline as a value of <code>System.nanoTime()</code>.
+     */
+    private final long deadline;
+    private final boolean timed;
+    private final Map<String, Future<Object>> futures = new LinkedHashMap<String, Future<Object>>();
+
+    /**
+     * @param receiver the receiver of <code>parallel</code>, the
+     *   <code>datastore</code>, or <code>null</code> for
+     *   <code>Entitystore</code>
+     * @param deadline the deadline in seconds or <code>null</code> for the
+     *   default deadline of the datastore
+     */
+    public ParallelQueries(Object receiver, Number deadline) {
+        this.receiver = receiver;
+        this.timed = deadline != null;
+        this.deadline = timed ? System.nanoTime() + (long) (deadline.doubleValue() * 1000000000L) : 0;
+    }
+    /**
+     * @return the time left in nanoseconds, never negative
+     */
+    private long remaining() {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * Starts a query.
+     * @param name the label of the query in the block
+     * @param descriptor the shape of the query
+     * @param values the values of the parameters of the descriptor
+     * @return this object
+     */
+    public ParallelQueries start(String name, QueryDescriptor descriptor, Object[] values) {
+        AsyncDatastoreService service;
+        if (timed) {
+            long left = remaining();
+            if (left == 0) {
+                throw new DatastoreTimeoutException("The deadline of 'parallel' expired before the query '"
+                        + name + "' was started");
+            }
+            service = DatastoreServiceFactory.getAsyncDatastoreService(
+                    DatastoreServiceConfig.Builder.withDeadline(left / 1000000000.0));
+        } else {
+            service = QueryExecutor.asyncService(receiver);
+        }
+        futures.put(name, QueryExecutor.executeAsync(service, descriptor, values));
+        return this;
+    }
+    /**
+     * Waits for the queries in the order they were started.
+     * @return the results of the queries by their labels
+     */
+    public Map<String, Object> getResults() {
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Future<Object>> e : futures.entrySet()) {
+            try {
+                results.put(e.getKey(), timed
+                        ? e.getValue().get(remaining(), TimeUnit.NANOSECONDS)
+                        : e.getValue().get());
+            } catch (TimeoutException ex) {
+                throw new DatastoreTimeoutException("The deadline of 'parallel' expired before the query '"
+                        + e.getKey() + "' completed");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,122 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import groovy.lang.MetaBeanProperty;
+import groovy.lang.MetaProperty;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Copies the properties of entities into the objects of the class given
+ * by <code>from pojo as Person</code> for @{link QueryExecutor#each }.
+ * <p/>
+ * A property of the object gets the value of the entity property with the
+ * same name, or the key of the entity for a <code>key</code> property of a
+ * suitable type. A property the entity doesn't have gets the value it has
+ * in a new instance of the class.
+ * <p/>
+ * A new object is created for each entity unless the reuse is requested
+ * with <code>select each: {...}, reuse: true</code>. The same object is
+ * then passed for all the entities when every property of the class can
+ * be written and the initial values are <code>null</code> or immutable,
+ * and the consumer must not keep the object after it returns unless it
+ * copies it. The mapper cannot check that, so
+ * <code>select each: { p -&gt; list &lt;&lt; p }, reuse: true</code>
+ * would fill the list with the same object.
+ *
+ * @author V. Shyshkin
+ */
+class PojoMapper {
+
+    private final Class<?> pojoClass;
+    private final List<MetaProperty> properties = new ArrayList<MetaProperty>();
+    /**
+     * The values of the properties of a new instance.
+     */
+    private final List<Object> defaults = new ArrayList<Object>();
+    private final Object reused;
+
+    PojoMapper(Class<?> pojoClass) {
+        this(pojoClass, false);
+    }
+    /**
+     * @param reuse <code>true</code> to pass the same object for all the
+     *   entities when the class allows it
+     */
+    PojoMapper(Class<?> pojoClass, boolean reuse) {
+        this.pojoClass = pojoClass;
+        Object instance = newInstance();
+        boolean safe = reuse;
+        for (MetaProperty p : InvokerHelper.getMetaClass(pojoClass).getProperties()) {
+            if ("class".equals(p.getName()) || "metaClass".equals(p.getName())) {
+                continue;
+            }
+            if (!isWritable(p)) {
+                safe = false;
+                continue;
+            }
+            Object value = p.getProperty(instance);
+            safe &= isImmutable(value);
+            properties.add(p);
+            defaults.add(value);
+        }
+        reused = safe ? instance : null;
+    }
+
+    /**
+     * @return <code>true</code> if the same object is returned for
+     *   every entity
+     */
+    boolean isReused() {
+        return reused != null;
+    }
+
+    Object map(Entity entity) {
+        Object target = reused != null ? reused : newInstance();
+        for (int i = 0; i < properties.size(); i++) {
+            MetaProperty p = properties.get(i);
+            String name = p.getName();
+            Object value = defaults.get(i);
+            if (entity.hasProperty(name)) {
+                Object v = entity.getProperty(name);
+                if (v != null || !p.getType().isPrimitive()) {
+                    value = v;
+                }
+            } else if ("key".equals(name) && p.getType().isAssignableFrom(Key.class)) {
+                value = entity.getKey();
+            }
+            p.setProperty(target, value);
+        }
+        return target;
+    }
+
+    private Object newInstance() {
+        try {
+            return pojoClass.newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Can't create an instance of " + pojoClass.getName(), e);
+        }
+    }
+
+    private static boolean isWritable(MetaProperty p) {
+        if (p instanceof MetaBeanProperty) {
+            MetaBeanProperty bp = (MetaBeanProperty) p;
+            return bp.getSetter() != null
+                    || (bp.getField() != null && !Modifier.isFinal(bp.getField().getModifiers()));
+        }
+        return !Modifier.isFinal(p.getModifiers());
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null || value instanceof String || value instanceof Integer
+                || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof Double || value instanceof Float || value instanceof Boolean
+                || value instanceof Character || value instanceof BigDecimal
+                || value instanceof BigInteger || value instanceof Enum || value instanceof Key;
+    }
+}
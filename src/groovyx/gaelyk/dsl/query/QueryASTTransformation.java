@@ -9,6 +9,13 @@ import org.codehaus.groovy.ast.stmt.*;
 import java.util.List;
 
 /**
+ * Finds the "query DSL" closures of a source unit and transforms them.
+ * <p/>
+ * A source unit whose text doesn't mention a query receiver is skipped
+ * before its AST is walked (see @{link QuerySourceFilter}). The numbers
+ * of skipped and transformed units and the time of each phase of the
+ * transformation are counted by @{link TransformStatistics}.
+ *
  * @author V. Shyshkin
  */
 @GroovyASTTransformation(phase = CompilePhase.CONVERSION)
@@ -17,6 +24,10 @@ public class QueryASTTransformation implements ASTTransformation {
 
     @Override
     public void visit(ASTNode[] astNodes, SourceUnit sourceUnit) {
+        if (!QuerySourceFilter.mayContainQueries(sourceUnit)) {
+            TransformStatistics.unitSkipped(sourceUnit);
+            return;
+        }
         ModuleNode moduleNode = sourceUnit.getAST();
 
         List<ClassNode> classes = null;
@@ -28,6 +39,9 @@ public class QueryASTTransformation implements ASTTransformation {
         classes = moduleNode.getClasses();
 
         QueryTransformer queryTransformer = new QueryTransformer(sourceUnit);
+        TransformStatistics.Unit statistics = new TransformStatistics.Unit(sourceUnit.getName());
+        queryTransformer.setStatistics(statistics);
+        long start = System.nanoTime();
         //ClosureVisitorSupport visitorSupport = new ClosureVisitorSupport();
         MethodCallVisitorSupport visitorSupport = new MethodCallVisitorSupport();
         /*
@@ -37,6 +51,7 @@ public class QueryASTTransformation implements ASTTransformation {
         visitorSupport.addVisitClosureHandler(queryTransformer);
 
         for (ClassNode classNode : classes) {
+            queryTransformer.setCurrentClass(classNode);
             /* ========================================================
              * Walk trough all fields, definded in the class classNode.
              * They may contain init expressions with a method calls
@@ -69,7 +84,12 @@ public class QueryASTTransformation implements ASTTransformation {
             }
             
         }
+        queryTransformer.setCalls(visitorSupport.getCalls());
+        queryTransformer.setParallelCalls(visitorSupport.getParallelCalls());
+        statistics.add(TransformStatistics.Phase.VISIT, System.nanoTime() - start);
         queryTransformer.transform();
+        statistics.setClosures(queryTransformer.getClosureCount());
+        TransformStatistics.unitVisited(sourceUnit, statistics);
 
     }//visit
 
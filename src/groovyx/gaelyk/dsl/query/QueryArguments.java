@@ -0,0 +1,53 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The argument a @{link CompiledQuery} passes to the closure of
+ * <code>defineQuery</code> on each execution: the datastore service and
+ * the named values given to @{link CompiledQuery#execute(java.util.Map) }.
+ * <p/>
+ * The transformed closure reads a value with @{link #get} when the name
+ * is bound (see @{link #has}) and uses the expression of the closure
+ * otherwise.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryArguments {
+
+    private final DatastoreService service;
+    private final Map<String, ?> values;
+
+    public QueryArguments(DatastoreService service, Map<String, ?> values) {
+        this.service = service;
+        this.values = values == null ? Collections.<String, Object>emptyMap() : values;
+    }
+
+    public DatastoreService getService() {
+        return service;
+    }
+    /**
+     * @return <code>true</code> if a value is bound to the name, even
+     *   if the value is <code>null</code>
+     */
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+    /**
+     * @return the value bound to the name or <code>null</code>
+     */
+    public Object get(String name) {
+        return values.get(name);
+    }
+    /**
+     * Lets the code which expects the datastore service as the closure
+     * parameter (see @{link StringQueryEmitter}) run unchanged.
+     */
+    public PreparedQuery prepare(Query query) {
+        return service.prepare(query);
+    }
+}
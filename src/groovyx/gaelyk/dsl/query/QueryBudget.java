@@ -0,0 +1,179 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.FetchOptions;
+import java.util.logging.Logger;
+
+/**
+ * Estimates the datastore operations the queries are billed for and limits
+ * them for a request.
+ * <p/>
+ * The estimate follows the billing of the datastore: a query, and each
+ * sub-query of an <code>IN</code>, <code>!=</code> or <code>||</code>
+ * filter, costs one read; each entity read costs one more read, each key
+ * of a keys only query one small operation. A count is run as a keys only
+ * query. The entities which are read but not returned, skipped by the
+ * <code>offset</code> or returned by more than one sub-query, are counted
+ * too. The whole offset is charged, also when fewer entities match.
+ * <p/>
+ * A query which returns a lazy <code>Iterable</code>, iterator or
+ * <code>cursor pages</code> is charged one read for the query itself
+ * only, however many entities are iterated: they are fetched after the
+ * query returns, out of sight of the executor. Such a query should set a
+ * <code>limit</code> to keep its cost bounded.
+ * <p/>
+ * The cost of each run of a query is added to the site of the query in
+ * @{link QueryMetrics} and to the budget of the current thread, if any:
+ * <pre>
+ *   QueryBudget.begin(500, 0, QueryBudget.Action.THROW)
+ *   try {
+ *       ...
+ *   } finally {
+ *       QueryBudget.end()
+ *   }
+ * </pre>
+ * When a limit is exceeded the budget logs a warning, once, or throws an
+ * @{link ExceededException} from the query which exceeded it. The costs
+ * are charged by the queries run by @{link QueryExecutor#execute } and
+ * @{link QueryExecutor#executeAsync }.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryBudget {
+
+    public enum Action {
+
+        LOG, THROW
+    }
+
+    private static final Logger logger = Logger.getLogger(QueryBudget.class.getName());
+    private static final ThreadLocal<QueryBudget> current = new ThreadLocal<QueryBudget>();
+
+    private final long maxReads;
+    private final long maxSmallOps;
+    private final Action action;
+    private long queries;
+    private long reads;
+    private long smallOps;
+    private boolean exceeded;
+
+    QueryBudget(long maxReads, long maxSmallOps, Action action) {
+        this.maxReads = maxReads;
+        this.maxSmallOps = maxSmallOps;
+        this.action = action;
+    }
+
+    /**
+     * Thrown by a query which exceeds the budget of the request.
+     */
+    public static class ExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Starts a budget for the current thread, replacing the one it had.
+     * @param maxReads the number of reads allowed or zero for no limit
+     * @param maxSmallOps the number of small operations allowed or zero
+     *   for no limit
+     */
+    public static QueryBudget begin(long maxReads, long maxSmallOps, Action action) {
+        QueryBudget budget = new QueryBudget(maxReads, maxSmallOps, action);
+        current.set(budget);
+        return budget;
+    }
+    /**
+     * @return the budget of the current thread or <code>null</code>
+     */
+    public static QueryBudget current() {
+        return current.get();
+    }
+    /**
+     * Ends the budget of the current thread.
+     * @return the ended budget or <code>null</code>
+     */
+    public static QueryBudget end() {
+        QueryBudget budget = current.get();
+        current.remove();
+        return budget;
+    }
+
+    public synchronized long getQueries() {
+        return queries;
+    }
+
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    public synchronized long getSmallOps() {
+        return smallOps;
+    }
+
+    public synchronized boolean isExceeded() {
+        return exceeded;
+    }
+
+    synchronized void add(String site, int queries, int reads, int smallOps) {
+        this.queries += queries;
+        this.reads += reads;
+        this.smallOps += smallOps;
+        boolean over = maxReads > 0 && this.reads > maxReads
+                || maxSmallOps > 0 && this.smallOps > maxSmallOps;
+        if (!over) {
+            return;
+        }
+        String message = "The query at " + site + " exceeds the budget of the request: "
+                + this.reads + " reads (" + (maxReads > 0 ? maxReads : "no limit") + "), "
+                + this.smallOps + " small operations (" + (maxSmallOps > 0 ? maxSmallOps : "no limit") + ")";
+        if (action == Action.THROW) {
+            exceeded = true;
+            throw new ExceededException(message);
+        }
+        if (!exceeded) {
+            exceeded = true;
+            logger.warning(message);
+        }
+    }
+
+    /**
+     * Charges a run of a query with the number of entities it returned
+     * and the ones skipped by its <code>offset</code>. A lazy result is
+     * charged for the query only.
+     *
+     * @param values the values of the parameters of the descriptor
+     * @param result the value the query returned
+     */
+    static void charge(QueryDescriptor descriptor, Object[] values, Object result) {
+        boolean keys = descriptor.isKeysOnly() || descriptor.getResult() == QueryDescriptor.Result.COUNT;
+        int count = QueryMetrics.count(result);
+        if (count < 0) {
+            charge(descriptor, 1, 0, keys);
+            return;
+        }
+        int skipped = 0;
+        if (descriptor.getResult() != QueryDescriptor.Result.SINGLE) {
+            FetchOptions options = descriptor.createFetchOptions(values);
+            skipped = options.getOffset() == null ? 0 : options.getOffset();
+        }
+        charge(descriptor, 1, count + skipped, keys);
+    }
+    /**
+     * Charges a run of a query.
+     * @param queries the number of queries and sub-queries run
+     * @param fetched the number of entities or keys read
+     * @param keys <code>true</code> when the queries are keys only
+     */
+    static void charge(QueryDescriptor descriptor, int queries, int fetched, boolean keys) {
+        int reads = queries + (keys ? 0 : fetched);
+        int small = keys ? fetched : 0;
+        descriptor.getMetrics().cost(queries, reads, small);
+        QueryBudget budget = current.get();
+        if (budget != null) {
+            budget.add(descriptor.getSite(), queries, reads, small);
+        }
+    }
+}
@@ -0,0 +1,669 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import groovy.lang.Closure;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * The shape of a query of a "query DSL" closure: the kind, the filters,
+ * the sort orders, the options and what the query returns.
+ * <p/>
+ * A descriptor is created by the transformed code once for each closure
+ * and is stored in a static field of the class that owns the closure:
+ * <pre>
+ *   new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+ *       .filter('age', Query.FilterOperator.GREATER_THAN_OR_EQUAL)
+ *       .sort('age', Query.SortDirection.DESCENDING)
+ *       .option('limit', 10)
+ * </pre>
+ * A part given without a constant is a parameter. Its value is taken
+ * from the array passed to @{link QueryExecutor#execute } at the position
+ * of the parameter among all parameters of the descriptor, in the
+ * order they were declared.
+ * <p/>
+ * A descriptor is configured only by the initializer of the field, so it
+ * is never changed while it is shared by the threads. When no option is a
+ * parameter, the <code>FetchOptions</code> is built once. The
+ * <code>Query</code> is built for each run: it takes the namespace of the
+ * <code>NamespaceManager</code> when it is constructed, so the same
+ * descriptor may run in the namespaces of different requests.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryDescriptor {
+
+    /**
+     * What the query returns.
+     */
+    public enum Result {
+        /**
+         * <code>select all</code>, <code>select keys</code>
+         */
+        LIST,
+        /**
+         * <code>select single</code>
+         */
+        SINGLE,
+        /**
+         * <code>select count</code>
+         */
+        COUNT,
+        /**
+         * <code>cursor all</code>, <code>cursor keys</code>: a list with
+         * a cursor to the next page
+         */
+        PAGE,
+        /**
+         * <code>select iterate</code>: an <code>Iterable</code> which
+         * fetches the entities in batches while it is iterated
+         */
+        ITERABLE,
+        /**
+         * <code>cursor iterate</code>: a <code>QueryResultIterator</code>
+         * with a cursor to the current position
+         */
+        ITERATOR,
+        /**
+         * <code>cursor pages</code>: the @{link QueryPages} of the size
+         * of the <code>limit</code>
+         */
+        PAGES,
+        /**
+         * <code>select each: {...}</code>: the number of entities passed
+         * to the consumer
+         */
+        EACH
+    }
+
+    /**
+     * The fetch options a descriptor may have.
+     */
+    public enum Option {
+
+        LIMIT("limit"), OFFSET("offset"), CHUNK_SIZE("chunkSize"),
+        PREFETCH_SIZE("prefetchSize"), START_CURSOR("startCursor"),
+        /**
+         * Not a fetch option: the number of pages of
+         * <code>cursor pages</code> requested at once
+         */
+        PREFETCH_PAGES("prefetchPages");
+
+        private final String name;
+
+        private Option(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Option forName(String name) {
+            for (Option o : values()) {
+                if (o.name.equals(name)) {
+                    return o;
+                }
+            }
+            throw new IllegalArgumentException("Unknown query option '" + name + "'");
+        }
+    }
+
+    /**
+     * A constant or a reference to an element of the parameter array.
+     */
+    static class Value {
+
+        final int index;
+        final Object constant;
+
+        Value(int index, Object constant) {
+            this.index = index;
+            this.constant = constant;
+        }
+
+        Object get(Object[] values) {
+            return index < 0 ? constant : values[index];
+        }
+
+        boolean isParameter() {
+            return index >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return index < 0 ? String.valueOf(constant) : "?" + (index + 1);
+        }
+    }
+
+    static class Filter {
+
+        final String property;
+        final Query.FilterOperator operator;
+        final Value value;
+        /**
+         * The disjunction the filter belongs to or <code>-1</code>.
+         */
+        int group = -1;
+        /**
+         * The position of the disjunct within the disjunction.
+         */
+        int branch;
+
+        Filter(String property, Query.FilterOperator operator, Value value) {
+            this.property = property;
+            this.operator = operator;
+            this.value = value;
+        }
+    }
+
+    static class Sort {
+
+        final String property;
+        final Query.SortDirection direction;
+
+        Sort(String property, Query.SortDirection direction) {
+            this.property = property;
+            this.direction = direction;
+        }
+    }
+
+    private final String kind;
+    private final Result result;
+    private final boolean keysOnly;
+    final List<Filter> filters = new ArrayList<Filter>();
+    final List<Sort> sorts = new ArrayList<Sort>();
+    final Value[] options = new Value[Option.values().length];
+    Value ancestor;
+    Value consumer;
+    private Class<?> pojoClass;
+    private boolean reuse;
+    private int group = -1;
+    private int branch;
+    private String site;
+    private volatile QueryMetrics.Site metrics;
+    /**
+     * The number of parameters.
+     */
+    private int parameterCount;
+    private volatile FetchOptions constantFetchOptions;
+
+    /**
+     * @param kind the kind or <code>null</code> for a kindless query
+     */
+    public QueryDescriptor(String kind, Result result, boolean keysOnly) {
+        this.kind = kind;
+        this.result = result;
+        this.keysOnly = keysOnly;
+    }
+
+    private Value parameter() {
+        return new Value(parameterCount++, null);
+    }
+
+    private QueryDescriptor add(Filter filter) {
+        filter.group = group;
+        filter.branch = branch;
+        filters.add(filter);
+        return this;
+    }
+
+    public QueryDescriptor filter(String property, Query.FilterOperator operator) {
+        return add(new Filter(property, operator, parameter()));
+    }
+
+    public QueryDescriptor filter(String property, Query.FilterOperator operator, Object constant) {
+        return add(new Filter(property, operator, new Value(-1, constant)));
+    }
+    /**
+     * The filters which follow belong to a disjunct of
+     * <code>where (a == 1) || (b == 2)</code>. The filters of a disjunct
+     * are combined with <code>AND</code>, the disjuncts of a group with
+     * <code>OR</code>, and the groups with the other filters
+     * with <code>AND</code>.
+     *
+     * @param group the number of the disjunction within the query
+     * @param branch the number of the disjunct within the disjunction
+     */
+    public QueryDescriptor disjunct(int group, int branch) {
+        this.group = group;
+        this.branch = branch;
+        return this;
+    }
+    /**
+     * Ends the disjunction started by @{link #disjunct }.
+     */
+    public QueryDescriptor conjunct() {
+        group = -1;
+        branch = 0;
+        return this;
+    }
+
+    public QueryDescriptor sort(String property, Query.SortDirection direction) {
+        sorts.add(new Sort(property, direction));
+        return this;
+    }
+
+    public QueryDescriptor option(String name) {
+        options[Option.forName(name).ordinal()] = parameter();
+        return this;
+    }
+
+    public QueryDescriptor option(String name, Object constant) {
+        options[Option.forName(name).ordinal()] = new Value(-1, constant);
+        return this;
+    }
+    /**
+     * Declares the ancestor parameter: a <code>Key</code>, an
+     * <code>Entity</code> or an object with a <code>key</code> property.
+     * The ancestor is not set when the value is <code>null</code>.
+     */
+    public QueryDescriptor ancestor() {
+        ancestor = parameter();
+        return this;
+    }
+
+    /**
+     * Declares the consumer parameter of <code>select each: {...}</code>.
+     * @param pojoClass the class the entities are mapped to or
+     *   <code>null</code> to pass the entities themselves
+     */
+    public QueryDescriptor each(Class<?> pojoClass) {
+        return each(pojoClass, false);
+    }
+    /**
+     * @param reuse <code>true</code> for <code>reuse: true</code>: the
+     *   object the entities are mapped to may be the same for all of them
+     *   (see @{link PojoMapper})
+     */
+    public QueryDescriptor each(Class<?> pojoClass, boolean reuse) {
+        consumer = parameter();
+        this.pojoClass = pojoClass;
+        this.reuse = reuse;
+        return this;
+    }
+
+    public QueryDescriptor each() {
+        return each(null);
+    }
+    /**
+     * @param site the name of the place in the source the query comes
+     *   from, such as <code>persons.groovy:12:5</code>
+     */
+    public QueryDescriptor site(String site) {
+        this.site = site;
+        return this;
+    }
+    /**
+     * @return the name given by @{link #site(String) } or the text of the
+     *   query
+     */
+    public String getSite() {
+        return site != null ? site : toString();
+    }
+    /**
+     * @return the counters of the site, looked up on the first call
+     */
+    QueryMetrics.Site getMetrics() {
+        QueryMetrics.Site result = metrics;
+        if (result == null) {
+            result = QueryMetrics.site(getSite());
+            metrics = result;
+        }
+        return result;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    public boolean isKeysOnly() {
+        return keysOnly;
+    }
+
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    public Class<?> getPojoClass() {
+        return pojoClass;
+    }
+
+    public boolean isReuse() {
+        return reuse;
+    }
+    /**
+     * @param values the values of the parameters
+     * @return the consumer of <code>select each: {...}</code>
+     */
+    public Closure<?> getConsumer(Object[] values) {
+        return consumer == null ? null : (Closure<?>) consumer.get(values);
+    }
+    /**
+     * @param values the values of the parameters
+     * @return a new query for the given values in the current namespace
+     */
+    public Query createQuery(Object[] values) {
+        return buildQuery(values, keysOnly);
+    }
+    /**
+     * @param values the values of the parameters
+     * @return a new keys only query for the given values, used to count
+     *   the entities of the query
+     */
+    public Query createKeysOnlyQuery(Object[] values) {
+        return buildQuery(values, true);
+    }
+
+    /**
+     * @return <code>true</code> if the query has an <code>IN</code> or a
+     *   <code>NOT_EQUAL</code> filter or a disjunction and is executed as
+     *   several queries
+     */
+    public boolean isMultiQuery() {
+        for (Filter f : filters) {
+            if (f.operator == Query.FilterOperator.IN || f.operator == Query.FilterOperator.NOT_EQUAL
+                    || f.group >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Splits a query with <code>IN</code> and <code>NOT_EQUAL</code>
+     * filters into queries with simple filters: a query for each value of
+     * an <code>IN</code> filter, and the <code>LESS_THAN</code> and
+     * <code>GREATER_THAN</code> queries for a <code>NOT_EQUAL</code>
+     * filter. A disjunction gives the queries of each of its disjuncts.
+     * Several such filters give all the combinations.
+     *
+     * @param values the values of the parameters
+     * @param keys <code>true</code> for keys only queries
+     * @return the queries, empty when an <code>IN</code> list is empty
+     */
+    public List<Query> createSubQueries(Object[] values, boolean keys) {
+        List<List<Filter>> combinations = new ArrayList<List<Filter>>();
+        combinations.add(new ArrayList<Filter>());
+        Map<Integer, Map<Integer, List<Filter>>> groups = new LinkedHashMap<Integer, Map<Integer, List<Filter>>>();
+        for (Filter f : filters) {
+            if (f.group < 0) {
+                combinations = combine(combinations, alternatives(f, values));
+                continue;
+            }
+            Map<Integer, List<Filter>> branches = groups.get(f.group);
+            if (branches == null) {
+                branches = new LinkedHashMap<Integer, List<Filter>>();
+                groups.put(f.group, branches);
+            }
+            List<Filter> branchFilters = branches.get(f.branch);
+            if (branchFilters == null) {
+                branchFilters = new ArrayList<Filter>();
+                branches.put(f.branch, branchFilters);
+            }
+            branchFilters.add(f);
+        }
+        for (Map<Integer, List<Filter>> branches : groups.values()) {
+            List<List<Filter>> alternatives = new ArrayList<List<Filter>>();
+            for (List<Filter> branchFilters : branches.values()) {
+                List<List<Filter>> branchCombinations = new ArrayList<List<Filter>>();
+                branchCombinations.add(new ArrayList<Filter>());
+                for (Filter f : branchFilters) {
+                    branchCombinations = combine(branchCombinations, alternatives(f, values));
+                }
+                alternatives.addAll(branchCombinations);
+            }
+            combinations = combine(combinations, alternatives);
+        }
+        List<Query> queries = new ArrayList<Query>(combinations.size());
+        for (List<Filter> c : combinations) {
+            queries.add(buildQuery(values, keys, c));
+        }
+        return queries;
+    }
+    /**
+     * @return the simple filters one of which replaces the filter
+     */
+    private static List<List<Filter>> alternatives(Filter f, Object[] values) {
+        Object value = f.value.get(values);
+        List<List<Filter>> alternatives = new ArrayList<List<Filter>>();
+        if (f.operator == Query.FilterOperator.IN) {
+            for (Object v : toSet(value)) {
+                alternatives.add(Collections.singletonList(new Filter(f.property, Query.FilterOperator.EQUAL, new Value(-1, v))));
+            }
+        } else if (f.operator == Query.FilterOperator.NOT_EQUAL) {
+            alternatives.add(Collections.singletonList(new Filter(f.property, Query.FilterOperator.LESS_THAN, new Value(-1, value))));
+            alternatives.add(Collections.singletonList(new Filter(f.property, Query.FilterOperator.GREATER_THAN, new Value(-1, value))));
+        } else {
+            alternatives.add(Collections.singletonList(new Filter(f.property, f.operator, new Value(-1, value))));
+        }
+        return alternatives;
+    }
+    /**
+     * @return each of the combinations followed by each of the alternatives
+     */
+    private static List<List<Filter>> combine(List<List<Filter>> combinations, List<List<Filter>> alternatives) {
+        List<List<Filter>> result = new ArrayList<List<Filter>>(combinations.size() * alternatives.size());
+        for (List<Filter> c : combinations) {
+            for (List<Filter> a : alternatives) {
+                List<Filter> list = new ArrayList<Filter>(c);
+                list.addAll(a);
+                result.add(list);
+            }
+        }
+        return result;
+    }
+    /**
+     * @return the sort orders the entities of the query come in: the sort
+     *   orders of the descriptor or, when there are none, the ascending
+     *   order of the property of an inequality filter. <code>null</code>
+     *   when there are no sort orders and an inequality filter is in a
+     *   disjunct, so that the sub-queries come in different orders
+     */
+    List<Sort> getEffectiveSorts() {
+        if (!sorts.isEmpty()) {
+            return sorts;
+        }
+        for (Filter f : filters) {
+            if (f.group >= 0 && f.operator != Query.FilterOperator.EQUAL && f.operator != Query.FilterOperator.IN) {
+                return null;
+            }
+        }
+        for (Filter f : filters) {
+            if (f.operator != Query.FilterOperator.EQUAL && f.operator != Query.FilterOperator.IN) {
+                return Collections.singletonList(new Sort(f.property, Query.SortDirection.ASCENDING));
+            }
+        }
+        return sorts;
+    }
+
+    private static Collection<?> toSet(Object value) {
+        if (value instanceof Collection) {
+            return new LinkedHashSet<Object>((Collection<?>) value);
+        }
+        if (value instanceof Object[]) {
+            return new LinkedHashSet<Object>(Arrays.asList((Object[]) value));
+        }
+        return Collections.singleton(value);
+    }
+
+    private Query buildQuery(Object[] values, boolean keys) {
+        return buildQuery(values, keys, filters);
+    }
+
+    private Query buildQuery(Object[] values, boolean keys, List<Filter> filterList) {
+        Query query = kind == null ? new Query() : new Query(kind);
+        if (ancestor != null) {
+            Key key = toKey(ancestor.get(values));
+            if (key != null) {
+                query.setAncestor(key);
+            }
+        }
+        if (keys) {
+            query.setKeysOnly();
+        }
+        for (Filter f : filterList) {
+            query.addFilter(f.property, f.operator, f.value.get(values));
+        }
+        for (Sort s : sorts) {
+            query.addSort(s.property, s.direction);
+        }
+        return query;
+    }
+    /**
+     * <code>limit</code> and <code>offset</code> are applied unless their
+     * values are <code>null</code>, <code>chunkSize</code> and
+     * <code>prefetchSize</code> unless their values are <code>null</code>
+     * or zero. The start cursor is either a <code>Cursor</code> or its web
+     * safe string.
+     * @param values the values of the parameters
+     * @return fetch options for the given values. The same instance for
+     *   every call when the options have no parameters; it must not be
+     *   modified
+     */
+    public FetchOptions createFetchOptions(Object[] values) {
+        FetchOptions fetchOptions = constantFetchOptions;
+        if (fetchOptions != null) {
+            return fetchOptions;
+        }
+        fetchOptions = FetchOptions.Builder.withDefaults();
+        boolean constant = true;
+        for (Option o : Option.values()) {
+            Value v = options[o.ordinal()];
+            if (v == null || o == Option.PREFETCH_PAGES) {
+                continue;
+            }
+            constant &= !v.isParameter();
+            Object value = v.get(values);
+            if (value == null) {
+                continue;
+            }
+            switch (o) {
+                case LIMIT:
+                    fetchOptions.limit(toInt(value));
+                    break;
+                case OFFSET:
+                    fetchOptions.offset(toInt(value));
+                    break;
+                case CHUNK_SIZE:
+                    if (toInt(value) != 0) {
+                        fetchOptions.chunkSize(toInt(value));
+                    }
+                    break;
+                case PREFETCH_SIZE:
+                    if (toInt(value) != 0) {
+                        fetchOptions.prefetchSize(toInt(value));
+                    }
+                    break;
+                case START_CURSOR:
+                    Cursor cursor = toCursor(value);
+                    if (cursor != null) {
+                        fetchOptions.startCursor(cursor);
+                    }
+                    break;
+            }
+        }
+        if (constant) {
+            constantFetchOptions = fetchOptions;
+        }
+        return fetchOptions;
+    }
+
+    /**
+     * @param values the values of the parameters
+     * @return the value of <code>prefetchPages</code> or <code>null</code>
+     */
+    public Number getPrefetchPages(Object[] values) {
+        Value v = options[Option.PREFETCH_PAGES.ordinal()];
+        return v == null ? null : (Number) v.get(values);
+    }
+
+    private static int toInt(Object value) {
+        return ((Number) value).intValue();
+    }
+
+    private static Key toKey(Object value) {
+        if (value == null || value instanceof Key) {
+            return (Key) value;
+        }
+        if (value instanceof Entity) {
+            return ((Entity) value).getKey();
+        }
+        return (Key) InvokerHelper.getProperty(value, "key");
+    }
+
+    private static Cursor toCursor(Object value) {
+        if (value instanceof Cursor) {
+            return (Cursor) value;
+        }
+        if (value instanceof String) {
+            String s = ((String) value).trim();
+            if (s.length() > 0 && !"null".equals(s)) {
+                return Cursor.fromWebSafeString(s);
+            }
+        }
+        return null;
+    }
+    /**
+     * @return the query in a GQL like form with the parameters written
+     *   as <code>?1</code>, <code>?2</code> and so on
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SELECT ");
+        sb.append(result == Result.COUNT ? "COUNT(*)" : keysOnly ? "__key__" : "*");
+        if (kind != null) {
+            sb.append(" FROM ").append(kind);
+        }
+        String sep = " WHERE ";
+        if (ancestor != null) {
+            sb.append(sep).append("ANCESTOR IS ").append(ancestor);
+            sep = " AND ";
+        }
+        Filter previous = null;
+        for (Filter f : filters) {
+            if (previous != null && previous.group >= 0 && previous.group == f.group) {
+                sb.append(previous.branch == f.branch ? " AND " : " OR ");
+            } else {
+                if (previous != null && previous.group >= 0) {
+                    sb.append(')');
+                }
+                sb.append(sep);
+                if (f.group >= 0) {
+                    sb.append('(');
+                }
+            }
+            sb.append(f.property).append(' ').append(f.operator).append(' ').append(f.value);
+            sep = " AND ";
+            previous = f;
+        }
+        if (previous != null && previous.group >= 0) {
+            sb.append(')');
+        }
+        sep = " ORDER BY ";
+        for (Sort s : sorts) {
+            sb.append(sep).append(s.property).append(s.direction == Query.SortDirection.DESCENDING ? " DESC" : "");
+            sep = ", ";
+        }
+        for (Option o : Option.values()) {
+            if (options[o.ordinal()] != null) {
+                sb.append(' ').append(o.getName()).append(' ').append(options[o.ordinal()]);
+            }
+        }
+        return sb.toString();
+    }
+}
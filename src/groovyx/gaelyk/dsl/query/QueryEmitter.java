@@ -0,0 +1,75 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.List;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.stmt.Statement;
+
+/**
+ * The classes that implement this interface produce the code of a
+ * transformed "query DSL" closure.
+ * <p/>
+ * @{link QueryTransformer} validates the statements of the closure and
+ * calls the methods of the emitter in the order the code must be
+ * executed. All names passed to the methods are the names without
+ * the @{link Helper#NAME_SUFFIX}.
+ *
+ * @see StringQueryEmitter
+ * @see NodeQueryEmitter
+ * @author V. Shyshkin
+ */
+public interface QueryEmitter {
+    /**
+     * Emits declarations of the internal variables.
+     */
+    void begin();
+    /**
+     * Emits <code>name__123 = 'value'</code>.
+     */
+    void assignConstant(String name, String value);
+    /**
+     * Emits <code>name__123 = className</code>.
+     */
+    void assignClass(String name, String className);
+    /**
+     * Emits <code>name__123 = value</code> where the value is
+     * an expression of the closure.
+     */
+    void assignValue(String name, Expression value);
+    /**
+     * Emits <code>fetchOptions__123.name(name__123)</code>.
+     */
+    void applyFetchOption(String name);
+    /**
+     * Emits the code which follows the <code>options</code> statement.
+     */
+    void endFetchOptions();
+    /**
+     * Emits the code which follows the <code>from</code> statement.
+     */
+    void endFrom();
+    /**
+     * Emits <code>query__123.addFilter(...)</code>.
+     * @param fieldName the name of the property
+     * @param keyProperty <code>true</code> when the filter is on
+     *   <code>Entity.KEY_RESERVED_PROPERTY</code>
+     * @param operation for example <code>Query.FilterOperator.EQUAL</code>
+     * @param value the right side of the <code>where</code> predicate
+     */
+    void addFilter(String fieldName, boolean keyProperty, String operation, Expression value);
+    /**
+     * Emits <code>query__123.addSort(...)</code>.
+     * @param fieldName the name of the property
+     * @param keyProperty <code>true</code> when the sort is on
+     *   <code>Entity.KEY_RESERVED_PROPERTY</code>
+     * @param direction for example <code>Query.SortDirection.ASCENDING</code>
+     */
+    void addSort(String fieldName, boolean keyProperty, String direction);
+    /**
+     * Emits the code that prepares and executes the query.
+     */
+    void end();
+    /**
+     * @return the statements to replace the code of the closure
+     */
+    List<Statement> getStatements();
+}
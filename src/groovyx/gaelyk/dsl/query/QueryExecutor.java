@@ -0,0 +1,284 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.BaseDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import groovy.lang.Closure;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+
+/**
+ * Executes the queries of the "query DSL" closures.
+ * <p/>
+ * The code of a transformed closure is a single call
+ * <pre>
+ *   QueryExecutor.execute((DatastoreService) it, Owner.hoistedDescriptor0__123, [minAge] as Object[])
+ * </pre>
+ * with the @{link QueryDescriptor} of the closure and the values of its
+ * parameters. Building and running the query is done here by the compiled
+ * code, so the classes that contain queries stay small and the same code
+ * is shared by all the queries of an application.
+ * <p/>
+ * In the adaptive mode of the @{link FetchSizeTuner} the fetch sizes of
+ * a query which doesn't set them are chosen from the earlier runs of the
+ * same closure. The runs are recorded by the @{link QueryMetrics} and,
+ * when they are slow or sampled, by the @{link SlowQueryLog}.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryExecutor {
+
+    private QueryExecutor() {
+    }
+    /**
+     * @param service the datastore service
+     * @param descriptor the shape of the query
+     * @param values the values of the parameters of the descriptor
+     * @return a <code>List</code> of entities, a <code>QueryResultList</code>,
+     *   a single entity, the number of entities, a lazy
+     *   <code>Iterable</code> or <code>QueryResultIterator</code>, the
+     *   @{link QueryPages} or the
+     *   number of entities passed to a consumer as requested by the
+     *   @{link QueryDescriptor#getResult() }
+     */
+    public static Object execute(DatastoreService service, QueryDescriptor descriptor, Object... values) {
+        QueryMetrics.Site metrics = descriptor.getMetrics();
+        long start = System.nanoTime();
+        //
+        // The options the query is run with, logged as they are
+        //
+        FetchOptions options = null;
+        try {
+            Object result;
+            if (QueryMerger.canMerge(descriptor)) {
+                result = executeMerged(service, descriptor, values);
+            } else {
+                boolean adaptive = FetchSizeTuner.isEnabled()
+                        && descriptor.getResult() != QueryDescriptor.Result.PAGES;
+                if (descriptor.getResult() != QueryDescriptor.Result.SINGLE) {
+                    options = fetchOptions(descriptor, values, adaptive);
+                }
+                result = run(service, descriptor, values, options, adaptive, start);
+            }
+            long nanos = System.nanoTime() - start;
+            metrics.success(nanos, QueryMetrics.count(result));
+            SlowQueryLog.record(descriptor, values, options, nanos, null);
+            return result;
+        } catch (RuntimeException e) {
+            long nanos = System.nanoTime() - start;
+            metrics.failure(nanos);
+            SlowQueryLog.record(descriptor, values, options, nanos, e);
+            throw e;
+        }
+    }
+    /**
+     * @param options the options of the descriptor, with the sizes chosen
+     *   by the @{link FetchSizeTuner} in the adaptive mode, or
+     *   <code>null</code> for a single entity
+     */
+    private static Object run(DatastoreService service, QueryDescriptor descriptor, Object[] values,
+            FetchOptions options, boolean adaptive, long start) {
+        if (descriptor.getResult() == QueryDescriptor.Result.PAGES) {
+            //
+            // The pages prepare the query themselves
+            //
+            Object result = pages(service, descriptor.createQuery(values), options,
+                    descriptor.getPrefetchPages(values));
+            QueryBudget.charge(descriptor, values, result);
+            return result;
+        }
+        PreparedQuery prepared = service.prepare(descriptor.createQuery(values));
+        Object result;
+        switch (descriptor.getResult()) {
+            case SINGLE:
+                result = prepared.asSingleEntity();
+                break;
+            case COUNT:
+                result = prepared.countEntities(options);
+                break;
+            case PAGE:
+                result = prepared.asQueryResultList(options);
+                break;
+            case ITERABLE:
+                result = prepared.asIterable(options);
+                break;
+            case ITERATOR:
+                result = prepared.asQueryResultIterator(options);
+                break;
+            case EACH:
+                result = each(prepared.asIterable(options).iterator(),
+                        descriptor.getPojoClass(), descriptor.isReuse(), descriptor.getConsumer(values));
+                break;
+            default:
+                result = prepared.asList(options);
+        }
+        if (adaptive) {
+            FetchSizeTuner.record(descriptor, result, start);
+        }
+        QueryBudget.charge(descriptor, values, result);
+        return result;
+    }
+    /**
+     * @return the options of the descriptor with the sizes chosen by the
+     *   @{link FetchSizeTuner} in the adaptive mode
+     */
+    private static FetchOptions fetchOptions(QueryDescriptor descriptor, Object[] values, boolean adaptive) {
+        FetchOptions options = descriptor.createFetchOptions(values);
+        return adaptive ? FetchSizeTuner.tune(descriptor, options) : options;
+    }
+    /**
+     * Starts the pages of <code>cursor pages</code>.
+     *
+     * @param service the datastore service
+     * @param query the query
+     * @param options the options with the size of a page as the
+     *   <code>limit</code>
+     * @param prefetchPages the number of pages requested at once or
+     *   <code>null</code>
+     * @return the pages
+     */
+    public static QueryPages pages(BaseDatastoreService service, Query query, FetchOptions options,
+            Object prefetchPages) {
+        return new QueryPages(service, query, options, (Number) prefetchPages);
+    }
+    /**
+     * Executes a query with <code>IN</code> or <code>!=</code> filters
+     * with a @{link QueryMerger}.
+     */
+    static Object executeMerged(final BaseDatastoreService service, final QueryDescriptor descriptor,
+            final Object[] values) {
+        if (descriptor.getResult() == QueryDescriptor.Result.ITERABLE) {
+            return new Iterable<Entity>() {
+
+                @Override
+                public Iterator<Entity> iterator() {
+                    QueryMerger merger = QueryMerger.open(service, descriptor, values);
+                    merger.charge(descriptor);
+                    return merger;
+                }
+            };
+        }
+        QueryMerger merger = QueryMerger.open(service, descriptor, values);
+        Object result = complete(descriptor, values, merger);
+        merger.charge(descriptor);
+        return result;
+    }
+    /**
+     * Reads the entities of a started query and makes the value the
+     * query returns.
+     *
+     * @param descriptor the shape of the query
+     * @param values the values of the parameters of the descriptor
+     * @param results the entities. A <code>QueryResultIterator</code>
+     *   for a <code>PAGE</code> result
+     * @return the value for the @{link QueryDescriptor#getResult() } of
+     *   the descriptor other than <code>ITERABLE</code> and <code>ITERATOR</code>
+     */
+    static Object complete(QueryDescriptor descriptor, Object[] values, Iterator<Entity> results) {
+        switch (descriptor.getResult()) {
+            case SINGLE:
+                Entity entity = results.hasNext() ? results.next() : null;
+                if (results.hasNext()) {
+                    throw new PreparedQuery.TooManyResultsException();
+                }
+                return entity;
+            case COUNT:
+                int count = 0;
+                while (results.hasNext()) {
+                    results.next();
+                    count++;
+                }
+                return count;
+            case EACH:
+                return each(results, descriptor.getPojoClass(), descriptor.isReuse(), descriptor.getConsumer(values));
+            case PAGE:
+                QueryPage page = new QueryPage();
+                while (results.hasNext()) {
+                    page.add(results.next());
+                }
+                page.cursor = ((QueryResultIterator<Entity>) results).getCursor();
+                return page;
+            default:
+                ArrayList<Entity> list = new ArrayList<Entity>();
+                while (results.hasNext()) {
+                    list.add(results.next());
+                }
+                return list;
+        }
+    }
+    /**
+     * Passes the entities to the consumer of <code>select each: {...}</code>
+     * one at a time. The entities are fetched in batches of the
+     * <code>chunkSize</code> of the query while they are iterated and
+     * no collection of them is created.
+     *
+     * @param entities the entities returned by <code>asIterable</code>
+     * @param pojoClass the class of <code>from pojo as Person</code> or
+     *   <code>null</code> to pass the entities themselves. The objects are
+     *   created by a @{link PojoMapper}
+     * @param reuse <code>true</code> for <code>reuse: true</code>: the
+     *   mapped object may be the same for all the entities
+     * @param consumer the closure to be called for each entity
+     * @return the number of entities passed to the consumer
+     */
+    public static int each(Iterable<Entity> entities, Class<?> pojoClass, boolean reuse, Closure<?> consumer) {
+        return each(entities.iterator(), pojoClass, reuse, consumer);
+    }
+
+    static int each(Iterator<Entity> entities, Class<?> pojoClass, boolean reuse, Closure<?> consumer) {
+        PojoMapper mapper = pojoClass == null ? null : new PojoMapper(pojoClass, reuse);
+        int count = 0;
+        while (entities.hasNext()) {
+            Entity entity = entities.next();
+            consumer.call(mapper == null ? entity : mapper.map(entity));
+            count++;
+        }
+        return count;
+    }
+    /**
+     * Starts the query of <code>executeQueryAsync</code>. The call
+     * doesn't wait for the datastore, so several queries started one
+     * after another run at the same time.
+     *
+     * @param service the asynchronous datastore service
+     * @param descriptor the shape of the query
+     * @param values the values of the parameters of the descriptor
+     * @return a @{link QueryFuture} for the value @{link #execute }
+     *   would return
+     */
+    public static Future<Object> executeAsync(AsyncDatastoreService service, QueryDescriptor descriptor, Object... values) {
+        return new QueryFuture(service, descriptor, values);
+    }
+    /**
+     * @param service the receiver of <code>executeQueryAsync</code>
+     * @return the service itself when it is asynchronous, otherwise the
+     *   asynchronous service of the <code>DatastoreServiceFactory</code>.
+     *   The configuration of a synchronous service cannot be read, so a
+     *   query which needs one passes a <code>DatastoreServiceConfig</code>
+     *   to <code>executeQueryAsync</code>
+     */
+    public static AsyncDatastoreService asyncService(Object service) {
+        return service instanceof AsyncDatastoreService
+                ? (AsyncDatastoreService) service
+                : DatastoreServiceFactory.getAsyncDatastoreService();
+    }
+    /**
+     * Describes the query of <code>transformedText</code> without
+     * running it.
+     *
+     * @param descriptor the shape of the query
+     * @param code the text of the code the query is transformed into
+     * @param values the values of the parameters of the descriptor
+     * @return the plan of the query
+     */
+    public static QueryPlan explain(QueryDescriptor descriptor, String code, Object... values) {
+        return new QueryPlan(descriptor, code, values);
+    }
+}
@@ -0,0 +1,285 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import groovy.lang.Closure;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The result of <code>executeQueryAsync</code>.
+ * <p/>
+ * The query is started by the constructor: the iterator of the results
+ * is obtained from the <code>AsyncDatastoreService</code>, which sends
+ * the request for the first batch without waiting for the response. The
+ * request runs while the caller goes on and, for example, starts other
+ * queries. @{link #get() } waits for the results and completes the value
+ * the synchronous query would return:
+ * <ul>
+ *   <li>a <code>List</code> for <code>select all</code> and <code>select keys</code>;</li>
+ *   <li>a <code>QueryResultList</code> for <code>cursor</code>;</li>
+ *   <li>the number of entities for <code>select count</code>, counted
+ *       with a keys only query;</li>
+ *   <li>the entity or <code>null</code> for <code>select single</code>;</li>
+ *   <li>the number of entities passed to the consumer of
+ *       <code>select each: {...}</code>;</li>
+ *   <li>the lazy <code>Iterable</code> or <code>QueryResultIterator</code>
+ *       for <code>iterate</code> and the @{link QueryPages} for
+ *       <code>cursor pages</code>, available at once.</li>
+ * </ul>
+ * A query with <code>IN</code> or <code>!=</code> filters is started as
+ * the sub-queries of a @{link QueryMerger}.
+ * <p/>
+ * The entities are read by the calls of <code>get</code>. The time left to
+ * @{link #get(long, TimeUnit) } is checked whenever an entity is read, so
+ * between the batches of the datastore: a call which runs out of time
+ * throws a <code>TimeoutException</code> and a later call goes on with
+ * the entities not read yet. The wait for a batch itself is not
+ * interrupted; it is limited by the deadline of the service (see
+ * <code>DatastoreServiceConfig</code>).
+ * <p/>
+ * @{link #isDone() } doesn't wait for the datastore. It is
+ * <code>true</code> at once for the lazy results and for a failed or
+ * cancelled query, otherwise when a call of <code>get</code> has read all
+ * the entities: a response of the datastore which has arrived is not
+ * visible before it is read. @{link #cancel } stops the reading of the
+ * entities; a request already sent to the datastore runs to its end.
+ *
+ * @author V. Shyshkin
+ */
+class QueryFuture implements Future<Object> {
+
+    private final QueryDescriptor descriptor;
+    private final Object[] values;
+    private Iterator<Entity> results;
+    /**
+     * The entities read so far for the results kept in a list.
+     */
+    private final List<Entity> received = new ArrayList<Entity>();
+    /**
+     * The number of entities read so far for <code>COUNT</code> and
+     * <code>EACH</code>.
+     */
+    private int count;
+    private Closure<?> consumer;
+    private PojoMapper mapper;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private Object value;
+    private RuntimeException failure;
+    private final long start = System.nanoTime();
+    /**
+     * Held by the call of <code>get</code> which reads the entities.
+     */
+    private final ReentrantLock reading = new ReentrantLock();
+
+    QueryFuture(AsyncDatastoreService service, QueryDescriptor descriptor, Object[] values) {
+        this.descriptor = descriptor;
+        this.values = values;
+        if (descriptor.getResult() == QueryDescriptor.Result.EACH) {
+            consumer = descriptor.getConsumer(values);
+            mapper = descriptor.getPojoClass() == null ? null : new PojoMapper(descriptor.getPojoClass(), descriptor.isReuse());
+        }
+        if (QueryMerger.canMerge(descriptor)) {
+            if (descriptor.getResult() == QueryDescriptor.Result.ITERABLE) {
+                complete(QueryExecutor.executeMerged(service, descriptor, values));
+            } else {
+                results = QueryMerger.open(service, descriptor, values);
+            }
+            return;
+        }
+        PreparedQuery prepared;
+        switch (descriptor.getResult()) {
+            case SINGLE:
+                prepared = service.prepare(descriptor.createQuery(values));
+                results = prepared.asQueryResultIterator(FetchOptions.Builder.withLimit(2));
+                break;
+            case COUNT:
+                prepared = service.prepare(descriptor.createKeysOnlyQuery(values));
+                results = prepared.asQueryResultIterator(descriptor.createFetchOptions(values));
+                break;
+            case ITERABLE:
+                prepared = service.prepare(descriptor.createQuery(values));
+                completeLazy(prepared.asIterable(descriptor.createFetchOptions(values)));
+                break;
+            case ITERATOR:
+                prepared = service.prepare(descriptor.createQuery(values));
+                completeLazy(prepared.asQueryResultIterator(descriptor.createFetchOptions(values)));
+                break;
+            case PAGES:
+                completeLazy(new QueryPages(service, descriptor.createQuery(values),
+                        descriptor.createFetchOptions(values), descriptor.getPrefetchPages(values)));
+                break;
+            default:
+                prepared = service.prepare(descriptor.createQuery(values));
+                results = prepared.asQueryResultIterator(descriptor.createFetchOptions(values));
+        }
+    }
+
+    /**
+     * Completes the value with a lazy result, charged for the query only.
+     */
+    private void completeLazy(Object value) {
+        QueryBudget.charge(descriptor, values, value);
+        complete(value);
+    }
+
+    private synchronized void complete(Object value) {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        this.value = value;
+        done = true;
+        results = null;
+        long nanos = System.nanoTime() - start;
+        if (failure != null) {
+            descriptor.getMetrics().failure(nanos);
+        } else {
+            descriptor.getMetrics().success(nanos, QueryMetrics.count(value));
+        }
+        SlowQueryLog.record(descriptor, values, nanos, failure);
+    }
+
+    @Override
+    public Object get() throws ExecutionException {
+        reading.lock();
+        try {
+            return await(false, 0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            reading.unlock();
+        }
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!reading.tryLock(timeout, unit)) {
+            throw new TimeoutException("The query at " + descriptor.getSite() + " is being read by another thread");
+        }
+        try {
+            return await(true, deadline);
+        } finally {
+            reading.unlock();
+        }
+    }
+    /**
+     * Reads the entities not read yet and completes the value. Called
+     * with the @{link #reading} lock held.
+     */
+    private Object await(boolean timed, long deadline) throws ExecutionException, TimeoutException {
+        if (!done) {
+            try {
+                receive(timed, deadline);
+                Object result = result();
+                if (results instanceof QueryMerger) {
+                    ((QueryMerger) results).charge(descriptor);
+                } else {
+                    QueryBudget.charge(descriptor, values, result);
+                }
+                complete(result);
+            } catch (RuntimeException e) {
+                if (e instanceof CancellationException) {
+                    throw e;
+                }
+                failure = e;
+                complete(null);
+            }
+        }
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+    /**
+     * Reads the entities until there are no more or the deadline has
+     * passed. The entity found by the last <code>hasNext</code> is left
+     * to the next call when the time is over.
+     */
+    private void receive(boolean timed, long deadline) throws TimeoutException {
+        boolean single = descriptor.getResult() == QueryDescriptor.Result.SINGLE;
+        while (!(single && received.size() > 1) && results.hasNext()) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (timed && System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("The query at " + descriptor.getSite() + " is not completed");
+            }
+            Entity entity = results.next();
+            switch (descriptor.getResult()) {
+                case COUNT:
+                    count++;
+                    break;
+                case EACH:
+                    consumer.call(mapper == null ? entity : mapper.map(entity));
+                    count++;
+                    break;
+                default:
+                    received.add(entity);
+            }
+        }
+    }
+    /**
+     * @return the value for the entities read
+     */
+    private Object result() {
+        switch (descriptor.getResult()) {
+            case COUNT:
+            case EACH:
+                return count;
+            case SINGLE:
+                if (received.size() > 1) {
+                    throw new PreparedQuery.TooManyResultsException();
+                }
+                return received.isEmpty() ? null : received.get(0);
+            case PAGE:
+                QueryPage page = new QueryPage();
+                page.addAll(received);
+                page.cursor = ((QueryResultIterator<Entity>) results).getCursor();
+                return page;
+            default:
+                return new ArrayList<Entity>(received);
+        }
+    }
+    /**
+     * Stops the reading of the entities. A call of <code>get</code> which
+     * is reading them throws a <code>CancellationException</code> before
+     * the next entity.
+     * @return <code>false</code> when the value is already completed
+     */
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (done) {
+            return false;
+        }
+        cancelled = true;
+        done = true;
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+}
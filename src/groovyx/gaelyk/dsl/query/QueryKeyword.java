@@ -0,0 +1,152 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The words the "query DSL" consists of.
+ * <p/>
+ * Each constant has a canonical name, which is also the name of the
+ * variable the transformed code uses for it, and a list of aliases the
+ * closure may use instead (<code>Select</code>, <code>fetchOptions</code>,
+ * <code>asChildOf</code> and so on). A clause constant knows which
+ * argument keywords it accepts. All names are resolved by a single
+ * lookup in a hash map:
+ * <pre>
+ *   QueryKeyword kw = QueryKeyword.lookup("Limit"); // LIMIT
+ *   if (QueryKeyword.SELECT.accepts(kw)) { ... }
+ * </pre>
+ * A new clause or option is added as a new constant here and a case in
+ * @{link QueryTransformer#transformArguments}.
+ *
+ * @author V. Shyshkin
+ */
+public enum QueryKeyword {
+
+    SELECT(Kind.CLAUSE, "select", "Select"),
+    CURSOR(Kind.CLAUSE, "cursor", "Cursor"),
+    FROM(Kind.CLAUSE, "from", "From"),
+    WHERE(Kind.CLAUSE, "where", "Where"),
+    ORDER_BY(Kind.CLAUSE, "orderBy", "OrderBy"),
+    OPTIONS(Kind.CLAUSE, "options", "Options", "fetchOptions", "FetchOptions"),
+
+    ALL(Kind.RESULT, "all", "All"),
+    KEYS(Kind.RESULT, "keys", "Keys"),
+    SINGLE(Kind.RESULT, "single", "Single"),
+    COUNT(Kind.RESULT, "count", "Count"),
+    ITERATE(Kind.RESULT, "iterate", "Iterate"),
+    PAGES(Kind.RESULT, "pages", "Pages"),
+
+    LIMIT(Kind.OPTION, "limit", "Limit"),
+    OFFSET(Kind.OPTION, "offset", "Offset"),
+    CHUNK_SIZE(Kind.OPTION, "chunkSize", "ChunkSize"),
+    PREFETCH_SIZE(Kind.OPTION, "prefetchSize", "PrefetchSize"),
+    START_CURSOR(Kind.OPTION, "startCursor"),
+    END_CURSOR(Kind.OPTION, "endCursor"),
+    EACH(Kind.OPTION, "each", "Each"),
+    PREFETCH_PAGES(Kind.OPTION, "prefetchPages", "PrefetchPages"),
+
+    CHILD_OF(Kind.ANCESTOR, "childOf", "ChildOf", "asChildOf", "asChildsOf",
+            "parent", "ancestor", "childsOf", "ChildsOf"),
+
+    ASC(Kind.DIRECTION, "asc", "Asc", "ASC", "ascending", "Ascending", "ASCENDING"),
+    DESC(Kind.DIRECTION, "desc", "Desc", "DESC", "descending", "Descending", "DESCENDING");
+
+    /**
+     * The role of a keyword in the closure.
+     */
+    public enum Kind {
+        /**
+         * A statement of the closure such as <code>select</code>
+         */
+        CLAUSE,
+        /**
+         * What a query returns: <code>select all</code>,
+         * <code>select iterate</code>
+         */
+        RESULT,
+        /**
+         * <code>limit(10)</code> or <code>limit = 10</code>
+         */
+        OPTION,
+        /**
+         * <code>from Person, childOf(key)</code>
+         */
+        ANCESTOR,
+        /**
+         * <code>orderBy age as DESC</code>
+         */
+        DIRECTION
+    }
+
+    private static final Map<String, QueryKeyword> aliases = new HashMap<String, QueryKeyword>();
+
+    static {
+        for (QueryKeyword kw : values()) {
+            kw.arguments = EnumSet.noneOf(QueryKeyword.class);
+            for (String alias : kw.names) {
+                aliases.put(alias, kw);
+            }
+        }
+        SELECT.accept(ALL, KEYS, SINGLE, COUNT, ITERATE, LIMIT, OFFSET, EACH);
+        CURSOR.accept(ALL, KEYS, ITERATE, PAGES, LIMIT, START_CURSOR, END_CURSOR, PREFETCH_PAGES);
+        OPTIONS.accept(CHUNK_SIZE, PREFETCH_SIZE);
+        FROM.accept(CHILD_OF);
+        ORDER_BY.accept(ASC, DESC);
+    }
+
+    private final Kind kind;
+    private final String[] names;
+    private Set<QueryKeyword> arguments;
+
+    private QueryKeyword(Kind kind, String... names) {
+        this.kind = kind;
+        this.names = names;
+    }
+
+    private void accept(QueryKeyword... keywords) {
+        for (QueryKeyword kw : keywords) {
+            arguments.add(kw);
+        }
+    }
+    /**
+     * @param name a name used in the closure
+     * @return the keyword for the name or <code>null</code>
+     */
+    public static QueryKeyword lookup(String name) {
+        return name == null ? null : aliases.get(name);
+    }
+    /**
+     * @param name a name used in the closure
+     * @return the keyword of the <code>Kind.CLAUSE</code> kind for the
+     *   name or <code>null</code>
+     */
+    public static QueryKeyword clause(String name) {
+        QueryKeyword result = lookup(name);
+        return result != null && result.kind == Kind.CLAUSE ? result : null;
+    }
+    /**
+     * @return the canonical name of the keyword
+     */
+    public String getName() {
+        return names[0];
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+    /**
+     * @return <code>true</code> if a given keyword may be an argument
+     *   of this clause
+     */
+    public boolean accepts(QueryKeyword keyword) {
+        return keyword != null && arguments.contains(keyword);
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
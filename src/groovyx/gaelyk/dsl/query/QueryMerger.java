@@ -0,0 +1,466 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.BaseDatastoreService;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.users.User;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Executes a query with <code>IN</code> and <code>!=</code> filters as the
+ * simple queries of @{link QueryDescriptor#createSubQueries } and merges
+ * their results.
+ * <p/>
+ * The datastore runs such a query one sub-query after another and is
+ * limited to 30 of them. Here at most @{link #getMaxInFlight() }
+ * sub-queries are in flight at a time: an iterator sends the request for
+ * its first batch without waiting for it, so the first of them are started
+ * by @{link #open } and run at the same time while the caller goes on.
+ * The first @{link #hasNext() } waits for their first batches and starts
+ * another sub-query each time one of them is received. A query with more than
+ * @{link #getMaxSubQueries() } sub-queries is rejected with an
+ * <code>IllegalArgumentException</code>. Both limits are set by the
+ * system properties @{link #MAX_SUB_QUERIES_PROPERTY} and
+ * @{link #MAX_IN_FLIGHT_PROPERTY} or by their setters.
+ * <p/>
+ * The entities are then merged as they come: the iterator with the least
+ * entity by the sort orders of the query, or by the key when there are
+ * none, gives the next entity. When the disjuncts of
+ * <code>where (a == 1) || (b &gt; 2)</code> come in different orders and
+ * the query has no sort orders, the sub-queries are read one after
+ * another. An entity found by several sub-queries is returned once. The
+ * merge applies the <code>offset</code> and the <code>limit</code> of the
+ * query itself and stops as soon as the limit is reached, so no more
+ * batches are fetched than needed.
+ * <p/>
+ * The sub-queries of a keys only query sorted by a property fetch the
+ * entities, whose values are compared, and the merge returns their keys
+ * only. The values of different types are compared in the order of the
+ * datastore, see @{link #compareValues }. A query whose result has a
+ * cursor is not merged: it is executed by the datastore as usual.
+ *
+ * @author V. Shyshkin
+ */
+class QueryMerger implements Iterator<Entity> {
+
+    public static final String MAX_SUB_QUERIES_PROPERTY = "gaelyk.query.maxSubQueries";
+    public static final String MAX_IN_FLIGHT_PROPERTY = "gaelyk.query.maxSubQueriesInFlight";
+
+    private static volatile int maxSubQueries = Integer.getInteger(MAX_SUB_QUERIES_PROPERTY, 30);
+    private static volatile int maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 10);
+
+    /**
+     * The next entity of a sub-query.
+     */
+    private static class Source {
+
+        final Iterator<Entity> entities;
+        final int index;
+        Entity head;
+
+        Source(Iterator<Entity> entities, int index) {
+            this.entities = entities;
+            this.index = index;
+            this.head = entities.next();
+        }
+    }
+
+    private final BaseDatastoreService service;
+    private final List<Query> subQueries;
+    private final FetchOptions subOptions;
+    /**
+     * The iterators of the sub-queries started and not yet received, by
+     * the index of the sub-query.
+     */
+    private final List<Iterator<Entity>> started;
+    /**
+     * The number of sub-queries whose first batch was received.
+     */
+    private int received;
+    private final PriorityQueue<Source> sources;
+    private final Set<Key> seen = new HashSet<Key>();
+    private int skip;
+    /**
+     * The number of entities still to be returned or <code>-1</code>.
+     */
+    private int remaining;
+    private Entity next;
+    /**
+     * <code>true</code> when the sub-queries fetch the entities of a keys
+     * only query.
+     */
+    private final boolean keysOnly;
+    /**
+     * <code>true</code> when the sub-queries are keys only.
+     */
+    private final boolean keysFetched;
+    private final int queries;
+    /**
+     * The number of entities read from the sub-queries, including the
+     * skipped and the duplicate ones.
+     */
+    private int fetched;
+
+    /**
+     * @param subQueries the sub-queries, of which the first
+     *   @{link #getMaxInFlight() } are started at once
+     * @param sorts the sort orders or <code>null</code> to read the
+     *   sub-queries one after another
+     */
+    private QueryMerger(BaseDatastoreService service, List<Query> subQueries, FetchOptions subOptions,
+            final List<QueryDescriptor.Sort> sorts, int offset, int limit, boolean keysOnly, boolean keysFetched) {
+        sources = new PriorityQueue<Source>(Math.max(1, subQueries.size()), new Comparator<Source>() {
+
+            @Override
+            public int compare(Source a, Source b) {
+                if (sorts == null) {
+                    return a.index - b.index;
+                }
+                return QueryMerger.compare(a.head, b.head, sorts);
+            }
+        });
+        this.service = service;
+        this.subQueries = subQueries;
+        this.subOptions = subOptions;
+        this.started = new ArrayList<Iterator<Entity>>(subQueries.size());
+        for (int i = 0; i < Math.min(subQueries.size(), Math.max(1, maxInFlight)); i++) {
+            start(i);
+        }
+        this.skip = offset;
+        this.remaining = limit;
+        this.keysFetched = keysFetched;
+        this.queries = subQueries.size();
+        this.keysOnly = keysOnly;
+    }
+    /**
+     * @return the greatest number of sub-queries of a query,
+     *   <code>30</code> unless set
+     */
+    public static int getMaxSubQueries() {
+        return maxSubQueries;
+    }
+
+    public static void setMaxSubQueries(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The maximum number of sub-queries must be positive: " + max);
+        }
+        maxSubQueries = max;
+    }
+    /**
+     * @return the greatest number of sub-queries of a query run at the
+     *   same time, <code>10</code> unless set
+     */
+    public static int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public static void setMaxInFlight(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The maximum number of sub-queries in flight must be positive: " + max);
+        }
+        maxInFlight = max;
+    }
+    /**
+     * @return <code>true</code> if the query is executed by
+     *   @{link #open } instead of the datastore
+     */
+    static boolean canMerge(QueryDescriptor descriptor) {
+        if (!descriptor.isMultiQuery()) {
+            return false;
+        }
+        switch (descriptor.getResult()) {
+            case PAGE:
+            case ITERATOR:
+            case PAGES:
+                return false;
+            default:
+                return true;
+        }
+    }
+    /**
+     * Starts the sub-queries of a query for which @{link #canMerge }
+     * returns <code>true</code>.
+     *
+     * @param service the datastore service
+     * @param descriptor the shape of the query
+     * @param values the values of the parameters of the descriptor
+     * @return the merged entities
+     * @throws IllegalArgumentException if the query has more than
+     *   @{link #getMaxSubQueries() } sub-queries
+     */
+    static QueryMerger open(BaseDatastoreService service, QueryDescriptor descriptor, Object[] values) {
+        boolean count = descriptor.getResult() == QueryDescriptor.Result.COUNT;
+        FetchOptions options = descriptor.getResult() == QueryDescriptor.Result.SINGLE
+                ? FetchOptions.Builder.withLimit(2)
+                : descriptor.createFetchOptions(values);
+        int offset = options.getOffset() == null ? 0 : options.getOffset();
+        int limit = options.getLimit() == null ? -1 : options.getLimit();
+        FetchOptions subOptions = FetchOptions.Builder.withDefaults();
+        if (limit >= 0) {
+            subOptions.limit(offset + limit);
+        }
+        if (options.getChunkSize() != null) {
+            subOptions.chunkSize(options.getChunkSize());
+        }
+        if (options.getPrefetchSize() != null) {
+            subOptions.prefetchSize(options.getPrefetchSize());
+        }
+        //
+        // The count doesn't depend on the order and a keys only entity
+        // has no values to compare
+        //
+        List<QueryDescriptor.Sort> sorts = count
+                ? Collections.<QueryDescriptor.Sort>emptyList()
+                : descriptor.getEffectiveSorts();
+        boolean keys = count || descriptor.isKeysOnly() && (sorts == null || sorts.isEmpty());
+        List<Query> subQueries = descriptor.createSubQueries(values, keys);
+        int max = maxSubQueries;
+        if (subQueries.size() > max) {
+            throw new IllegalArgumentException("The query at " + descriptor.getSite() + " on '" + descriptor.getKind()
+                    + "' is split into " + subQueries.size() + " sub-queries by its IN, != and || filters,"
+                    + " more than the maximum of " + max + " (" + MAX_SUB_QUERIES_PROPERTY + ")");
+        }
+        return new QueryMerger(service, subQueries, subOptions, sorts, offset, limit,
+                descriptor.isKeysOnly() && !keys, keys);
+    }
+    /**
+     * Charges the sub-queries and the entities read so far to the
+     * @{link QueryBudget}.
+     */
+    void charge(QueryDescriptor descriptor) {
+        QueryBudget.charge(descriptor, queries, fetched, keysFetched);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && remaining != 0) {
+            next = advance();
+            if (next != null && remaining > 0) {
+                remaining--;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Entity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Entity result = next;
+        next = null;
+        return keysOnly ? new Entity(result.getKey()) : result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void start(int index) {
+        started.add(service.prepare(subQueries.get(index)).asQueryResultIterator(subOptions));
+    }
+    /**
+     * Waits for the first batches of the started sub-queries. Each
+     * received sub-query lets the next one start, so no more than
+     * @{link #getMaxInFlight() } are in flight.
+     */
+    private void receive() {
+        while (received < subQueries.size()) {
+            Iterator<Entity> it = started.set(received, null);
+            if (it.hasNext()) {
+                sources.add(new Source(it, received));
+                fetched++;
+            }
+            received++;
+            if (started.size() < subQueries.size()) {
+                start(started.size());
+            }
+        }
+    }
+
+    private Entity advance() {
+        receive();
+        while (!sources.isEmpty()) {
+            Source source = sources.poll();
+            Entity entity = source.head;
+            if (source.entities.hasNext()) {
+                source.head = source.entities.next();
+                sources.add(source);
+                fetched++;
+            }
+            if (!seen.add(entity.getKey())) {
+                continue;
+            }
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            return entity;
+        }
+        return null;
+    }
+
+    static int compare(Entity a, Entity b, List<QueryDescriptor.Sort> sorts) {
+        for (QueryDescriptor.Sort s : sorts) {
+            boolean descending = s.direction == Query.SortDirection.DESCENDING;
+            int c = compareValues(sortValue(a, s.property, descending), sortValue(b, s.property, descending));
+            if (c != 0) {
+                return descending ? -c : c;
+            }
+        }
+        return a.getKey().compareTo(b.getKey());
+    }
+    /**
+     * The datastore sorts by the least value of a multiple valued property
+     * in the ascending order and by the greatest one in the descending order.
+     */
+    private static Object sortValue(Entity entity, String property, boolean descending) {
+        Object value = Entity.KEY_RESERVED_PROPERTY.equals(property) ? entity.getKey() : entity.getProperty(property);
+        if (!(value instanceof Collection)) {
+            return value;
+        }
+        Object result = null;
+        boolean first = true;
+        for (Object v : (Collection<?>) value) {
+            int c = first ? 0 : compareValues(v, result);
+            if (first || (descending ? c > 0 : c < 0)) {
+                result = v;
+            }
+            first = false;
+        }
+        return result;
+    }
+
+    /**
+     * Compares two values as the datastore does. The values of different
+     * types are ordered by @{link #typeRank }: null, the integers, dates
+     * and ratings, the booleans, the short blobs, the strings, the doubles,
+     * the geographical points, the users and the keys. So every integer
+     * comes before every double, whatever their values. The integers,
+     * dates and ratings are stored as 64 bit integers and compared
+     * numerically, a date in microseconds, and the strings, categories,
+     * links, emails, phone numbers and postal addresses are compared as
+     * strings.
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object a, Object b) {
+        int ra = typeRank(a);
+        int rb = typeRank(b);
+        if (ra != rb) {
+            return ra < rb ? -1 : 1;
+        }
+        switch (ra) {
+            case NULL:
+                return 0;
+            case INTEGER:
+                long x = integerValue(a);
+                long y = integerValue(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            case STRING:
+                return stringValue(a).compareTo(stringValue(b));
+            case DOUBLE:
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            default:
+                if (a.getClass() == b.getClass() && a instanceof Comparable) {
+                    return ((Comparable<Object>) a).compareTo(b);
+                }
+                return a.getClass().getName().compareTo(b.getClass().getName());
+        }
+    }
+
+    private static final int NULL = 0;
+    private static final int INTEGER = 1;
+    private static final int BOOLEAN = 2;
+    private static final int SHORT_BLOB = 3;
+    private static final int STRING = 4;
+    private static final int DOUBLE = 5;
+    private static final int GEO_PT = 6;
+    private static final int USER = 7;
+    private static final int KEY = 8;
+    private static final int OTHER = 9;
+
+    private static int typeRank(Object value) {
+        if (value == null) {
+            return NULL;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof Date || value instanceof Rating) {
+            return INTEGER;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        if (value instanceof ShortBlob) {
+            return SHORT_BLOB;
+        }
+        if (stringValue(value) != null) {
+            return STRING;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return DOUBLE;
+        }
+        if (value instanceof GeoPt) {
+            return GEO_PT;
+        }
+        if (value instanceof User) {
+            return USER;
+        }
+        if (value instanceof Key) {
+            return KEY;
+        }
+        return OTHER;
+    }
+
+    private static long integerValue(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).getTime() * 1000L;
+        }
+        if (value instanceof Rating) {
+            return ((Rating) value).getRating();
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static String stringValue(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Category) {
+            return ((Category) value).getCategory();
+        }
+        if (value instanceof Link) {
+            return ((Link) value).getValue();
+        }
+        if (value instanceof Email) {
+            return ((Email) value).getEmail();
+        }
+        if (value instanceof PhoneNumber) {
+            return ((PhoneNumber) value).getNumber();
+        }
+        if (value instanceof PostalAddress) {
+            return ((PostalAddress) value).getAddress();
+        }
+        return null;
+    }
+}
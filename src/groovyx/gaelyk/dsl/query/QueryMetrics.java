@@ -0,0 +1,345 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.Entity;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The latency and the throughput of the query sites.
+ * <p/>
+ * A site is a query closure, named by the transformation after its
+ * place in the source: <code>file:line:column</code> (see
+ * @{link QueryDescriptor#site(String) }). For each site the number of
+ * runs, of failed runs and of the entities returned are counted and the
+ * latencies are kept in a histogram. The latency of a query which returns
+ * a lazy <code>Iterable</code> or iterator is the time it takes to start
+ * it. The datastore operations a site is billed for are estimated by
+ * @{link QueryBudget#charge }.
+ * <p/>
+ * Recording a run allocates nothing: the @{link Site} of a descriptor is
+ * looked up once and a run updates its counters and a bucket of the
+ * histogram. The buckets are spaced in powers of two, each divided into
+ * four, so a percentile is reported within about 12%.
+ * <p/>
+ * The data is available as a list of @{link Snapshot} and through the
+ * @{link QueryMetricsMXBean} registered with the platform MBean server as
+ * @{link #OBJECT_NAME}, where JMX is available.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryMetrics {
+
+    public static final String OBJECT_NAME = "groovyx.gaelyk.dsl.query:type=QueryMetrics";
+    /**
+     * The number of buckets of a histogram: latencies up to 2^40
+     * microseconds.
+     */
+    static final int BUCKETS = 164;
+
+    private static final ConcurrentMap<String, Site> sites = new ConcurrentHashMap<String, Site>();
+
+    static {
+        registerMBean();
+    }
+
+    private QueryMetrics() {
+    }
+
+    /**
+     * The counters of a query site.
+     */
+    public static class Site {
+
+        private final String name;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong results = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong entityReads = new AtomicLong();
+        private final AtomicLong smallOps = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Site(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+        /**
+         * Records a run.
+         * @param nanos the duration of the run
+         * @param count the number of entities returned or a negative
+         *   number when it is not known
+         */
+        public void success(long nanos, int count) {
+            record(nanos);
+            if (count > 0) {
+                results.addAndGet(count);
+            }
+        }
+        /**
+         * Records a failed run.
+         */
+        public void failure(long nanos) {
+            record(nanos);
+            errors.incrementAndGet();
+        }
+
+        /**
+         * Records the estimated cost of a run.
+         * @param queries the number of queries and sub-queries run
+         * @param reads the number of entity reads, the queries included
+         * @param small the number of small operations
+         */
+        public void cost(int queries, int reads, int small) {
+            this.queries.addAndGet(queries);
+            entityReads.addAndGet(reads);
+            smallOps.addAndGet(small);
+        }
+
+        private void record(long nanos) {
+            invocations.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            histogram.incrementAndGet(bucket(nanos / 1000));
+        }
+
+        void reset() {
+            invocations.set(0);
+            errors.set(0);
+            results.set(0);
+            totalNanos.set(0);
+            queries.set(0);
+            entityReads.set(0);
+            smallOps.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+        /**
+         * @param fraction for example <code>0.95</code>
+         * @return the latency in milliseconds below which the given
+         *   fraction of the runs are
+         */
+        public double percentile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return middle(i) / 1000.0;
+                }
+            }
+            return middle(BUCKETS - 1) / 1000.0;
+        }
+
+        public Snapshot snapshot() {
+            long n = invocations.get();
+            return new Snapshot(name, n, errors.get(), results.get(),
+                    queries.get(), entityReads.get(), smallOps.get(),
+                    n == 0 ? 0 : totalNanos.get() / 1000000.0 / n,
+                    percentile(0.50), percentile(0.95), percentile(0.99));
+        }
+    }
+
+    /**
+     * The state of a site at a moment.
+     */
+    public static class Snapshot {
+
+        private final String site;
+        private final long invocations;
+        private final long errors;
+        private final long results;
+        private final long queries;
+        private final long entityReads;
+        private final long smallOps;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p95Millis;
+        private final double p99Millis;
+
+        Snapshot(String site, long invocations, long errors, long results,
+                long queries, long entityReads, long smallOps, double meanMillis,
+                double p50Millis, double p95Millis, double p99Millis) {
+            this.site = site;
+            this.invocations = invocations;
+            this.errors = errors;
+            this.results = results;
+            this.queries = queries;
+            this.entityReads = entityReads;
+            this.smallOps = smallOps;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p95Millis = p95Millis;
+            this.p99Millis = p99Millis;
+        }
+
+        public String getSite() {
+            return site;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getResults() {
+            return results;
+        }
+
+        /**
+         * @return the number of queries and sub-queries run, each read
+         *   from an index
+         */
+        public long getQueries() {
+            return queries;
+        }
+        /**
+         * @return the estimated number of entity reads
+         */
+        public long getEntityReads() {
+            return entityReads;
+        }
+        /**
+         * @return the estimated number of small operations
+         */
+        public long getSmallOps() {
+            return smallOps;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP95Millis() {
+            return p95Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        @Override
+        public String toString() {
+            return site + ": invocations=" + invocations + " errors=" + errors + " results=" + results
+                    + " queries=" + queries + " reads=" + entityReads + " smallOps=" + smallOps
+                    + " mean=" + meanMillis + "ms p50=" + p50Millis + "ms p95=" + p95Millis
+                    + "ms p99=" + p99Millis + "ms";
+        }
+    }
+
+    /**
+     * The bucket of a latency: the values below 4 have their own buckets,
+     * the others are divided by the highest bit and the two bits which
+     * follow it.
+     */
+    static int bucket(long micros) {
+        if (micros < 4) {
+            return micros < 0 ? 0 : (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int index = (exponent - 1) * 4 + (int) ((micros >>> (exponent - 2)) & 3);
+        return Math.min(index, BUCKETS - 1);
+    }
+    /**
+     * @return the middle of the values of a bucket in microseconds
+     */
+    static double middle(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exponent = bucket / 4 + 1;
+        long lower = (4L + bucket % 4) << (exponent - 2);
+        return lower + (1L << (exponent - 2)) / 2.0;
+    }
+
+    /**
+     * @return the site of the given name, created when it is first used
+     */
+    public static Site site(String name) {
+        Site site = sites.get(name);
+        if (site == null) {
+            Site created = new Site(name);
+            site = sites.putIfAbsent(name, created);
+            if (site == null) {
+                site = created;
+            }
+        }
+        return site;
+    }
+    /**
+     * @return the snapshots of all the sites
+     */
+    public static List<Snapshot> snapshot() {
+        List<Snapshot> result = new ArrayList<Snapshot>(sites.size());
+        for (Site site : sites.values()) {
+            result.add(site.snapshot());
+        }
+        return result;
+    }
+    /**
+     * Sets the counters of all the sites to zero.
+     */
+    public static void reset() {
+        for (Site site : sites.values()) {
+            site.reset();
+        }
+    }
+    /**
+     * @param result the value a query returned
+     * @return the number of entities in it or <code>-1</code>
+     */
+    static int count(Object result) {
+        if (result instanceof List) {
+            return ((List<?>) result).size();
+        }
+        if (result instanceof Number) {
+            return ((Number) result).intValue();
+        }
+        if (result instanceof Entity) {
+            return 1;
+        }
+        return result == null ? 0 : -1;
+    }
+    /**
+     * Registers the @{link QueryMetricsMXBean}. The metrics are only
+     * available through @{link #snapshot() } where there is no platform
+     * MBean server, as on App Engine.
+     */
+    static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new QueryMetricsMXBean.Impl(), name);
+            }
+        } catch (Throwable e) {
+            // no JMX
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.List;
+
+/**
+ * The JMX view of the @{link QueryMetrics}: one row for each query site.
+ *
+ * @author V. Shyshkin
+ */
+public interface QueryMetricsMXBean {
+
+    List<QueryMetrics.Snapshot> getSites();
+
+    void reset();
+
+    /**
+     * The registered MBean.
+     */
+    class Impl implements QueryMetricsMXBean {
+
+        @Override
+        public List<QueryMetrics.Snapshot> getSites() {
+            return QueryMetrics.snapshot();
+        }
+
+        @Override
+        public void reset() {
+            QueryMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.List;
+
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.EmptyStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.syntax.Token;
+import org.codehaus.groovy.syntax.Types;
+
+import static groovyx.gaelyk.dsl.query.Helper.*;
+
+/**
+ * A set of static methods to create AST nodes.
+ * The nodes have the same shape as the nodes that
+ * <code>AstBuilder</code> produces at the <code>CONVERSION</code> phase
+ * for the equivalent source code. So that later phases such as
+ * <code>ResolveVisitor</code> treat them the same way.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryNodeFactory {
+
+    private QueryNodeFactory() {
+    }
+
+    /**
+     * @param name a name without @{link Helper#NAME_SUFFIX}
+     * @return <code>VariableExpression</code> for <code>name__123</code>
+     */
+    public static VariableExpression var(String name) {
+        return new VariableExpression(trname(name));
+    }
+    /**
+     * Creates an expression for a dotted name such as
+     * <code>Query.FilterOperator.EQUAL</code>. The first segment becomes a
+     * <code>VariableExpression</code> and each next one a
+     * <code>PropertyExpression</code> as the parser does.
+     */
+    public static Expression dotted(String name) {
+        String[] parts = name.split("\\.");
+        Expression result = new VariableExpression(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            result = new PropertyExpression(result, parts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @param className a fully qualified class name
+     * @return an unresolved <code>ClassNode</code> as the parser creates
+     *   for a type name in the source
+     */
+    public static ClassNode type(String className) {
+        return ClassHelper.make(className);
+    }
+
+    /**
+     * @return a class literal like <code>Person</code> in <code>Person.class</code>
+     */
+    public static Expression classOf(String className) {
+        return new ClassExpression(type(className));
+    }
+
+    public static Expression cast(ClassNode type, Expression expression) {
+        return new CastExpression(type, expression);
+    }
+
+    public static Expression constant(Object value) {
+        return new ConstantExpression(value);
+    }
+
+    public static Expression property(Expression object, String name) {
+        return new PropertyExpression(object, name);
+    }
+
+    /**
+     * @return an expression like <code>new Object[] {a, b}</code>
+     */
+    public static Expression objectArray(List<Expression> elements) {
+        return new ArrayExpression(ClassHelper.OBJECT_TYPE, elements);
+    }
+
+    public static MethodCallExpression call(Expression receiver, String method, Expression... args) {
+        MethodCallExpression result = new MethodCallExpression(receiver, method, new ArgumentListExpression(args));
+        result.setImplicitThis(false);
+        return result;
+    }
+
+    public static Expression newInstance(String className, Expression... args) {
+        return new ConstructorCallExpression(ClassHelper.make(className), new ArgumentListExpression(args));
+    }
+
+    public static Expression binary(Expression left, int tokenType, Expression right) {
+        return new BinaryExpression(left, Token.newSymbol(tokenType, -1, -1), right);
+    }
+
+    public static Expression and(Expression left, Expression right) {
+        return binary(left, Types.LOGICAL_AND, right);
+    }
+
+    public static Expression not(Expression expression) {
+        return new NotExpression(expression);
+    }
+
+    public static Expression ternary(Expression condition, Expression whenTrue, Expression whenFalse) {
+        return new TernaryExpression(new BooleanExpression(condition), whenTrue, whenFalse);
+    }
+
+    public static Expression instanceOf(Expression expression, String className) {
+        return binary(expression, Types.KEYWORD_INSTANCEOF, new ClassExpression(ClassHelper.make(className)));
+    }
+    /**
+     * @return a statement like <code>def name__123 = init</code>
+     */
+    public static Statement declare(String name, Expression init) {
+        return new ExpressionStatement(
+                new DeclarationExpression(var(name), Token.newSymbol(Types.EQUAL, -1, -1), init));
+    }
+    /**
+     * @return a statement like <code>Type name__123 = init</code>
+     */
+    public static Statement declare(String name, ClassNode type, Expression init) {
+        return new ExpressionStatement(new DeclarationExpression(
+                new VariableExpression(trname(name), type), Token.newSymbol(Types.EQUAL, -1, -1), init));
+    }
+    /**
+     * @return a statement like <code>name__123 = value</code>
+     */
+    public static Statement assign(String name, Expression value) {
+        return new ExpressionStatement(binary(var(name), Types.EQUAL, value));
+    }
+
+    public static Statement stmt(Expression expression) {
+        return new ExpressionStatement(expression);
+    }
+
+    public static BlockStatement block(Statement... statements) {
+        BlockStatement result = new BlockStatement();
+        for (Statement s : statements) {
+            result.addStatement(s);
+        }
+        return result;
+    }
+
+    public static Statement ifThen(Expression condition, Statement ifBlock) {
+        return ifThenElse(condition, ifBlock, EmptyStatement.INSTANCE);
+    }
+
+    public static Statement ifThenElse(Expression condition, Statement ifBlock, Statement elseBlock) {
+        return new IfStatement(new BooleanExpression(condition), ifBlock, elseBlock);
+    }
+    /**
+     * Renders the statements this factory creates as source-like text,
+     * one statement per line. The text is only read by people, it is not
+     * meant to be compiled.
+     * @param indent the indentation of the statement
+     */
+    public static String text(Statement statement, String indent) {
+        if (statement instanceof BlockStatement) {
+            StringBuilder result = new StringBuilder();
+            for (Statement s : ((BlockStatement) statement).getStatements()) {
+                if (result.length() > 0) {
+                    result.append('\n');
+                }
+                result.append(text(s, indent));
+            }
+            return result.toString();
+        }
+        if (statement instanceof IfStatement) {
+            IfStatement ifStatement = (IfStatement) statement;
+            String result = indent + "if (" + ifStatement.getBooleanExpression().getExpression().getText() + ") {\n"
+                    + text(ifStatement.getIfBlock(), indent + "    ") + "\n" + indent + "}";
+            if (!(ifStatement.getElseBlock() instanceof EmptyStatement)) {
+                result += " else {\n" + text(ifStatement.getElseBlock(), indent + "    ") + "\n" + indent + "}";
+            }
+            return result;
+        }
+        if (statement instanceof ReturnStatement) {
+            return indent + "return " + ((ReturnStatement) statement).getExpression().getText();
+        }
+        if (statement instanceof ExpressionStatement) {
+            return indent + ((ExpressionStatement) statement).getExpression().getText();
+        }
+        return indent + statement.getText();
+    }
+}
@@ -0,0 +1,33 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.util.ArrayList;
+
+/**
+ * A page of entities with the cursor to the position after its last
+ * entity, which starts the next page.
+ *
+ * @see QueryPages
+ * @author V. Shyshkin
+ */
+public class QueryPage extends ArrayList<Entity> implements QueryResultList<Entity> {
+
+    private static final long serialVersionUID = 1L;
+
+    Cursor cursor;
+
+    @Override
+    public Cursor getCursor() {
+        return cursor;
+    }
+    /**
+     * @return the web safe string of the cursor, to be passed to the
+     *   client as <code>startCursor</code> of the next request, or
+     *   <code>null</code>
+     */
+    public String getWebSafeCursor() {
+        return cursor == null ? null : cursor.toWebSafeString();
+    }
+}
@@ -0,0 +1,128 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.BaseDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/**
+ * The pages of <code>cursor pages, limit(20)</code>, each of them a
+ * @{link QueryPage} with its cursor:
+ * <pre>
+ *   def pages = datastore.executeQuery {
+ *       cursor pages, limit(20), prefetchPages(2), startCursor(params.next)
+ *       from Item
+ *       orderBy created
+ *   }
+ *   for (page in pages) {
+ *       ... page.webSafeCursor
+ *   }
+ * </pre>
+ * The pages are fetched ahead of the caller. The pages of
+ * <code>prefetchPages</code> (one by default) are requested with a single
+ * request to the <code>AsyncDatastoreService</code>. When the caller takes
+ * the first of them the request for the following pages is sent at once,
+ * starting at the cursor of the last one, so it runs while the caller
+ * works through the pages it has. A service which is not asynchronous is
+ * replaced with the default <code>AsyncDatastoreService</code>.
+ * <p/>
+ * The iteration ends with the first page which is not full.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryPages implements Iterator<QueryPage> {
+
+    private final AsyncDatastoreService service;
+    private final Query query;
+    private final int pageSize;
+    private final int prefetchPages;
+    private final LinkedList<QueryPage> ready = new LinkedList<QueryPage>();
+    /**
+     * The request for the next pages or <code>null</code> when there are
+     * no more pages.
+     */
+    private QueryResultIterator<Entity> next;
+
+    /**
+     * @param service the datastore service
+     * @param query the query
+     * @param options the options with the <code>limit</code> as the size
+     *   of a page and the optional start cursor
+     * @param prefetchPages the number of pages requested at once or
+     *   <code>null</code> for one page
+     */
+    public QueryPages(BaseDatastoreService service, Query query, FetchOptions options, Number prefetchPages) {
+        if (options.getLimit() == null || options.getLimit() <= 0) {
+            throw new IllegalArgumentException("'cursor pages' requires a positive 'limit' as the size of a page");
+        }
+        this.service = service instanceof AsyncDatastoreService
+                ? (AsyncDatastoreService) service
+                : DatastoreServiceFactory.getAsyncDatastoreService();
+        this.query = query;
+        this.pageSize = options.getLimit();
+        this.prefetchPages = prefetchPages == null || prefetchPages.intValue() < 1 ? 1 : prefetchPages.intValue();
+        request(options.getStartCursor());
+    }
+
+    private void request(Cursor start) {
+        int size = pageSize * prefetchPages;
+        FetchOptions options = FetchOptions.Builder.withLimit(size).chunkSize(size).prefetchSize(size);
+        if (start != null) {
+            options.startCursor(start);
+        }
+        next = service.prepare(query).asQueryResultIterator(options);
+    }
+    /**
+     * Waits for the requested pages and requests the following ones.
+     */
+    private void receive() {
+        QueryResultIterator<Entity> entities = next;
+        next = null;
+        int count = 0;
+        QueryPage page = new QueryPage();
+        while (entities.hasNext()) {
+            page.add(entities.next());
+            count++;
+            if (page.size() == pageSize) {
+                page.cursor = entities.getCursor();
+                ready.add(page);
+                page = new QueryPage();
+            }
+        }
+        if (!page.isEmpty()) {
+            page.cursor = entities.getCursor();
+            ready.add(page);
+        }
+        if (count == pageSize * prefetchPages) {
+            request(entities.getCursor());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (ready.isEmpty() && next != null) {
+            receive();
+        }
+        return !ready.isEmpty();
+    }
+
+    @Override
+    public QueryPage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return ready.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
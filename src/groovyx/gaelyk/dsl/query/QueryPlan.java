@@ -0,0 +1,265 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The plan of a query, returned by <code>transformedText</code>:
+ * <pre>
+ *   def minAge = 18
+ *   println datastore.transformedText {
+ *       select all, limit(10)
+ *       from Person
+ *       where tag in ['a', 'b'] &amp;&amp; age &gt;= minAge
+ *       orderBy age
+ *   }
+ * </pre>
+ * The closure is transformed as for <code>executeQuery</code> but the
+ * query is not run. The plan has the code the query is transformed into,
+ * the parts of its @{link QueryDescriptor} with the values of the
+ * parameters, the property of the inequality filters, the number of
+ * sub-queries the datastore runs for the <code>IN</code>, <code>!=</code>
+ * and <code>||</code> filters and the composite indexes the query needs,
+ * in the form of <code>datastore-indexes.xml</code>. When the query cannot
+ * be built with the values of the parameters, the exception is kept as
+ * @{link #getError() } and the plan has no sub-queries and no indexes.
+ * <p/>
+ * A query needs no composite index when it has only equality filters,
+ * with or without an ancestor, or when its inequality filters and its
+ * sort order are on a single property and it has neither equality
+ * filters nor an ancestor.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryPlan {
+
+    private final String code;
+    private final String query;
+    private final String kind;
+    private final QueryDescriptor.Result result;
+    private final boolean keysOnly;
+    private final String ancestor;
+    private final List<String> filters = new ArrayList<String>();
+    private final List<String> sorts = new ArrayList<String>();
+    private final String fetchOptions;
+    private final String inequalityProperty;
+    private final int subQueries;
+    private final List<String> indexes;
+    private final RuntimeException error;
+
+    QueryPlan(QueryDescriptor descriptor, String code, Object[] values) {
+        this.code = code;
+        this.query = descriptor.toString();
+        this.kind = descriptor.getKind();
+        this.result = descriptor.getResult();
+        this.keysOnly = descriptor.isKeysOnly();
+        this.ancestor = descriptor.ancestor == null ? null : bound(descriptor.ancestor, values);
+        String inequality = null;
+        for (QueryDescriptor.Filter f : descriptor.filters) {
+            filters.add(f.property + " " + f.operator + " " + bound(f.value, values)
+                    + (f.group < 0 ? "" : " (disjunct " + f.group + "." + f.branch + ")"));
+            if (inequality == null && f.operator != Query.FilterOperator.EQUAL
+                    && f.operator != Query.FilterOperator.IN) {
+                inequality = f.property;
+            }
+        }
+        this.inequalityProperty = inequality;
+        for (QueryDescriptor.Sort s : descriptor.sorts) {
+            sorts.add(s.property + (s.direction == Query.SortDirection.DESCENDING ? " desc" : ""));
+        }
+        this.fetchOptions = SlowQueryLog.fetchOptions(descriptor, values);
+        List<Query> queries;
+        RuntimeException failure = null;
+        try {
+            queries = descriptor.isMultiQuery()
+                    ? descriptor.createSubQueries(values, false)
+                    : Collections.singletonList(descriptor.createQuery(values));
+        } catch (RuntimeException e) {
+            queries = Collections.emptyList();
+            failure = e;
+        }
+        this.subQueries = queries.size();
+        this.error = failure;
+        Set<String> found = new LinkedHashSet<String>();
+        for (Query q : queries) {
+            String index = index(q);
+            if (index != null) {
+                found.add(index);
+            }
+        }
+        this.indexes = new ArrayList<String>(found);
+    }
+
+    private static String bound(QueryDescriptor.Value value, Object[] values) {
+        if (!value.isParameter()) {
+            return String.valueOf(value.constant);
+        }
+        Object bound = values != null && value.index < values.length ? values[value.index] : null;
+        return value + " = " + bound;
+    }
+    /**
+     * @return the composite index a query needs in the form of
+     *   <code>datastore-indexes.xml</code> or <code>null</code> when the
+     *   built-in indexes serve it
+     */
+    static String index(Query query) {
+        if (query.getKind() == null) {
+            return null;
+        }
+        List<String> equality = new ArrayList<String>();
+        String inequality = null;
+        for (Query.FilterPredicate p : query.getFilterPredicates()) {
+            if (p.getOperator() == Query.FilterOperator.EQUAL) {
+                if (!equality.contains(p.getPropertyName())) {
+                    equality.add(p.getPropertyName());
+                }
+            } else {
+                inequality = p.getPropertyName();
+            }
+        }
+        //
+        // The sort orders on the properties of the equality filters are
+        // dropped by the datastore
+        //
+        List<Query.SortPredicate> sortOrders = new ArrayList<Query.SortPredicate>();
+        for (Query.SortPredicate s : query.getSortPredicates()) {
+            if (!equality.contains(s.getPropertyName())) {
+                sortOrders.add(s);
+            }
+        }
+        boolean ancestor = query.getAncestor() != null;
+        if (inequality == null && sortOrders.isEmpty()) {
+            return null;
+        }
+        if (equality.isEmpty() && !ancestor && sortOrders.size() <= 1
+                && (inequality == null || sortOrders.isEmpty()
+                || inequality.equals(sortOrders.get(0).getPropertyName()))) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("<datastore-index kind=\"").append(query.getKind())
+                .append("\" ancestor=\"").append(ancestor).append("\">");
+        for (String property : equality) {
+            property(sb, property, false);
+        }
+        if (inequality != null && (sortOrders.isEmpty()
+                || !inequality.equals(sortOrders.get(0).getPropertyName()))) {
+            property(sb, inequality, false);
+        }
+        for (Query.SortPredicate s : sortOrders) {
+            property(sb, s.getPropertyName(), s.getDirection() == Query.SortDirection.DESCENDING);
+        }
+        return sb.append("</datastore-index>").toString();
+    }
+
+    private static void property(StringBuilder sb, String name, boolean descending) {
+        sb.append("<property name=\"").append(name).append("\" direction=\"")
+                .append(descending ? "desc" : "asc").append("\"/>");
+    }
+    /**
+     * @return the text of the code the query is transformed into
+     */
+    public String getCode() {
+        return code;
+    }
+    /**
+     * @return the text of the descriptor
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public QueryDescriptor.Result getResult() {
+        return result;
+    }
+
+    public boolean isKeysOnly() {
+        return keysOnly;
+    }
+    /**
+     * @return the ancestor parameter with its value or <code>null</code>
+     */
+    public String getAncestor() {
+        return ancestor;
+    }
+    /**
+     * @return the filters, such as <code>age &gt;= ?1 = 18</code> for a
+     *   parameter
+     */
+    public List<String> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+    /**
+     * @return the sort orders, such as <code>age desc</code>
+     */
+    public List<String> getSorts() {
+        return Collections.unmodifiableList(sorts);
+    }
+
+    public String getFetchOptions() {
+        return fetchOptions;
+    }
+    /**
+     * @return the property of the inequality filters or <code>null</code>
+     */
+    public String getInequalityProperty() {
+        return inequalityProperty;
+    }
+    /**
+     * @return the number of queries the datastore runs: <code>1</code>
+     *   for a simple query, the number of sub-queries otherwise or
+     *   <code>0</code> when the query cannot be built with the values
+     */
+    public int getSubQueries() {
+        return subQueries;
+    }
+    /**
+     * @return the exception thrown when the query was built with the
+     *   values of the parameters or <code>null</code>
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    public boolean isCompositeIndexRequired() {
+        return !indexes.isEmpty();
+    }
+    /**
+     * @return the composite indexes the query needs
+     */
+    public List<String> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("code:\n  ").append(code.replace("\n", "\n  ")).append('\n');
+        sb.append("query: ").append(query).append('\n');
+        sb.append("kind: ").append(kind).append('\n');
+        sb.append("result: ").append(result).append(keysOnly ? " (keys only)" : "").append('\n');
+        if (ancestor != null) {
+            sb.append("ancestor: ").append(ancestor).append('\n');
+        }
+        sb.append("filters: ").append(filters).append('\n');
+        sb.append("sorts: ").append(sorts).append('\n');
+        sb.append("fetch options: ").append(fetchOptions).append('\n');
+        sb.append("inequality property: ").append(inequalityProperty).append('\n');
+        if (error != null) {
+            sb.append("error: ").append(error).append('\n');
+        }
+        sb.append("sub-queries: ").append(subQueries).append('\n');
+        sb.append("composite index: ").append(indexes.isEmpty() ? "not required" : "required");
+        for (String index : indexes) {
+            sb.append("\n  ").append(index);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.io.IOException;
+import java.io.Reader;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.io.ReaderSource;
+
+/**
+ * Decides whether a source unit may contain a "query DSL" without walking
+ * its AST.
+ * <p/>
+ * The text of the source is scanned for the identifiers that a query
+ * starts with (see @{link MethodCallVisitorSupport#RECEIVER_NAMES}).
+ * Comments and string literals are not recognized, so the filter may
+ * accept a unit without queries, but never rejects a unit which has
+ * one. When the text cannot be read the unit is accepted.
+ *
+ * @author V. Shyshkin
+ */
+public class QuerySourceFilter {
+
+    private QuerySourceFilter() {
+    }
+    /**
+     * @param sourceUnit the unit to be checked
+     * @return <code>false</code> if the source of the unit doesn't contain
+     *   any of the receiver names
+     */
+    public static boolean mayContainQueries(SourceUnit sourceUnit) {
+        ReaderSource source = sourceUnit.getSource();
+        if (source == null) {
+            return true;
+        }
+        Reader reader = null;
+        try {
+            reader = source.getReader();
+            return containsReceiverName(reader);
+        } catch (IOException ex) {
+            return true;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+    /**
+     * Reads identifiers one by one and stops at the first one which is
+     * a receiver name.
+     */
+    protected static boolean containsReceiverName(Reader reader) throws IOException {
+        char[] buf = new char[8192];
+        StringBuilder ident = new StringBuilder();
+        int n;
+        while ((n = reader.read(buf)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                if (Character.isJavaIdentifierPart(c)) {
+                    ident.append(c);
+                } else if (ident.length() > 0) {
+                    if (MethodCallVisitorSupport.isReceiverName(ident)) {
+                        return true;
+                    }
+                    ident.setLength(0);
+                }
+            }
+        }
+        return MethodCallVisitorSupport.isReceiverName(ident);
+    }
+}
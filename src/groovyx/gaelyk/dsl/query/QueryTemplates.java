@@ -0,0 +1,146 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.ast.ASTNode;
+import org.codehaus.groovy.ast.builder.AstBuilder;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilePhase;
+
+import static groovyx.gaelyk.dsl.query.Helper.*;
+
+/**
+ * Holds the fixed fragments of the transformed code as AST templates.
+ * <p/>
+ * The fragments produced by the methods <code>initTransform()</code>,
+ * <code>postFromTransform()</code>, <code>postFetchOptionsTransform()</code>
+ * and <code>finalTransform()</code> of the @{link StringQueryEmitter} are the
+ * same for every closure. They are parsed once per JVM, when the class is
+ * first used, and each closure gets a deep copy made by @{link AstCloner}.
+ * <p/>
+ * A fragment is referenced from the source code with a marker statement
+ * (see @{link #marker(int)}) which @{link #expand(List)} replaces with a copy
+ * of the template.
+ *
+ * @author V. Shyshkin
+ */
+public class QueryTemplates {
+
+    public static final int INIT = 0;
+    public static final int POST_FROM = 1;
+    public static final int POST_FETCH_OPTIONS = 2;
+    public static final int FINAL = 3;
+
+    public static final String MARKER_METHOD = "template" + NAME_SUFFIX;
+
+    private QueryTemplates() {
+    }
+
+    /**
+     * Lazy holder of the parsed templates.
+     */
+    private static class Holder {
+
+        static final String[] SOURCES;
+        static final List<List<Statement>> TEMPLATES;
+
+        static {
+            StringQueryEmitter e = new StringQueryEmitter(false);
+            SOURCES = new String[]{
+                e.initTransform(),
+                e.postFromTransform(),
+                e.postFetchOptionsTransform(),
+                e.finalTransform()};
+            TEMPLATES = new ArrayList<List<Statement>>(SOURCES.length);
+            for (String source : SOURCES) {
+                TEMPLATES.add(parse(source));
+            }
+        }
+    }
+
+    /**
+     * Parses a given source code into a list of top level statements.
+     */
+    public static List<Statement> parse(String source) {
+        List<ASTNode> astNodes = new AstBuilder().buildFromString(CompilePhase.CONVERSION, true, source);
+        List<Statement> result = new ArrayList<Statement>();
+        for (ASTNode node : astNodes) {
+            if (node instanceof BlockStatement) {
+                result.addAll(((BlockStatement) node).getStatements());
+            } else {
+                result.add((Statement) node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param id one of @{link #INIT}, @{link #POST_FROM},
+     *  @{link #POST_FETCH_OPTIONS}, @{link #FINAL}
+     * @return a new copy of the template statements
+     */
+    public static List<Statement> get(int id) {
+        return new AstCloner().clone(Holder.TEMPLATES.get(id));
+    }
+
+    /**
+     * @return the source code the template was parsed from
+     */
+    public static String getSource(int id) {
+        return Holder.SOURCES[id];
+    }
+
+    /**
+     * @return a statement to be placed into a source code in place of
+     *  the template with a given id
+     */
+    public static String marker(int id) {
+        return MARKER_METHOD + "(" + id + ")\n";
+    }
+
+    /**
+     * Replaces the marker statements of a given list with the copies of
+     * the templates.
+     * @param statements top level statements of the parsed source code
+     * @return a new list of statements
+     */
+    public static List<Statement> expand(List<Statement> statements) {
+        List<Statement> result = new ArrayList<Statement>(statements.size() + 64);
+        for (Statement s : statements) {
+            int id = getMarkerId(s);
+            if (id < 0) {
+                result.add(s);
+            } else {
+                result.addAll(get(id));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the template id if a given statement is a marker.
+     *   <code>-1</code> otherwise.
+     */
+    protected static int getMarkerId(Statement statement) {
+        if (!(statement instanceof ExpressionStatement)) {
+            return -1;
+        }
+        Expression expr = ((ExpressionStatement) statement).getExpression();
+        if (!(expr instanceof MethodCallExpression)
+                || !MARKER_METHOD.equals(((MethodCallExpression) expr).getMethodAsString())) {
+            return -1;
+        }
+        Expression args = ((MethodCallExpression) expr).getArguments();
+        if (!(args instanceof ArgumentListExpression)) {
+            return -1;
+        }
+        Expression arg = ((ArgumentListExpression) args).getExpression(0);
+        return ((Number) ((ConstantExpression) arg).getValue()).intValue();
+    }
+}
@@ -9,11 +9,17 @@ import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.CompilationUnit;
 import groovy.lang.GroovyClassLoader;
 import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.CompileUnit;
 import org.codehaus.groovy.control.ResolveVisitor;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import org.codehaus.groovy.ast.expr.*;
 
 import java.util.List;
+import java.util.Map;
 import org.codehaus.groovy.ast.ASTNode;
 import org.codehaus.groovy.ast.builder.AstBuilder;
 import org.codehaus.groovy.ast.stmt.BlockStatement;
@@ -31,9 +37,16 @@ import static groovyx.gaelyk.dsl.query.Helper.*;
  * A closure to be transformed must contains a sequence of 
  * <code>ExpressionStatement</code> that is recognized as a 
  * <code>query DSL</code>. <br/>
- * First a <code>ClosureExpression</code> is converted to a string,
- * which is a source code for the query in the GAE way. Then 
- * <code>AstBuilder</code> builds AST from source. <br/>
+ * The statements of a <code>ClosureExpression</code> are validated and
+ * passed to a @{link QueryEmitter} which produces the code for the query 
+ * in the GAE way. By default @{link ExecutorQueryEmitter} replaces the
+ * closure code with a call of the precompiled @{link QueryExecutor}. When
+ * the system property @{link Helper#BACKEND_PROPERTY} is set to
+ * <code>"node"</code> the @{link NodeQueryEmitter} creates the code of the
+ * query inline. When it is set to <code>"string"</code>
+ * the @{link StringQueryEmitter} is used: 
+ * the closure is converted to a string, which is a source code for the 
+ * query, and then <code>AstBuilder</code> builds AST from source. <br/>
  * Suppose we have code:
  * <pre>
  *   def persons = datastore.query {
@@ -124,7 +137,10 @@ import static groovyx.gaelyk.dsl.query.Helper.*;
  * </pre>  
  * </code>
  * The script above may be used by AstBuilder to perform transformation
- * from string. <p/>
+ * from string. @{link NodeQueryEmitter} creates the nodes without the
+ * script and keeps only the statements that can run for the given 
+ * closure: here a <code>Query</code> for <code>"Person"</code>, the
+ * <code>limit</code> and a single <code>asList</code> call. <p/>
  * We see that the internally defined fields have a suffix "__123". 
  * Actually the value of the suffix is defined by the constant
  * @{link Helper#NAME_SUFFIX} and may contain,  for example some kind of UID.
@@ -166,15 +182,54 @@ public class QueryTransformer implements VisitClosureHandler  {
     
     protected QueryASTResolveVisitor resolveVisitor;
     /**
-     * Since the class @{link DefaultExpressionConverter} implements 
-     * @{link ExpressionConverter} it is used as a converter by default.
+     * The times of the phases of the transformation of the source unit.
      */
-    protected ExpressionConverter converter;
+    protected TransformStatistics.Unit statistics;
+    /**
+     * The emitter of the closure which is being transformed.
+     */
+    protected QueryEmitter emitter;
+    /**
+     * One of @{link Helper#EXECUTOR_BACKEND}, @{link Helper#NODE_BACKEND}
+     * or @{link Helper#STRING_BACKEND}.
+     */
+    protected String backend;
+    /**
+     * <code>true</code> when the system property
+     * @{link Helper#STATIC_PROPERTY} is <code>"true"</code>.
+     */
+    protected boolean staticMode;
+    /**
+     * Whether the static mode can be used or <code>null</code> until it
+     * is known (see @{link #isStaticModeSupported }).
+     */
+    protected Boolean staticModeSupported;
+    /**
+     * The class whose fields and methods are being visited.
+     */
+    protected ClassNode currentClass;
+    /**
+     * The calls of <code>executeQuery</code> and <code>defineQuery</code>
+     * by their closures.
+     */
+    protected Map<ClosureExpression, MethodCallExpression> calls = Collections.emptyMap();
+    /**
+     * The calls of <code>parallel</code> and the <code>query {...}</code>
+     * calls of their blocks.
+     */
+    protected List<MethodCallExpression> parallelCalls = Collections.emptyList();
+    protected Set<MethodCallExpression> parallelQueries =
+            Collections.newSetFromMap(new IdentityHashMap<MethodCallExpression, Boolean>());
     /**
      * Method @{link #transform} scans a stateList and performs transformation 
      * for each element. Here is an index of the current item.
      */
     protected int currentClosure;
+    /**
+     * The messages of the errors which are not reported (see
+     * @{link #generatedText }) or <code>null</code>.
+     */
+    protected List<String> quietErrors;
     
     protected Dummy_123 dummy;
     /**
@@ -184,150 +239,260 @@ public class QueryTransformer implements VisitClosureHandler  {
     public QueryTransformer(SourceUnit sourceUnit) {
         this.sourceUnit = sourceUnit;
         stateList = new ArrayList<TransformState>();
+        statistics = new TransformStatistics.Unit(sourceUnit == null ? null : sourceUnit.getName());
+        backend = System.getProperty(BACKEND_PROPERTY, EXECUTOR_BACKEND);
+        staticMode = Boolean.getBoolean(STATIC_PROPERTY);
+    }
+
+    public TransformStatistics.Unit getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(TransformStatistics.Unit statistics) {
+        this.statistics = statistics;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    public void setBackend(String backend) {
+        this.backend = backend;
+    }
+
+    public boolean isStaticMode() {
+        return staticMode;
+    }
+
+    public void setStaticMode(boolean staticMode) {
+        this.staticMode = staticMode;
     }
     /**
-     * @return an object of type <code>String</code> which represents
-     *    the initial part of a source for AST transformation. 
+     * Sets the class which owns the closures found from now on.
      */
-    protected String initTransform() {
-        return 
-                defVariable("markerProperty")
-                + ("def whereFields" + NAME_SUFFIX + " = \"\" \n")
-                + ("def orderByFields" + NAME_SUFFIX + " = \"\" \n")
-                + defVariable("pojo")
-                + defVariable("pojoClass")
-                + defVariable("entity")
-                + "def fetchOptions" + NAME_SUFFIX + " = FetchOptions.Builder.withDefaults() \n"
-                + defVariable("select")
-                + defVariable("cursor")
-                + defVariable("kind")
-                + defVariable("all")
-                + defVariable("keys")
-                + defVariable("single")
-                + defVariable("count")
-                + defVariable("ancestorKey")
-                + defVariable("limit")
-                + defVariable("offset")
-                + defVariable("chunkSize")
-                + defVariable("prefetchSize")
-                + defVariable("deadLine")
-                + defVariable("startCursor")
-                + defVariable("endCursor")
-                + defVariable("childOf")
-                + defVariable("query")
-                + defVariable("preparedQuery");
+    public void setCurrentClass(ClassNode currentClass) {
+        this.currentClass = currentClass;
     }
     /**
-     * The method is invoked at the end of the method 
-     * @{link #transformFetchOptionsArguments }.  
-     * 
-     * @return a string with a part of source code for <code>AstBuilder</code>.
+     * @param calls the calls of <code>executeQuery</code> and
+     *   <code>defineQuery</code> by their closures. The closure of
+     *   <code>defineQuery</code> is executed by a @{link CompiledQuery}
      */
-    protected String postFetchOptionsTransform() {
-        return //"print 'class=' + it.getClass() \n"      +
-                "if (" + trname("chunkSize") + ") { \n"
-                + "   fetchOptions" + NAME_SUFFIX + ".chunkSize(" + trname("chunkSize") + ")\n"
-                + "}\n "
-                + "if (" + trname("prefetchSize") + ") { \n"
-                + trname("fetchOptions") + ".prefetchSize(" + trname("prefetchSize") + ")\n"
-                + "}\n ";
+    public void setCalls(Map<ClosureExpression, MethodCallExpression> calls) {
+        this.calls = calls;
     }
-    
     /**
-     * The method is invoked at the end of the method 
-     * @{link #transformFromArguments }.  
-     * 
-     * @return a string with a part of source code for <code>AstBuilder</code>.
+     * @param parallelCalls the calls of <code>parallel</code>. The
+     *   closures of their <code>query {...}</code> statements are among
+     *   the @{link #calls} and are executed asynchronously
      */
-    protected String postFromTransform() {
-        return 
-                "if (" + trname("kind") + ") { \n"
-                + trname("query") + " = new com.google.appengine.api.datastore.Query(" + trname("kind") + ")\n"
-                //               assign("query", "QueryCreator.create(" + trname("kind") + ")\n") +                 
-                + "    if (" + trname("childOf") + ") { \n"
-                + "       if (childOf" + NAME_SUFFIX + " instanceof Key ) { \n"
-                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ")\n"
-                + "       } else { \n"
-                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ".key)\n"
-                + "       }\n"
-                + "    }\n"
-                + "} else {\n"
-                + trname("query") + " = new com.google.appengine.api.datastore.Query()\n"
-                + "    if (" + trname("childOf") + ") { \n"
-                + "       if (childOf" + NAME_SUFFIX + " instanceof Key ) { \n"
-                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ")\n"
-                + "       } else { \n"
-                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ".key)\n"
-                + "       }\n"
-                + "    }\n"
-                + "}\n"
-                + "if (" + trname("keys") + ") {\n"
-                + "query" + NAME_SUFFIX + ".setKeysOnly()\n"
-                + "}\n";
+    public void setParallelCalls(List<MethodCallExpression> parallelCalls) {
+        this.parallelCalls = parallelCalls;
+        for (MethodCallExpression call : parallelCalls) {
+            for (Statement statement : getParallelBody(call).getStatements()) {
+                if (statement instanceof ExpressionStatement
+                        && ((ExpressionStatement) statement).getExpression() instanceof MethodCallExpression) {
+                    parallelQueries.add((MethodCallExpression) ((ExpressionStatement) statement).getExpression());
+                }
+            }
+        }
+    }
 
+    private static BlockStatement getParallelBody(MethodCallExpression call) {
+        List<Expression> args = ((ArgumentListExpression) call.getArguments()).getExpressions();
+        return (BlockStatement) ((ClosureExpression) args.get(args.size() - 1)).getCode();
     }
     /**
-     * The method is invoked when the last statement in the closure 
-     * is treated.
-     * 
-     * @return a string with a final part of source code for <code>AstBuilder</code>.
+     * Creates a new emitter for the closure to be transformed.
+     * @return an instance of @{link ExecutorQueryEmitter} for the closures
+     *   of <code>transformedText</code> and <code>executeQueryAsync</code>.
+     *   Otherwise an instance of @{link StaticQueryEmitter} in the
+     *   @{link #staticMode}, an instance of @{link StringQueryEmitter} when the
+     *   @{link #backend} is <code>"string"</code>, an instance of
+     *   @{link NodeQueryEmitter} when it is <code>"node"</code>. Otherwise
+     *   an instance of @{link ExecutorQueryEmitter}.
+     */
+    protected QueryEmitter createEmitter() {
+        TransformState st = stateList.get(currentClosure);
+        ClassNode owner = st.getOwner();
+        QueryEmitter result;
+        if (st.isExplain()) {
+            //
+            // The plan is the descriptor of the default back end, the code
+            // is the one of the emitter executeQuery uses
+            //
+            ExecutorQueryEmitter explain = new ExecutorQueryEmitter(owner);
+            explain.setExplain(true);
+            explain.setCode(generatedText(st));
+            result = explain;
+        } else if (st.isAsync()) {
+            //
+            // The asynchronous queries are always run by the QueryExecutor
+            //
+            ExecutorQueryEmitter async = new ExecutorQueryEmitter(owner);
+            async.setAsync(true);
+            Expression service = inlineService(st);
+            if (service != null) {
+                async.setService(service);
+                st.setInline(true);
+            }
+            result = async;
+        } else {
+            result = createQueryEmitter(st);
+        }
+        if (result instanceof ExecutorQueryEmitter) {
+            ClosureExpression closure = st.getClosure();
+            ((ExecutorQueryEmitter) result).setSite(siteName(closure));
+        }
+        if (result instanceof NodeQueryEmitter) {
+            ((NodeQueryEmitter) result).setDefinition(st.isDefinition());
+        }
+        return result;
+    }
+    /**
+     * @return the emitter of the closure of <code>executeQuery</code> or
+     *   <code>defineQuery</code>, which depends on the @{link #staticMode}
+     *   and the @{link #backend}
      */
-    protected String finalTransform() {
-        return trname("preparedQuery") + " = it.prepare(" + "query" + NAME_SUFFIX + ")\n"
-                //+ "if ("  + "all" + NAME_SUFFIX + " && " 
-                + "if ("
-                + "cursor" + NAME_SUFFIX + ") {\n"
-                + "     if (" + "startCursor" + NAME_SUFFIX + ") {\n"
-                + "           if (" + "(startCursor" + NAME_SUFFIX
-                + " instanceof String) && startCursor" + NAME_SUFFIX + ".trim() != 'null' "
-                + " && ! startCursor" + NAME_SUFFIX + ".trim().isEmpty() ) {\n"
-                + "                fetchOptions" + NAME_SUFFIX + ".startCursor("
-                + "Cursor.fromWebSafeString(startCursor" + NAME_SUFFIX + "))\n"
-                + "           } else if (startCursor" + NAME_SUFFIX + " instanceof Cursor ) { \n"
-                + "                fetchOptions" + NAME_SUFFIX + ".startCursor("
-                + "startCursor" + NAME_SUFFIX + ")\n"
-                + "           }\n"
-                //                + "        }\n"                
-                + "     }\n"
-                + "    preparedQuery" + NAME_SUFFIX + ".asQueryResultList(fetchOptions" + NAME_SUFFIX + ")\n"
-                + "}\n"
-                + "else if (" + "all" + NAME_SUFFIX + ") { \n"
-                + "    preparedQuery" + NAME_SUFFIX + ".asList(fetchOptions" + NAME_SUFFIX + ")\n"
-                + "}\n"
-                + "else if (" + "count" + NAME_SUFFIX + ") {\n"
-                + "    preparedQuery" + NAME_SUFFIX + ".countEntities(fetchOptions" + NAME_SUFFIX + ")\n"
-                + "}\n"
-                + "else if (" + "single" + NAME_SUFFIX + ") {\n"
-                + "    preparedQuery" + NAME_SUFFIX + ".asSingleEntity()\n"
-                + "}\n"
-                + "else {\n"
-                + "    preparedQuery" + NAME_SUFFIX + ".asList(fetchOptions" + NAME_SUFFIX + ")\n"
-                + "}\n";
-//                + " pojoClass";
+    protected QueryEmitter createQueryEmitter(TransformState st) {
+        ClassNode owner = st.getOwner();
+        if (staticMode && owner != null) {
+            if (isStaticModeSupported()) {
+                return new StaticQueryEmitter(owner);
+            }
+            addError("The static mode (" + STATIC_PROPERTY + ") requires groovy.transform.CompileStatic,"
+                    + " which this version of Groovy doesn't have", st.getClosure());
+        }
+        if (STRING_BACKEND.equals(backend) && !st.isDefinition()) {
+            return new StringQueryEmitter();
+        } else if (NODE_BACKEND.equals(backend) || STRING_BACKEND.equals(backend)) {
+            //
+            // The string back end has no bind parameters, so the closures
+            // of defineQuery are emitted as nodes
+            //
+            return new NodeQueryEmitter(owner);
+        }
+        ExecutorQueryEmitter result = new ExecutorQueryEmitter(owner);
+        Expression service = inlineService(st);
+        if (service != null) {
+            result.setService(service);
+            if (!st.isExplain()) {
+                st.setInline(true);
+            }
+        }
+        return result;
     }
-
     /**
-     * Helper method to create a string representation of the Groovy
-     * declaration for a given variable name whose value is initialized with
-     * <code>null</code>. 
-     * @param varName the variable name for which a declaration must be
-     *  created.
-     * @return a string like "def varName" + NAME_SUFFIX + "= null"
+     * @return <code>true</code> when the compiler of the source unit can
+     *   load the annotation of the @{link StaticQueryEmitter}
      */
-    protected String defVariable(String varName) {
-        return "def " + varName + NAME_SUFFIX + "= " + "null\n";
+    protected boolean isStaticModeSupported() {
+        if (staticModeSupported == null) {
+            ClassLoader loader = sourceUnit == null ? null : sourceUnit.getClassLoader();
+            staticModeSupported = StaticQueryEmitter.isSupported(
+                    loader != null ? loader : QueryTransformer.class.getClassLoader());
+        }
+        return staticModeSupported;
     }
     /**
-     * Converts a given name to a new name .
-     * The new name is a concatenation of the oldName and a 
-     * @{link Helper#NAME_SUFFIX } constant.
-     * 
-     * @param oldName the name to be converted
-     * @return the converted name
+     * Transforms the closure of <code>transformedText</code> with the
+     * emitter <code>executeQuery</code> would use for it, only for the
+     * text of the code: nothing is added to the owner and the errors are
+     * left to the transformation for the plan.
+     * @return the text of the code of the query or the first error when
+     *   <code>executeQuery</code> cannot run the query, such as a
+     *   disjunction with the <code>"node"</code> back end
      */
-    protected String trname(String oldName) {
-        String s1 = oldName.substring(0, 1).toLowerCase() + oldName.substring(1);
-        return s1 + NAME_SUFFIX;
+    protected String generatedText(TransformState st) {
+        QueryEmitter text = createQueryEmitter(st);
+        if (text instanceof NodeQueryEmitter) {
+            ((NodeQueryEmitter) text).setTextOnly(true);
+        }
+        if (text instanceof ExecutorQueryEmitter) {
+            ((ExecutorQueryEmitter) text).setSite(siteName(st.getClosure()));
+        }
+        QueryEmitter saved = emitter;
+        List<String> errors = new ArrayList<String>();
+        emitter = text;
+        quietErrors = errors;
+        try {
+            transformClosure(st.getClosure());
+        } finally {
+            quietErrors = null;
+            emitter = saved;
+        }
+        if (!errors.isEmpty()) {
+            return "executeQuery cannot run the query: " + errors.get(0);
+        }
+        return text instanceof NodeQueryEmitter ? ((NodeQueryEmitter) text).getText() : text.toString();
+    }
+    /**
+     * @return the stable name of a query site:
+     *   <code>file:line:column</code> of the closure, where the file is
+     *   the name of the source unit without the directories
+     */
+    protected String siteName(ClosureExpression closure) {
+        String file = sourceUnit.getName();
+        int slash = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'));
+        return file.substring(slash + 1) + ":" + closure.getLineNumber() + ":" + closure.getColumnNumber();
+    }
+    /**
+     * The call of <code>executeQuery</code> is replaced with the call of
+     * the @{link QueryExecutor} when the datastore service can be obtained
+     * without the call: it is the receiver <code>datastore</code> or the
+     * service of the <code>DatastoreServiceFactory</code> for
+     * <code>Entitystore</code>. The call of <code>executeQueryAsync</code>
+     * uses the asynchronous service of the factory, with the
+     * <code>DatastoreServiceConfig</code> of the call if it has one, or
+     * the receiver <code>datastore</code> when it is an asynchronous
+     * service (see @{link QueryExecutor#asyncService }).
+     * @return the expression of the service or <code>null</code> if the
+     *   call cannot be replaced
+     */
+    protected Expression inlineService(TransformState st) {
+        MethodCallExpression call = st.getCall();
+        if (call == null || st.isDefinition()
+                || !(call.getObjectExpression() instanceof VariableExpression)) {
+            return null;
+        }
+        VariableExpression receiver = (VariableExpression) call.getObjectExpression();
+        if (st.isAsync()) {
+            Expression factory = QueryNodeFactory.dotted("com.google.appengine.api.datastore.DatastoreServiceFactory");
+            if (parallelQueries.contains(call)) {
+                return QueryNodeFactory.call(factory, "getAsyncDatastoreService");
+            }
+            if (!MethodCallVisitorSupport.isReceiverName(receiver.getName())) {
+                return null;
+            }
+            List<Expression> args = ((ArgumentListExpression) call.getArguments()).getExpressions();
+            if (args.size() == 2) {
+                return QueryNodeFactory.call(factory, "getAsyncDatastoreService", QueryNodeFactory.cast(
+                        QueryNodeFactory.type("com.google.appengine.api.datastore.DatastoreServiceConfig"), args.get(0)));
+            }
+            if ("datastore".equals(receiver.getName())) {
+                return QueryNodeFactory.call(QueryNodeFactory.dotted("groovyx.gaelyk.dsl.query.QueryExecutor"),
+                        "asyncService", receiver);
+            }
+            return QueryNodeFactory.call(factory, "getAsyncDatastoreService");
+        }
+        if (!"executeQuery".equals(call.getMethodAsString()) && !st.isExplain()) {
+            return null;
+        }
+        if ("datastore".equals(receiver.getName())) {
+            return QueryNodeFactory.cast(
+                    QueryNodeFactory.type("com.google.appengine.api.datastore.DatastoreService"), receiver);
+        }
+        if ("Entitystore".equals(receiver.getName())) {
+            return QueryNodeFactory.call(QueryNodeFactory.dotted(
+                    "com.google.appengine.api.datastore.DatastoreServiceFactory"), "getDatastoreService");
+        }
+        return null;
+    }
+    /**
+     * @return the number of closures recognized as a "query DSL"
+     */
+    public int getClosureCount() {
+        return stateList.size();
     }
     /**
      * Cycles through the contents of the @{link #stateList} and 
@@ -339,17 +504,148 @@ public class QueryTransformer implements VisitClosureHandler  {
         }
         for (int i = 0; i < stateList.size(); i++) {
             TransformState st = stateList.get(i);
+            MethodCallExpression call = calls.get(st.getClosure());
+            st.setCall(call);
+            st.setDefinition(call != null && "defineQuery".equals(call.getMethodAsString()));
+            st.setAsync(call != null && ("executeQueryAsync".equals(call.getMethodAsString())
+                    || parallelQueries.contains(call)));
+            st.setExplain(call != null && "transformedText".equals(call.getMethodAsString()));
             currentClosure = i;
-            String result = transformClosure(st.getClosure());
-            st.setTransformAsString(result);
-//System.out.println(result);            
+            long start = System.nanoTime();
+            long resolving = statistics.getNanos(TransformStatistics.Phase.RESOLVE);
+            emitter = createEmitter();
+            transformClosure(st.getClosure());
+            if (emitter instanceof StringQueryEmitter) {
+                st.setTransformAsString(emitter.toString());
+            }
+            long generated = System.nanoTime();
+            statistics.add(TransformStatistics.Phase.GENERATE, generated - start
+                    - (statistics.getNanos(TransformStatistics.Phase.RESOLVE) - resolving));
+            st.setTransformStatements(emitter.getStatements());
+            if (st.isDefinition() && emitter instanceof NodeQueryEmitter) {
+                st.setBindNames(((NodeQueryEmitter) emitter).getBindNames());
+            }
+            statistics.add(emitter instanceof StringQueryEmitter
+                    ? TransformStatistics.Phase.PARSE : TransformStatistics.Phase.GENERATE,
+                    System.nanoTime() - generated);
         }
 
+        long start = System.nanoTime();
         for (int i = 0; i < stateList.size(); i++) {
-            doTransformations(stateList.get(i).getClosure(), stateList.get(i).getTransformAsString());
+            TransformState st = stateList.get(i);
+            if (st.isInline()) {
+                inline(st.getCall(), st.getTransformStatements());
+            } else {
+                doTransformations(st.getClosure(), st.getTransformStatements());
+            }
+            if (st.getBindNames() != null) {
+                addBindNames(st.getCall(), st.getBindNames());
+            }
+        }
+        for (MethodCallExpression call : parallelCalls) {
+            transformParallel(call);
         }
+        statistics.add(TransformStatistics.Phase.REPLACE, System.nanoTime() - start);
 
     }
+    /**
+     * Turns a call like <code>datastore.executeQuery {...}</code> into the
+     * single call the emitter produced, so neither a closure nor a
+     * category method is involved when the query is executed.
+     * @param call the call of <code>executeQuery</code>
+     * @param stmtList a single statement with the call of the
+     *   @{link QueryExecutor}
+     */
+    protected void inline(MethodCallExpression call, List<Statement> stmtList) {
+        MethodCallExpression executor = (MethodCallExpression) ((ExpressionStatement) stmtList.get(0)).getExpression();
+        call.setObjectExpression(executor.getObjectExpression());
+        call.setMethod(executor.getMethod());
+        call.setArguments(executor.getArguments());
+        call.setImplicitThis(false);
+        call.setSafe(false);
+        call.setSpreadSafe(false);
+    }
+    /**
+     * Turns a call like <code>datastore.defineQuery {...}</code> into
+     * <code>datastore.defineQuery(['minAge', 'limit', ...]) {...}</code>,
+     * so the @{link CompiledQuery} rejects the names it cannot bind.
+     * @param call the call of <code>defineQuery</code>
+     * @param names the names the closure binds
+     */
+    protected void addBindNames(MethodCallExpression call, Set<String> names) {
+        ListExpression list = new ListExpression();
+        for (String name : names) {
+            list.addExpression(QueryNodeFactory.constant(name));
+        }
+        ArgumentListExpression args = new ArgumentListExpression(list);
+        for (Expression arg : ((ArgumentListExpression) call.getArguments()).getExpressions()) {
+            args.addExpression(arg);
+        }
+        call.setArguments(args);
+    }
+    /**
+     * Turns a block like
+     * <pre>
+     *   datastore.parallel(deadline: 2.5) {
+     *       users: query {...}
+     *       orders: query {...}
+     *   }
+     * </pre>
+     * whose queries are already replaced with the calls of
+     * @{link QueryExecutor#executeAsync } into
+     * <pre>
+     *   new ParallelQueries(datastore, 2.5)
+     *       .start('users', Owner.hoistedDescriptor0__123, [...] as Object[])
+     *       .start('orders', Owner.hoistedDescriptor1__123, [...] as Object[])
+     *       .getResults()
+     * </pre>
+     * All the queries are started before the first one is waited for and
+     * the result is a map of their results by the labels.
+     *
+     * @param call the call of <code>parallel</code>
+     */
+    protected void transformParallel(MethodCallExpression call) {
+        List<Expression> args = ((ArgumentListExpression) call.getArguments()).getExpressions();
+        Expression deadline = QueryNodeFactory.constant(null);
+        if (args.size() == 2) {
+            Expression options = args.get(0);
+            if (options instanceof MapExpression && ((MapExpression) options).getMapEntryExpressions().size() == 1
+                    && "deadline".equals(((MapExpression) options).getMapEntryExpressions().get(0).getKeyExpression().getText())) {
+                deadline = ((MapExpression) options).getMapEntryExpressions().get(0).getValueExpression();
+            } else {
+                addError("'parallel' may only have the argument 'deadline: seconds'", options);
+            }
+        }
+        Expression receiver = "datastore".equals(call.getObjectExpression().getText())
+                ? call.getObjectExpression() : QueryNodeFactory.constant(null);
+        Expression result = QueryNodeFactory.newInstance("groovyx.gaelyk.dsl.query.ParallelQueries", receiver, deadline);
+        Set<String> labels = new HashSet<String>();
+        for (Statement statement : getParallelBody(call).getStatements()) {
+            Expression expr = statement instanceof ExpressionStatement ? ((ExpressionStatement) statement).getExpression() : null;
+            if (!(expr instanceof MethodCallExpression) || !parallelQueries.contains(expr)
+                    || !"executeAsync".equals(((MethodCallExpression) expr).getMethodAsString())) {
+                addError("'parallel' may only contain the statements like 'name: query {...}'", statement);
+                continue;
+            }
+            String label = statement.getStatementLabel();
+            if (label == null) {
+                addError("A query of 'parallel' must have a label: 'name: query {...}'", statement);
+                continue;
+            }
+            if (!labels.add(label)) {
+                addError("Duplicate label '" + label + "' in 'parallel'", statement);
+            }
+            List<Expression> executorArgs = ((ArgumentListExpression) ((MethodCallExpression) expr).getArguments()).getExpressions();
+            result = QueryNodeFactory.call(result, "start",
+                    QueryNodeFactory.constant(label), executorArgs.get(1), executorArgs.get(2));
+        }
+        call.setObjectExpression(result);
+        call.setMethod(QueryNodeFactory.constant("getResults"));
+        call.setArguments(new ArgumentListExpression());
+        call.setImplicitThis(false);
+        call.setSafe(false);
+        call.setSpreadSafe(false);
+    }
     /**
      * Performs AST Transformation for a given closure expression and 
      * a string as a source code. 
@@ -357,70 +653,120 @@ public class QueryTransformer implements VisitClosureHandler  {
      * @param transformBuilderString  a source code for <code>AstBuilder</code>.
      */
     protected void doTransformations(ClosureExpression closureExpr, String transformBuilderString) {
-        BlockStatement qblock = (BlockStatement) closureExpr.getCode();
         AstBuilder b = new AstBuilder();
 
+        long start = System.nanoTime();
         List<ASTNode> astNodes = b.buildFromString(CompilePhase.CONVERSION, true, transformBuilderString);
+        statistics.add(TransformStatistics.Phase.PARSE, System.nanoTime() - start);
         List<Statement> stmtList = new ArrayList<Statement>(astNodes.size());
         for (ASTNode s : astNodes) {
             stmtList.add((Statement) s);
         }
-
+        doTransformations(closureExpr, stmtList);
+    }
+    /**
+     * Replaces the code of a given closure expression with a given
+     * list of statements.
+     * @param closureExpr a closure expression to be transformed. 
+     * @param stmtList the statements produced by a @{link QueryEmitter}
+     */
+    protected void doTransformations(ClosureExpression closureExpr, List<Statement> stmtList) {
+        BlockStatement qblock = (BlockStatement) closureExpr.getCode();
         BlockStatement newBlock = new BlockStatement(stmtList, qblock.getVariableScope());
         closureExpr.setCode(newBlock);
-
     }
     /**
-     * Transforms a given closure expression to a string as a source code for 
-     * <code>AstBuilder</code>.
+     * Transforms a given closure expression with the current @{link #emitter}.
      * The method creates a list of <code>MethodCallExpressions</code>
      * and invokes the method @{link #transformClosureStatements } with
      * the list as a parameter.
      * 
      * @param closureExpr an object to be transformed
-     * @return an object of type <code>String</code> which content
-     *  represents source code for <code>AstBuilder</code>
      */
-    public String transformClosure(ClosureExpression closureExpr) {
+    public void transformClosure(ClosureExpression closureExpr) {
         List<Statement> statements = ((BlockStatement) closureExpr.getCode()).getStatements();
         List<MethodCallExpression> exprList = new ArrayList(5);
         String method = "";
         for (Statement statement : statements) {
-            Expression expr = ((ExpressionStatement) statement).getExpression();
+            Expression expr = joinWhereOperation(((ExpressionStatement) statement).getExpression());
+            //
+            // The joined call replaces the operation, so the closure can be
+            // transformed again (see generatedText)
+            //
+            ((ExpressionStatement) statement).setExpression(expr);
             if (expr instanceof MethodCallExpression) {
                 method = ((MethodCallExpression) expr).getMethod().getText();
                 String tx = ((MethodCallExpression) expr).getText();
             } else {
                 addError("Unsupported expressioon: " + expr.getText(), expr);
             }
-            if (!isSupported(method)) {
+            if (QueryKeyword.clause(method) == null) {
                 addError("Unsupported name: " + method, expr);
             }
             exprList.add((MethodCallExpression) expr);
         }//for
 
-        return transformClosureStatements(exprList);
+        transformClosureStatements(exprList);
+    }
+    /**
+     * The statement <code>where (a == 1) || (b == 2)</code> is parsed as
+     * <code>where(a == 1) || (b == 2)</code>. The method moves the last
+     * argument of the call into the operation and the operation into the
+     * call, so that the call becomes <code>where((a == 1) || (b == 2))</code>.
+     *
+     * @param expr the expression of a statement of the closure
+     * @return the call of "where" or the expression itself
+     */
+    protected Expression joinWhereOperation(Expression expr) {
+        if (!isOperation(expr, "||") && !isOperation(expr, "&&")) {
+            return expr;
+        }
+        BinaryExpression leftmost = (BinaryExpression) expr;
+        while (isOperation(leftmost.getLeftExpression(), "||") || isOperation(leftmost.getLeftExpression(), "&&")) {
+            leftmost = (BinaryExpression) leftmost.getLeftExpression();
+        }
+        if (!(leftmost.getLeftExpression() instanceof MethodCallExpression)) {
+            return expr;
+        }
+        MethodCallExpression call = (MethodCallExpression) leftmost.getLeftExpression();
+        if (QueryKeyword.clause(call.getMethodAsString()) != QueryKeyword.WHERE
+                || !(call.getArguments() instanceof ArgumentListExpression)) {
+            return expr;
+        }
+        List<Expression> args = ((ArgumentListExpression) call.getArguments()).getExpressions();
+        if (args.isEmpty()) {
+            return expr;
+        }
+        leftmost.setLeftExpression(args.get(args.size() - 1));
+        args.set(args.size() - 1, expr);
+        return call;
     }
     /**
      * Iterates over a given list of <code>MethodCallExpression</code>
      * and for each expression calls the method @{link #transformArguments).
      * 
      * @param calls a list of <code>MethodCallExpression</code>
-     * @return an object of type <code>String</code> 
      */
-    public String transformClosureStatements(List<MethodCallExpression> calls) {
-        String result = initTransform();
+    public void transformClosureStatements(List<MethodCallExpression> calls) {
+        emitter.begin();
         MethodCallExpression call = null;
         for (MethodCallExpression expr : calls) {
             call = (MethodCallExpression) expr;
             Expression argsExpr = call.getArguments();
             if (argsExpr instanceof ArgumentListExpression) {
-                result += transformArguments(call, (ArgumentListExpression) argsExpr);
+                transformArguments(call, (ArgumentListExpression) argsExpr);
+            } else if (argsExpr instanceof TupleExpression) {
+                //
+                // Only named arguments: select each: {...}
+                //
+                if (QueryKeyword.clause(call.getMethodAsString()) != QueryKeyword.SELECT) {
+                    addError("'" + call.getMethodAsString() + "' doesn't support named arguments", call);
+                    continue;
+                }
+                transformArguments(call, new ArgumentListExpression(((TupleExpression) argsExpr).getExpressions()));
             }
         }
-        result += finalTransform();
-//        System.out.println(result);
-        return result;
+        emitter.end();
     }
     /**
      * Transforms a given  argument list expression of the given
@@ -430,30 +776,34 @@ public class QueryTransformer implements VisitClosureHandler  {
      * transformed
      * 
      * @param argList argument list expression of the method call
-     * @return an object of type <code>String</code> that represents source code
-     *  for <code>AstBuilder</code>
-     *  
      */ 
-    public String transformArguments(MethodCallExpression call, ArgumentListExpression argList) {
-        String result = "";
-        String nm = call.getMethod().getText();
-        if ("select".equals(nm) || "Select".equals(nm)) {
-            result += transformSelectArguments(call, argList);
-            stateList.get(currentClosure).setCursor(false);
-        } else if ("cursor".equals(nm) || "Cursor".equals(nm)) {
-            result += transformCursorArguments(call, argList);
-            stateList.get(currentClosure).setCursor(true);
-        } else if ("from".equals(nm) || "From".equals(nm)) {
-            result += transformFromArguments(call, argList);
-        } else if ("where".equals(nm) || "Where".equals(nm)) {
-            result += transformWhereArguments(call, argList);
-        } else if ("orderBy".equals(nm) || "OrderBy".equals(nm)) {
-            result += transformOrderByArguments(call, argList);
-        } else if ("options".equals(nm) || "Options".equals(nm)
-                || "fetchOptions".equals(nm) || "FetchOptions".equals(nm)) {
-            result += transformFetchOptionsArguments(call, argList);
+    public void transformArguments(MethodCallExpression call, ArgumentListExpression argList) {
+        QueryKeyword clause = QueryKeyword.clause(call.getMethod().getText());
+        if (clause == null) {
+            return;
+        }
+        switch (clause) {
+            case SELECT:
+                transformSelectArguments(call, argList);
+                stateList.get(currentClosure).setCursor(false);
+                break;
+            case CURSOR:
+                transformCursorArguments(call, argList);
+                stateList.get(currentClosure).setCursor(true);
+                break;
+            case FROM:
+                transformFromArguments(call, argList);
+                break;
+            case WHERE:
+                transformWhereArguments(call, argList);
+                break;
+            case ORDER_BY:
+                transformOrderByArguments(call, argList);
+                break;
+            case OPTIONS:
+                transformFetchOptionsArguments(call, argList);
+                break;
         }
-        return result;
     }
     /**
      * Transforms a given  argument list expression of the given
@@ -463,65 +813,82 @@ public class QueryTransformer implements VisitClosureHandler  {
      * transformed
      * 
      * @param argList argument list expression of the method call
-     * @return an object of type <code>String</code> that represents source code
-     *  for <code>AstBuilder</code>
-     *  
      */ 
-    public String transformCursorArguments(MethodCallExpression call, ArgumentListExpression argList) {
+    public void transformCursorArguments(MethodCallExpression call, ArgumentListExpression argList) {
         List<Expression> exprList = argList.getExpressions();
-        String result = assignExprAsString("cursor", "'cursor'");
+        emitter.assignConstant("cursor", "cursor");
         this.stateList.get(currentClosure).setCursor(true);
         int start = 0;
-        String nm = "all";
+        QueryKeyword result = QueryKeyword.ALL;
         if (exprList.get(0) instanceof VariableExpression) {
-            nm = ((VariableExpression) exprList.get(0)).getName();
-            if (!("all".equals(nm) || "All".equals(nm)
-                    || "keys".equals(nm) || "Keys".equals(nm))) {
-                addError("'cursor' may only have the first argument as one of [all,keys]", exprList.get(0));
+            result = QueryKeyword.lookup(((VariableExpression) exprList.get(0)).getName());
+            if (result == null || result.getKind() != QueryKeyword.Kind.RESULT || !QueryKeyword.CURSOR.accepts(result)) {
+                addError("'cursor' may only have the first argument as one of [all,keys,iterate,pages]", exprList.get(0));
+                result = QueryKeyword.ALL;
             }
             start = 1;
         }
-        result += assignExprAsString(nm, "'" + nm + "'");
+        emitter.assignConstant(result.getName(), result.getName());
 
+        boolean limit = false;
         for (int i = start; i < exprList.size(); i++) {
-            if (!((exprList.get(i) instanceof BinaryExpression)
-                    || (exprList.get(i) instanceof MethodCallExpression))) {
-                addError("'cursor' doesn't support the argument expression: '" + exprList.get(i).getText() + "' for 'cursor' ", exprList.get(i));
+            QueryKeyword option = transformOptionArgument(QueryKeyword.CURSOR, exprList.get(i));
+            if (option == QueryKeyword.LIMIT) {
+                emitter.applyFetchOption(option.getName());
+                limit = true;
+            } else if (option == QueryKeyword.PREFETCH_PAGES && result != QueryKeyword.PAGES) {
+                addError("'prefetchPages' may only be used with 'cursor pages'", exprList.get(i));
             }
-            nm = null;
-            if (exprList.get(i) instanceof MethodCallExpression) {
-                nm = ((MethodCallExpression) exprList.get(i)).getMethod().getText();
-                if (!("startCursor".equals(nm) || "endCursor".equals(nm) || "limit".equals(nm) || "Limit".equals(nm))) {
-                    addError("'cursor' doesn't support the argument expression: '" + nm + "'", exprList.get(i));
-                }
-                result += assignExprAsString(nm, getArgumentValue((MethodCallExpression) exprList.get(i)));
-                if ("limit".equals(nm) || "Limit".equals(nm)) {
-                    result += "fetchOptions" + NAME_SUFFIX + "." + lowCaseFirstLetter(nm)
-                            + "(" + lowCaseFirstLetter(nm) + NAME_SUFFIX + ")\n";
-                }
-            } else {
-                Expression left = ((BinaryExpression) exprList.get(i)).getLeftExpression();
-                if (left instanceof VariableExpression) {
-                    nm = ((VariableExpression) left).getName();
-                    if (!("startCursor".equals(nm) || "endCursor".equals(nm) || "limit".equals(nm) || "Limit".equals(nm))) {
-                        addError("'cursor' doesn't support the argument expression: '" + nm + "' ", exprList.get(i));
-                    }
-                    String op = ((BinaryExpression) exprList.get(i)).getOperation().getText();
-                    Expression right = ((BinaryExpression) exprList.get(i)).getRightExpression();
-                    if (!("=".equals(op))) {
-                        addError("'cursor' doesn't support operation '" + op + "' (" + nm + " " + op + " " + right.getText() + ") ", exprList.get(i));
-                    }
-                    result += assignExprAsString(nm, convert(right) + "\n");
-                    if ("limit".equals(nm) || "Limit".equals(nm)) {
-                        result += "fetchOptions" + NAME_SUFFIX + "." + lowCaseFirstLetter(nm)
-                                + "(" + lowCaseFirstLetter(nm) + NAME_SUFFIX + ")\n";
-                    }
-                } else {
-                    addError("'cursor' doesn't support the argument expression: ", exprList.get(i));
-                }
+        }
+        if (result == QueryKeyword.PAGES) {
+            if (!limit) {
+                addError("'cursor pages' requires 'limit' as the size of a page", call);
+            }
+            if (emitter instanceof StringQueryEmitter) {
+                addError("'pages' is not supported by the '" + STRING_BACKEND + "' back end", call);
             }
         }
-        return result;
+    }
+    /**
+     * Transforms an argument of a given clause that specifies an option
+     * of the query. The argument may look like <code>limit(10)</code> or
+     * <code>limit = 10</code>. The method emits an assignment of the value
+     * to the variable of the option.
+     *
+     * @param clause the clause the argument belongs to
+     * @param expr the argument expression
+     * @return the keyword of the option or <code>null</code> if the
+     *   argument is not valid for the clause
+     */
+    protected QueryKeyword transformOptionArgument(QueryKeyword clause, Expression expr) {
+        String nm;
+        Expression value;
+        if (expr instanceof MethodCallExpression) {
+            nm = ((MethodCallExpression) expr).getMethod().getText();
+            value = getArgumentValue((MethodCallExpression) expr);
+        } else if (expr instanceof BinaryExpression
+                && ((BinaryExpression) expr).getLeftExpression() instanceof VariableExpression) {
+            BinaryExpression bexpr = (BinaryExpression) expr;
+            nm = ((VariableExpression) bexpr.getLeftExpression()).getName();
+            value = bexpr.getRightExpression();
+            String op = bexpr.getOperation().getText();
+            if (!"=".equals(op)) {
+                addError("'" + clause + "' doesn't support operation '" + op + "' (" + nm + " " + op + " " + value.getText() + ") ", expr);
+                return null;
+            }
+        } else {
+            addError("'" + clause + "' doesn't support the argument expression: '" + expr.getText() + "'", expr);
+            return null;
+        }
+        QueryKeyword option = QueryKeyword.lookup(nm);
+        if (option == null || option.getKind() != QueryKeyword.Kind.OPTION || !clause.accepts(option)) {
+            addError("'" + clause + "' doesn't support the argument expression: '" + nm + "'", expr);
+            return null;
+        }
+        if (value != null) {
+            emitter.assignValue(option.getName(), value);
+        }
+        return option;
     }
     /**
      * Transforms a given  argument list expression of the given
@@ -531,62 +898,17 @@ public class QueryTransformer implements VisitClosureHandler  {
      * transformed
      * 
      * @param argList argument list expression of the method call
-     * @return an object of type <code>String</code> that represents source code
-     *  for <code>AstBuilder</code>
-     *  
      */ 
-    public String transformFetchOptionsArguments(MethodCallExpression call, ArgumentListExpression argList) {
-        List<Expression> exprList = argList.getExpressions();
-        String result = "";
-
+    public void transformFetchOptionsArguments(MethodCallExpression call, ArgumentListExpression argList) {
         //---------------------------------------
         // fetchOptions may contain chunkSize,prefetchSize, 
         //---------------------------------------
-        for (int i = 0; i < exprList.size(); i++) {
-            if (!((exprList.get(i) instanceof BinaryExpression)
-                    || (exprList.get(i) instanceof MethodCallExpression))) {
-                addError("'fetchOptions' doesn't support argument expression: '" + exprList.get(i).getText(), exprList.get(i));
-            }
-            String nm = null;
-            if (exprList.get(i) instanceof MethodCallExpression) {
-                nm = ((MethodCallExpression) exprList.get(i)).getMethod().getText();
-                if (!("chunkSize".equals(nm) || "ChunkSize".equals(nm)
-                        || "prefetchSize".equals(nm) || "PrefetchSize".equals(nm))) {
-                    addError("'fetchOptions' doesn't support argument expression: '" + nm, exprList.get(i));
-                }
-
-                result += assignExprAsString(nm, getArgumentValue((MethodCallExpression) exprList.get(i)));
-            } else {
-                Expression left = ((BinaryExpression) exprList.get(i)).getLeftExpression();
-
-                if (left instanceof VariableExpression) {
-
-                    nm = ((VariableExpression) left).getName();
-                    if (!("chunkSize".equals(nm) || "ChunkSize".equals(nm)
-                            || "prefetchSize".equals(nm) || "PrefetchSize".equals(nm))) {
-                        addError("'fetchOptions' doesn't support argument expression: '" + nm, exprList.get(i));
-                    }
-
-                    String op = ((BinaryExpression) exprList.get(i)).getOperation().getText();
-                    Expression right = ((BinaryExpression) exprList.get(i)).getRightExpression();
-                    if (!"=".equals(op)) {
-                        addError("'fetchOptions' doesn't support operation '" + op + "' (" + nm + " " + op + " " + right.getText() + ") ", exprList.get(i));
-                    }
-                    //result += assignExprAsString(nm, converter.convert(right));
-                    result += assignExprAsString(nm, convert(right));
-                    //transformVariableName((BinaryExpression) exprList.get(i));
-                } else {
-                    addError("Unsupported argument expression for 'fetchOptions'", exprList.get(i));
-                }
-            }
-
+        for (Expression expr : argList.getExpressions()) {
+            transformOptionArgument(QueryKeyword.OPTIONS, expr);
         }
-        result += postFetchOptionsTransform();
-        return result;
+        emitter.endFetchOptions();
     }
-    public String transformFromArguments(MethodCallExpression call, ArgumentListExpression argList) {
-        //String result = transformString;
-        String result = "";
+    public void transformFromArguments(MethodCallExpression call, ArgumentListExpression argList) {
 
         List<Expression> exprs = argList.getExpressions();
         if (exprs == null || exprs.size() == 0 || exprs.size() > 2) {
@@ -601,18 +923,18 @@ public class QueryTransformer implements VisitClosureHandler  {
         //
         // Check if kindless ancestor query
         //
-        String childOfValue = this.getChildOfValue(exprs.get(0));
+        Expression childOfValue = this.getChildOfValue(exprs.get(0));
 
         if (childOfValue != null) {
             // Must be kindless ancestor query
             if (exprs.size() > 1) {
                 addError("'from' contains too many parameters for kindless query", exprs.get(0));
             }
-            result += assignExprAsString("childOf", childOfValue);
+            emitter.assignValue("childOf", childOfValue);
 
         } else if (exprs.get(0) instanceof VariableExpression) {
             kind = exprs.get(0).getText();
-            result += assignExprAsString("kind", "\"" + kind + "\"");
+            emitter.assignConstant("kind", kind);
         }
         if (exprs.get(0) instanceof CastExpression) {
             // Person as pojo
@@ -620,7 +942,7 @@ public class QueryTransformer implements VisitClosureHandler  {
 
             CastExpression castExpr = (CastExpression) exprs.get(0);
             Expression pojoExpr = castExpr.getExpression();
-            kind = getKindFromCastExpression(castExpr.getText());
+            kind = getKindFromCastExpression(castExpr);
 
             if (!(pojoExpr instanceof VariableExpression)) {
                 addError("'from' doesn't support the argument expression: " + pojoExpr.getText() + " (left part)", pojoExpr);
@@ -634,21 +956,20 @@ public class QueryTransformer implements VisitClosureHandler  {
             } else {
                 addError("'from' can contain 'pojo' or 'bean' or 'entity'", castExpr);
             }
-            boolean resolved = resolve(castExpr, kind);
+            boolean resolved = resolve(castExpr, castExpr.getType().getName());
             if (!resolved) {
                 addError("Can't resolve the type '" + kind + "'", castExpr);
             }
-            //if ( pojo)
-            result += assignExprAsString("pojoClass", kind + "\n");
-            result += assignExprAsString("kind", "\"" + kind + "\"\n");
-            result += assignExprAsString("pojo", "\"" + pojo + "\"\n");
+            emitter.assignClass("pojoClass", castExpr.getType().getName());
+            emitter.assignConstant("kind", kind);
+            emitter.assignConstant("pojo", pojo);
 
         }
 
         if (exprs.size() > 1 && !kind.isEmpty()) {
             childOfValue = this.getChildOfValue(exprs.get(1));
             if (childOfValue != null) {
-                result += assignExprAsString("childOf", childOfValue);
+                emitter.assignValue("childOf", childOfValue);
             } else {
                 addError("The second argument contains an expression that 'from' doesn't support", call);
             }
@@ -659,9 +980,7 @@ public class QueryTransformer implements VisitClosureHandler  {
             // when set than Query cannot include filters on properties
             stateList.get(currentClosure).setKindlessAncestorQuery(true);
         }
-        result += postFromTransform();
-
-        return result;
+        emitter.endFrom();
     }
     
     /**
@@ -672,12 +991,8 @@ public class QueryTransformer implements VisitClosureHandler  {
      * transformed
      * 
      * @param argList argument list expression of the method call
-     * @return an object of type <code>String</code> that represents source code
-     *  for <code>AstBuilder</code>
-     *  
      */ 
-    public String transformOrderByArguments(MethodCallExpression call, ArgumentListExpression argListExpr) {
-        String result = "";
+    public void transformOrderByArguments(MethodCallExpression call, ArgumentListExpression argListExpr) {
         List<Expression> argExprs = argListExpr.getExpressions();
 
         for (int i = 0; i < argExprs.size(); i++) {
@@ -696,10 +1011,9 @@ public class QueryTransformer implements VisitClosureHandler  {
                     addError("'orderBy' doesn't support the argument expression: " + expr.getText() + " (left part)", fieldNameExpr);
                 }
                 fieldName = fieldNameExpr.getText();
-                if (cexpr.getText().toUpperCase().contains("(ASC")) {
-                    direction = "ASC";
-                } else if (cexpr.getText().toUpperCase().contains("(DESC")) {
-                    direction = "DESC";
+                QueryKeyword dir = QueryKeyword.lookup(cexpr.getType().getName());
+                if (QueryKeyword.ORDER_BY.accepts(dir)) {
+                    direction = dir == QueryKeyword.ASC ? "ASC" : "DESC";
                 } else {
                     addError("'orderBy' direction must be 'ASC' or 'DESC'", cexpr);
                 }
@@ -708,18 +1022,7 @@ public class QueryTransformer implements VisitClosureHandler  {
                 direction = "ASC";
             }
 
-            CastExpression castKind = stateList.get(currentClosure).getKindCast();
-            Class clazz = null;
-            if (castKind != null) {
-                try {
-                    clazz = this.getPojoType(castKind);
-                } catch (Exception ex) {
-                }
-            }
-
-            if (clazz != null && !Helper.hasField(clazz, fieldName)) {
-                addError("Class '" + clazz.getSimpleName() + "' doesn't contain a field with a name '" + fieldName + "'", argExprs.get(0));
-            }
+            validateKindProperty(fieldName, "orderBy", expr);
             String inequalityField = stateList.get(currentClosure).getInequalityOperationField();
 
 
@@ -739,184 +1042,291 @@ public class QueryTransformer implements VisitClosureHandler  {
             }
 
 
-            result += "orderByFields" + NAME_SUFFIX + " += '," + fieldName + "'\n";
-            if ("KEY_RESERVED_PROPERTY".equals(fieldName) || stateList.get(currentClosure).isKindlessAncestorQuery()) {
-                result += "query" + NAME_SUFFIX + ".addSort(Entity.KEY_RESERVED_PROPERTY,"
-                        + orderDirMapping(direction) + ")\n";
-            } else {
-                result += "query" + NAME_SUFFIX + ".addSort(" + "\"" + fieldName + "\","
-                        + orderDirMapping(direction) + ")\n";
-            }
+            boolean keyProperty = "KEY_RESERVED_PROPERTY".equals(fieldName) 
+                    || stateList.get(currentClosure).isKindlessAncestorQuery();
+            emitter.addSort(fieldName, keyProperty, orderDirMapping(direction));
         }
 
-        return result;
-
     }
-public String transformSelectArguments(MethodCallExpression call, ArgumentListExpression argList) {
+    /**
+     * Transforms a given  argument list expression of the given
+     * method call expression of the "select" method call.
+     * <p/>
+     * Besides the result and the options the call may have a consumer of
+     * the entities given as a named argument:
+     * <code>select each: { e -&gt; ... }</code>. The result may be omitted
+     * then and is <code>all</code> by default. The named argument
+     * <code>reuse: true</code> lets the object of <code>from pojo as
+     * Person</code> be the same for all the entities passed to the consumer
+     * (see @{link PojoMapper}).
+     *
+     * @param call a method call for which an argument list is to be
+     * transformed
+     *
+     * @param argList argument list expression of the method call
+     */
+    public void transformSelectArguments(MethodCallExpression call, ArgumentListExpression argList) {
         List<Expression> exprList = argList.getExpressions();
-        //String result = assignExprAsString("select","select" ); 
-        String result = "select" + NAME_SUFFIX + " = 'select'\n";
+        emitter.assignConstant("select", "select");
         this.stateList.get(currentClosure).setCursor(false);
-        if (!(exprList.get(0) instanceof VariableExpression)) {
-            addError("'select' must have the first argument as one of [all,keys,single,count]", exprList.get(0));
-        } else {
-            String nm = ((VariableExpression) exprList.get(0)).getName();
-            if (!("all".equals(nm) || "All".equals(nm)
-                    || "single".equals(nm) || "Single".equals(nm)
-                    || "count".equals(nm) || "Count".equals(nm)
-                    || "keys".equals(nm) || "Keys".equals(nm))) {
-                addError("'select' must have the first argument as one of [all,keys,single,count]", exprList.get(0));
-            } else {
-                //result += assignExprAsString(nm,"\"" + nm + "\"");
-                result += nm + NAME_SUFFIX + " = '" + nm + "'\n";
-
+        //
+        // Groovy passes the named arguments as a map before the others
+        //
+        int start = 0;
+        boolean each = false;
+        MapEntryExpression reuse = null;
+        if (!exprList.isEmpty() && exprList.get(0) instanceof MapExpression) {
+            for (MapEntryExpression entry : ((MapExpression) exprList.get(0)).getMapEntryExpressions()) {
+                if (entry.getKeyExpression() instanceof ConstantExpression
+                        && "reuse".equals(entry.getKeyExpression().getText())) {
+                    reuse = entry;
+                    transformReuseArgument(entry);
+                } else {
+                    each |= transformEachArgument(entry);
+                }
             }
+            start = 1;
+        }
+        QueryKeyword result = null;
+        if (start < exprList.size() && exprList.get(start) instanceof VariableExpression) {
+            result = QueryKeyword.lookup(((VariableExpression) exprList.get(start)).getName());
+        }
+        if (result != null && result.getKind() == QueryKeyword.Kind.RESULT && QueryKeyword.SELECT.accepts(result)) {
+            emitter.assignConstant(result.getName(), result.getName());
+            start++;
+        } else if (each) {
+            result = QueryKeyword.ALL;
+            emitter.assignConstant(result.getName(), result.getName());
+        } else {
+            addError("'select' must have the first argument as one of [all,keys,single,count,iterate]",
+                    start < exprList.size() ? exprList.get(start) : call);
+            start++;
         }
         //---------------------------------------
         // select may contain limit or offset
         //---------------------------------------
-        for (int i = 1; i < exprList.size(); i++) {
-            if (!((exprList.get(i) instanceof BinaryExpression)
-                    || (exprList.get(i) instanceof MethodCallExpression))) {
-                addError("Unsupported argument expression: '" + exprList.get(i).getText() + "' for 'select' ", exprList.get(i));
+        for (int i = start; i < exprList.size(); i++) {
+            QueryKeyword option = transformOptionArgument(QueryKeyword.SELECT, exprList.get(i));
+            if (option == QueryKeyword.EACH) {
+                each = true;
+            } else if (option != null) {
+                emitter.applyFetchOption(option.getName());
             }
-            String nm = null;
-            if (exprList.get(i) instanceof MethodCallExpression) {
-                nm = ((MethodCallExpression) exprList.get(i)).getMethod().getText();
-                if (!("limit".equals(nm) || "Limit".equals(nm)
-                        || "offset".equals(nm) || "Offset".equals(nm))) {
-                    addError("Unsupported argument expression: '" + nm + "' in 'select'", exprList.get(i));
-                }
+        }
+        if (reuse != null && !each) {
+            addError("'reuse' may only be used with 'each'", reuse);
+        }
+        if (each && result != QueryKeyword.ALL && result != QueryKeyword.KEYS) {
+            addError("'each' may only be used with one of [all,keys]", call);
+        }
+        if (each && emitter instanceof StringQueryEmitter) {
+            addError("'each' is not supported by the '" + STRING_BACKEND + "' back end", call);
+        }
+    }
+    /**
+     * Transforms the named argument <code>reuse: true</code> of the
+     * "select" method call, whose value must be a constant.
+     */
+    protected void transformReuseArgument(MapEntryExpression entry) {
+        Expression value = entry.getValueExpression();
+        if (!(value instanceof ConstantExpression) || !(((ConstantExpression) value).getValue() instanceof Boolean)) {
+            addError("'reuse' must be 'true' or 'false'", value);
+            return;
+        }
+        emitter.assignConstant("reuse", value.getText());
+    }
+    /**
+     * Transforms a named argument of the "select" method call.
+     *
+     * @param entry the named argument
+     * @return <code>true</code> if the argument is <code>each</code>
+     */
+    protected boolean transformEachArgument(MapEntryExpression entry) {
+        Expression key = entry.getKeyExpression();
+        if (!(key instanceof ConstantExpression)
+                || QueryKeyword.lookup(key.getText()) != QueryKeyword.EACH) {
+            addError("'select' doesn't support the named argument: '" + key.getText() + "'", entry);
+            return false;
+        }
+        emitter.assignValue(QueryKeyword.EACH.getName(), entry.getValueExpression());
+        return true;
+    }
 
-                result += assignExprAsString(nm, getArgumentValue((MethodCallExpression) exprList.get(i)));
-                result += "fetchOptions" + NAME_SUFFIX + "." + lowCaseFirstLetter(nm)
-                        + "(" + lowCaseFirstLetter(nm) + NAME_SUFFIX + ")\n";
-            } else {
-                Expression left = ((BinaryExpression) exprList.get(i)).getLeftExpression();
-
-                if (left instanceof VariableExpression) {
-
-                    nm = ((VariableExpression) left).getName();
-                    if (!("limit".equals(nm) || "Limit".equals(nm)
-                            || "offset".equals(nm) || "Offset".equals(nm))) {
-                        addError("Unsupported argument expression: '" + nm + "' in 'select'", exprList.get(i));
-                    }
-
-                    String op = ((BinaryExpression) exprList.get(i)).getOperation().getText();
-                    Expression right = ((BinaryExpression) exprList.get(i)).getRightExpression();
-                    if (!"=".equals(op)) {
-                        addError("'select' doesn't support operation '" + op + "' (" + nm + " " + op + " " + right.getText() + ") ", exprList.get(i));
-                    }
-                    //result += assignExprAsString(nm, converter.convert(right));
-                    result += assignExprAsString(nm, convert(right));
-                    result += "fetchOptions" + NAME_SUFFIX + "." + lowCaseFirstLetter(nm)
-                            + "(" + lowCaseFirstLetter(nm) + NAME_SUFFIX + ")\n";
-                } else {
-                    addError("Unsupported argument expression for 'select' method", exprList.get(i));
-                }
-            }
+    /**
+     * The inequality filters of the predicates of a "where" method call
+     * which are combined with <code>AND</code>.
+     */
+    protected static class WhereState {
+
+        String inequalityField;
+        int inequalityCount;
+        boolean notEqual;
 
+        WhereState() {
+        }
+
+        WhereState(WhereState other) {
+            inequalityField = other.inequalityField;
+            inequalityCount = other.inequalityCount;
+            notEqual = other.notEqual;
         }
-        return result;
     }
 
     /**
      * Transforms a given  argument list expression of the given
      * method call expression of the "where" method call.
+     * <p/>
+     * The predicates may be joined with <code>&amp;&amp;</code>. An
+     * argument joined with <code>||</code> such as
+     * <code>where (age &lt; 18) || (status == 'NEW')</code> is transformed
+     * by @{link #transformDisjunction }.
      * 
      * @param call a method call for which an argument list is to be 
      * transformed
      * 
      * @param argList argument list expression of the method call
-     * @return an object of type <code>String</code> that represents source code
-     *  for <code>AstBuilder</code>
-     *  
      */ 
-    public String transformWhereArguments(MethodCallExpression call, ArgumentListExpression argListExpr) {
-        String result = "";
+    public void transformWhereArguments(MethodCallExpression call, ArgumentListExpression argListExpr) {
         List<Expression> argExprs = argListExpr.getExpressions();
-        String inequalityField = null;
-        //String inequalityOperation = null;
-        int inequalityCount = 0;
-        boolean alreadyHasNOTEqualFilter = false;
+        WhereState state = new WhereState();
+        List<Expression> disjunctions = new ArrayList<Expression>();
         /*
          * iterate over "where" predicates
          */
-        for (Expression expr : argExprs) {
-            if (!(expr instanceof BinaryExpression)) {
-                addError("'where' doesn't support the argument expression: " + expr.getText(), expr);
+        for (Expression arg : argExprs) {
+            List<Expression> predicates = new ArrayList<Expression>();
+            flatten(arg, "&&", predicates);
+            for (Expression expr : predicates) {
+                if (isOperation(expr, "||")) {
+                    disjunctions.add(expr);
+                } else {
+                    transformWherePredicate(expr, state, argExprs.get(0));
+                }
             }
-            BinaryExpression bexpr = (BinaryExpression) expr;
-            Expression leftExpr = bexpr.getLeftExpression();
-            if (!(leftExpr instanceof VariableExpression)) {
-                addError("'where' doesn't support the argument expression: " + expr.getText() + " (left part)", leftExpr);
+        }//for
+        for (int group = 0; group < disjunctions.size(); group++) {
+            transformDisjunction(disjunctions.get(group), group, state, argExprs.get(0));
+        }
+    }
+    /**
+     * Transforms a predicate of the "where" method call joined with
+     * <code>||</code>. Each disjunct is a predicate or several predicates
+     * joined with <code>&amp;&amp;</code> and becomes a query of its own.
+     * The queries are executed together and their results are merged,
+     * so only the @{link ExecutorQueryEmitter} supports a disjunction.
+     *
+     * @param expr the predicate
+     * @param group the number of the disjunction within the query
+     * @param state the inequality filters of the other predicates
+     * @param first the first argument of the "where" method call
+     */
+    protected void transformDisjunction(Expression expr, int group, WhereState state, Expression first) {
+        if (!(emitter instanceof ExecutorQueryEmitter)) {
+            addError("'||' in 'where' is only supported by the '" + EXECUTOR_BACKEND + "' back end", expr);
+            return;
+        }
+        if (stateList.get(currentClosure).isCursor()) {
+            addError("Cursor query can't contain '||' in 'where'", expr);
+            return;
+        }
+        ExecutorQueryEmitter executor = (ExecutorQueryEmitter) emitter;
+        List<Expression> disjuncts = new ArrayList<Expression>();
+        flatten(expr, "||", disjuncts);
+        for (int branch = 0; branch < disjuncts.size(); branch++) {
+            executor.disjunct(group, branch);
+            //
+            // The limits on inequality filters apply to each query, but
+            // the property must be the same, the sort orders follow it
+            //
+            WhereState branchState = new WhereState(state);
+            List<Expression> predicates = new ArrayList<Expression>();
+            flatten(disjuncts.get(branch), "&&", predicates);
+            for (Expression predicate : predicates) {
+                transformWherePredicate(predicate, branchState, first);
             }
-            String fieldName = ((VariableExpression) leftExpr).getName();
+            state.inequalityField = branchState.inequalityField;
+        }
+        executor.conjunct();
+    }
 
-            String operation = filterOperationMapping(bexpr.getOperation().getText());
+    private static boolean isOperation(Expression expr, String operation) {
+        return expr instanceof BinaryExpression
+                && operation.equals(((BinaryExpression) expr).getOperation().getText());
+    }
+    /**
+     * Collects the operands of a chain of the given binary operation.
+     */
+    private static void flatten(Expression expr, String operation, List<Expression> result) {
+        if (isOperation(expr, operation)) {
+            flatten(((BinaryExpression) expr).getLeftExpression(), operation, result);
+            flatten(((BinaryExpression) expr).getRightExpression(), operation, result);
+        } else {
+            result.add(expr);
+        }
+    }
+    /**
+     * Transforms a single comparison of the "where" method call.
+     *
+     * @param expr the comparison
+     * @param state the inequality filters of the query it belongs to
+     * @param first the first argument of the "where" method call
+     */
+    protected void transformWherePredicate(Expression expr, WhereState state, Expression first) {
+        if (!(expr instanceof BinaryExpression)) {
+            addError("'where' doesn't support the argument expression: " + expr.getText(), expr);
+            return;
+        }
+        BinaryExpression bexpr = (BinaryExpression) expr;
+        Expression leftExpr = bexpr.getLeftExpression();
+        if (!(leftExpr instanceof VariableExpression)) {
+            addError("'where' doesn't support the argument expression: " + expr.getText() + " (left part)", leftExpr);
+            return;
+        }
+        String fieldName = ((VariableExpression) leftExpr).getName();
 
-            if (operation == null) {
-                addError("'where' doesn't support the operation: " + bexpr.getOperation().getText() + " (" + bexpr.getText() + ")", leftExpr);
-            }
+        String operation = filterOperationMapping(bexpr.getOperation().getText());
 
-            Expression rexpr = bexpr.getRightExpression();
-            String rexprStr = convert(rexpr);            
+        if (operation == null) {
+            addError("'where' doesn't support the operation: " + bexpr.getOperation().getText() + " (" + bexpr.getText() + ")", leftExpr);
+        }
 
-            CastExpression castKind = stateList.get(currentClosure).getKindCast();
-            Class clazz = null;
-            if (castKind != null) {
-                try {
-                    clazz = this.getPojoType(castKind);
-                } catch (Exception ex) {
-                    System.out.println("Cannot create  a kind class: " + ex.getMessage());
-                }
-            }
+        Expression rexpr = bexpr.getRightExpression();
 
-            if (clazz != null && !Helper.hasField(clazz, fieldName)) {
-                addError("Class '" + clazz.getSimpleName() + "' doesn't contain a field with a name '" + fieldName + "'", argExprs.get(0));
+        validateKindProperty(fieldName, "where", leftExpr);
+        String whereOperation = bexpr.getOperation().getText();
+        if (!("==".equals(whereOperation) || "in".equals(whereOperation))) {
+            if (state.inequalityField != null && !state.inequalityField.equals(fieldName)) {
+                addError("A query may only use inequality filters (<, <=, >=, >, !=) on one property. ('" + state.inequalityField + "' - exists; '" + fieldName + "' - new ).", first);
+            } else if (state.notEqual || "!=".equals(whereOperation) && state.inequalityCount > 0) {
+                addError("A query can only have one not-equal filter and cannot have other inequality filters", first);
+            } else {
+                state.inequalityField = fieldName;
             }
-            String whereOperation = bexpr.getOperation().getText();
-            if (!("==".equals(whereOperation) || "in".equals(whereOperation))) {
-                if (inequalityField != null && !inequalityField.equals(fieldName)) {
-                    addError("A query may only use inequality filters (<, <=, >=, >, !=) on one property. ('" + inequalityField + "' - exists; '" + fieldName + "' - new ).", argExprs.get(0));
-                } else if (alreadyHasNOTEqualFilter || "!=".equals(whereOperation) && inequalityCount > 0) {
-                    addError("A query can only have one not-equal filter and cannot have other inequality filters", argExprs.get(0));
-                } else {
-                    inequalityField = fieldName;
-                }
-                inequalityCount++;
-                if (inequalityCount > 2) {
-                    addError("Too many inequality filter expressions (<, <=, >=, >, !=). ( field = '" + inequalityField + "').", argExprs.get(0));
-                }
-                if ("!=".equals(whereOperation)) {
-                    alreadyHasNOTEqualFilter = true;
-                }
+            state.inequalityCount++;
+            if (state.inequalityCount > 2) {
+                addError("Too many inequality filter expressions (<, <=, >=, >, !=). ( field = '" + state.inequalityField + "').", first);
             }
-            if (stateList.get(currentClosure).isKindlessAncestorQuery()) {
-                if (!"KEY_RESERVED_PROPERTY".equals(fieldName)) {
-                    addError("Kindless queries cannot include filters on properties.  ( field = '" + inequalityField + "').", argExprs.get(0));
-                } else {
-                    fieldName = "Entity.KEY_RESERVED_PROPERTY";
-                }
+            if ("!=".equals(whereOperation)) {
+                state.notEqual = true;
             }
-            if (stateList.get(currentClosure).isCursor() && ( whereOperation.equals("in") 
-                    || whereOperation.equals("!=") )) 
-            {
-               addError("Cursor query can't contain 'in' or '!=' filter operation. ('" + inequalityField + "'). ", argExprs.get(0));
-            }            
-            stateList.get(currentClosure).setInequalityOperationField(inequalityField);
-            result += "whereFields" + NAME_SUFFIX + " += '," + fieldName + "'\n";
-            if ("KEY_RESERVED_PROPERTY".equals(fieldName) || stateList.get(currentClosure).isKindlessAncestorQuery()) {
-                result += "query" + NAME_SUFFIX + ".addFilter(Entity.KEY_RESERVED_PROPERTY,"
-                        + operation + "," + rexprStr + ")\n";
+        }
+        if (stateList.get(currentClosure).isKindlessAncestorQuery()) {
+            if (!"KEY_RESERVED_PROPERTY".equals(fieldName)) {
+                addError("Kindless queries cannot include filters on properties.  ( field = '" + state.inequalityField + "').", first);
             } else {
-                result += "query" + NAME_SUFFIX + ".addFilter(" + "\"" + fieldName + "\","
-                        + operation + "," + rexprStr + ")\n";
+                fieldName = "Entity.KEY_RESERVED_PROPERTY";
             }
+        }
+        if (stateList.get(currentClosure).isCursor() && ( whereOperation.equals("in") 
+                || whereOperation.equals("!=") )) 
+        {
+           addError("Cursor query can't contain 'in' or '!=' filter operation. ('" + state.inequalityField + "'). ", first);
+        }            
+        stateList.get(currentClosure).setInequalityOperationField(state.inequalityField);
+        boolean keyProperty = "KEY_RESERVED_PROPERTY".equals(fieldName) 
+                || stateList.get(currentClosure).isKindlessAncestorQuery();
+        emitter.addFilter(fieldName, keyProperty, operation, rexpr);
 
-        }//for
-
-        return result;
     }
     /**
      * Maps a sort direction parameter value such as <code>asc, desc</code> to a
@@ -964,59 +1374,21 @@ public String transformSelectArguments(MethodCallExpression call, ArgumentListEx
         }
         return result;
     }
-    /**
-     * Helper method to create a Groovy assign expression for a given
-     * left part and a given value.
-     * Adds a suffix @{link Helper#NAME_SUFFIX} to the name that the 
-     * <code>left</code> parameter contains and uses that new name as 
-     * a left side of the result assign expression.
-     * 
-     * @param left the left part side of an expression to be created
-     * @param value the right part side of an expression to be created
-     * @return a string representation of the assign expression
-     */
-    protected String assignExprAsString(String left, String value) {
-        String s1 = left.substring(0, 1).toLowerCase() + left.substring(1);
-        String s2 = s1 + NAME_SUFFIX;
-        return s2 + " = " + value + "\n"; // to make not null 
-    }
-    /**
-     * Converts a given expression to a string.
-     * Creates a new instance of the @{link ExpressionConverter} if needed and
-     * calls it's <code>convert()</code> method.
-     * @param expression an expression to be converted
-     * @return a string representation of the expression
-     */
-    protected String convert(Expression expression) {
-        if ( converter == null ) {
-            converter = new DefaultExpressionConverter();
-        }
-        return converter.convert(expression);
-    }
-
-    protected String lowCaseFirstLetter(String str) {
-        if (str == null) {
-            return null;
-        }
-        return str.substring(0, 1).toLowerCase() + str.substring(1);
-    }
 
     /**
      * Expects an argument list with one and only one argument.
      * @param call
-     * @return 
+     * @return the argument expression
      */
-    protected String getArgumentValue(MethodCallExpression call) {
-        String result = null;
+    protected Expression getArgumentValue(MethodCallExpression call) {
+        Expression result = null;
         Expression argExpr = call.getArguments();
         ArgumentListExpression argListExpr = null;
         if (argExpr != null && (argExpr instanceof ArgumentListExpression)) {
             argListExpr = (ArgumentListExpression) argExpr;
         }
-        Expression expr = null;
         if (argListExpr != null && argListExpr.getExpressions() != null && argListExpr.getExpressions().size() == 1) {
-            expr = argListExpr.getExpressions().get(0);
-            result = convert(expr);
+            result = argListExpr.getExpressions().get(0);
         }
         if (result == null) {
             addError("Invalid argument value: " + call.getText(), call);
@@ -1026,64 +1398,102 @@ public String transformSelectArguments(MethodCallExpression call, ArgumentListEx
     }
 
     
-    protected String getKindFromCastExpression(String cast) {
-        String result = "";
-        int left = cast.indexOf('(');
-        int right = cast.indexOf("->");
-        if (right < 0) {
-            right = cast.indexOf(')');
-        }
-        result = cast.substring(left + 1, right).trim();
-        int p = result.lastIndexOf('.');
-        if (p > 0) {
-            result = result.substring(p + 1).trim();
+    /**
+     * @return the simple name of the type of a given cast expression
+     */
+    protected String getKindFromCastExpression(CastExpression cast) {
+        return cast.getType().getNameWithoutPackage();
+    }
+    /**
+     * Checks that the kind of the current closure declares a property
+     * with a given name and that the property is indexed.
+     * Nothing is checked when the kind is not given as a class
+     * (<code>from entity as Person</code>).
+     *
+     * @param fieldName the name of the property
+     * @param clause <code>"where"</code> or <code>"orderBy"</code>
+     * @param node the node to report an error for
+     */
+    protected void validateKindProperty(String fieldName, String clause, ASTNode node) {
+        if ("KEY_RESERVED_PROPERTY".equals(fieldName)) {
+            return;
+        }
+        KindMetadata kind = getKindMetadata();
+        if (kind == null) {
+            return;
+        }
+        if (!kind.hasProperty(fieldName)) {
+            addError("Class '" + kind.getName() + "' doesn't contain a field with a name '" + fieldName + "'", node);
+        } else if (kind.isUnindexed(fieldName)) {
+            addError("The property '" + fieldName + "' of the class '" + kind.getName()
+                    + "' is not indexed and cannot be used in '" + clause + "'", node);
         }
-        return result;
+    }
+    /**
+     * Returns the metadata of the kind of the current closure. The kind is
+     * resolved on the first call and the result is kept by the
+     * @{link TransformState}.
+     *
+     * @return <code>null</code> if the <code>from</code> statement doesn't
+     *   specify a class or the class cannot be found
+     */
+    protected KindMetadata getKindMetadata() {
+        TransformState st = stateList.get(currentClosure);
+        if (!st.isKindMetadataResolved()) {
+            long start = System.nanoTime();
+            st.setKindMetadata(resolveKindMetadata(st.getKindCast()));
+            statistics.add(TransformStatistics.Phase.RESOLVE, System.nanoTime() - start);
+        }
+        return st.getKindMetadata();
     }
 
-    protected Class getPojoType(CastExpression castExpression) {
-        String cast = castExpression.getText();
-
-        int left = cast.indexOf('(');
-        int right = cast.indexOf("->");
-        if (right < 0) {
-            right = cast.indexOf(')');
+    protected KindMetadata resolveKindMetadata(CastExpression cast) {
+        if (cast == null) {
+            return null;
+        }
+        CompileUnit unit = sourceUnit.getAST().getUnit();
+        ClassNode type = cast.getType().redirect();
+        if (type.isResolved() || type.isPrimaryClassNode()) {
+            return KindMetadata.forClassNode(type, unit);
+        }
+        ClassNode declared = unit.getClass(type.getName());
+        if (declared == null) {
+            for (ClassNode c : sourceUnit.getAST().getClasses()) {
+                if (c.getNameWithoutPackage().equals(type.getNameWithoutPackage())) {
+                    declared = c;
+                    break;
+                }
+            }
+        }
+        if (declared != null) {
+            return KindMetadata.forClassNode(declared, unit);
         }
-        String className = cast.substring(left + 1, right).trim();
-        Class clazz = null;
         try {
-            clazz = sourceUnit.getAST().getUnit().getClassLoader().loadClass(className);
-        } catch (Exception ex) {
+            return KindMetadata.forClass(unit.getClassLoader().loadClass(type.getName()));
+        } catch (ClassNotFoundException ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
         }
-        return clazz;
     }
 
-    protected String getChildOfValue(Expression expr) {
-        String result = null;
+    protected Expression getChildOfValue(Expression expr) {
+        Expression result = null;
         if (expr instanceof BinaryExpression) {
             BinaryExpression bexpr = (BinaryExpression) expr;
             if (!(bexpr.getLeftExpression() instanceof VariableExpression)) {
                 addError("The second argument contains expression that 'from' doesn't support", expr);
             }
             VariableExpression vexpr = (VariableExpression) bexpr.getLeftExpression();
-            String nm = vexpr.getName();
-            if (!("childOf".equals(nm) || "ChildOf".equals(nm)
-                    || "asChildOf".equals(nm) || "asChildsOf".equals(nm)
-                    || "parent".equals(nm) || "ancestor".equals(nm)
-                    || "childsOf".equals(nm) || "ChildsOf".equals(nm))) {
+            if (QueryKeyword.lookup(vexpr.getName()) != QueryKeyword.CHILD_OF) {
                 addError("The second argument contains expression that 'from' doesn't support", expr);
 
             } else {
-                //result = converter.convert(bexpr.getRightExpression());
-                result = convert(bexpr.getRightExpression());
+                result = bexpr.getRightExpression();
             }
         } else if (expr instanceof MethodCallExpression) {
             MethodCallExpression mcexpr = (MethodCallExpression) expr;
-            String nm = mcexpr.getMethod().getText();
-            if ("childOf".equals(nm) || "ChildOf".equals(nm)
-                    || "asChildOf".equals(nm) || "asChildsOf".equals(nm)
-                    || "parent".equals(nm) || "ancestor".equals(nm)
-                    || "childsOf".equals(nm) || "ChildsOf".equals(nm)) {
+            if (QueryKeyword.lookup(mcexpr.getMethod().getText()) == QueryKeyword.CHILD_OF) {
                 result = getArgumentValue(mcexpr);
             }
         }
@@ -1100,6 +1510,7 @@ public String transformSelectArguments(MethodCallExpression call, ArgumentListEx
 
         ClassNode dummyNode = null;
         FieldNode castNode = null;
+        long start = System.nanoTime();
         if (resolveVisitor == null) {
             resolveVisitor = new QueryASTResolveVisitor(sourceUnit);
         }
@@ -1117,11 +1528,16 @@ public String transformSelectArguments(MethodCallExpression call, ArgumentListEx
         } finally {
             dummyNode.setModule(null);
             dummyNode.getFields().clear();
+            statistics.add(TransformStatistics.Phase.RESOLVE, System.nanoTime() - start);
         }
         return result;
     }
 
     public void addError(String msg, ASTNode expr) {
+        if (quietErrors != null) {
+            quietErrors.add(msg);
+            return;
+        }
         int line = expr.getLineNumber();
         int col = expr.getColumnNumber();
         sourceUnit.getErrorCollector().addError(
@@ -1157,7 +1573,9 @@ public String transformSelectArguments(MethodCallExpression call, ArgumentListEx
 
     @Override
     public void success(ClosureExpression closure, CastExpression cast) {
-        this.stateList.add(new TransformState(closure, cast));
+        TransformState st = new TransformState(closure, cast);
+        st.setOwner(currentClass);
+        this.stateList.add(st);
     }
 
 
@@ -0,0 +1,321 @@
+package groovyx.gaelyk.dsl.query;
+
+import com.google.appengine.api.datastore.FetchOptions;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The log of the slow queries.
+ * <p/>
+ * A run of a query is logged when it takes at least
+ * @{link #getThresholdMillis() } or when it is chosen by the sampling at
+ * the rate @{link #getSampleRate() }. An @{link Entry} holds the site of
+ * the query, its kind, the plan of the @{link QueryDescriptor} with the
+ * filters, the sorts and the options, the values bound to its parameters,
+ * the fetch options it was run with, tuned by the @{link FetchSizeTuner} in
+ * the adaptive mode, and the elapsed time.
+ * <p/>
+ * The entries are kept in a ring buffer of @{link #CAPACITY} slots: a run
+ * takes the next slot with an atomic increment and the oldest entries are
+ * overwritten. No lock is taken, neither by the queries nor by the
+ * readers, @{link #entries() } and @{link #dump(Writer) }, which may be
+ * called from a groovlet:
+ * <pre>
+ *   SlowQueryLog.dump(out)
+ * </pre>
+ * The log is off unless the system property @{link #THRESHOLD_PROPERTY}
+ * or @{link #SAMPLE_PROPERTY} is set, or @{link #setThresholdMillis } or
+ * @{link #setSampleRate } is called. It applies to the queries run by
+ * @{link QueryExecutor#execute } and @{link QueryExecutor#executeAsync }.
+ *
+ * @author V. Shyshkin
+ */
+public class SlowQueryLog {
+
+    public static final String THRESHOLD_PROPERTY = "gaelyk.query.slowMillis";
+    public static final String SAMPLE_PROPERTY = "gaelyk.query.sampleRate";
+    /**
+     * The number of entries kept, a power of two.
+     */
+    public static final int CAPACITY = 256;
+    /**
+     * The longest text of a bound value.
+     */
+    static final int MAX_VALUE_LENGTH = 100;
+
+    private static volatile long thresholdNanos = millisToNanos(Long.getLong(THRESHOLD_PROPERTY, -1L));
+    private static volatile double sampleRate = parseRate(System.getProperty(SAMPLE_PROPERTY));
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(CAPACITY);
+    private static final AtomicLong next = new AtomicLong();
+    /**
+     * The source of the sampling, one for each thread so the runs of the
+     * requests don't contend for it.
+     */
+    private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private SlowQueryLog() {
+    }
+
+    /**
+     * A logged run of a query.
+     */
+    public static class Entry {
+
+        private final long sequence;
+        private final long time;
+        private final String site;
+        private final String kind;
+        private final String result;
+        private final String plan;
+        private final String parameters;
+        private final String fetchOptions;
+        private final double elapsedMillis;
+        private final String failure;
+
+        Entry(long sequence, QueryDescriptor descriptor, Object[] values, FetchOptions options, long nanos,
+                Throwable failure) {
+            this.sequence = sequence;
+            this.time = System.currentTimeMillis();
+            this.site = descriptor.getSite();
+            this.kind = descriptor.getKind();
+            this.result = String.valueOf(descriptor.getResult());
+            this.plan = descriptor.toString();
+            this.parameters = parameters(values);
+            this.fetchOptions = options == null ? fetchOptions(descriptor, values) : fetchOptions(options);
+            this.elapsedMillis = nanos / 1000000.0;
+            this.failure = failure == null ? null : failure.toString();
+        }
+
+        /**
+         * @return the time the entry was logged in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getSite() {
+            return site;
+        }
+
+        public String getKind() {
+            return kind;
+        }
+        /**
+         * @return the name of the @{link QueryDescriptor.Result}
+         */
+        public String getResult() {
+            return result;
+        }
+        /**
+         * @return the text of the descriptor, the parameters shown as
+         *   <code>?1</code>, <code>?2</code>, ...
+         */
+        public String getPlan() {
+            return plan;
+        }
+        /**
+         * @return the values of the parameters
+         */
+        public String getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return the fetch options the query was run with, the sizes
+         *   chosen by the @{link FetchSizeTuner} included
+         */
+        public String getFetchOptions() {
+            return fetchOptions;
+        }
+
+        public double getElapsedMillis() {
+            return elapsedMillis;
+        }
+        /**
+         * @return the exception the query failed with or <code>null</code>
+         */
+        public String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return new Date(time) + " " + site + " " + elapsedMillis + "ms " + result + " " + plan
+                    + " parameters=" + parameters + " fetchOptions=" + fetchOptions
+                    + (failure == null ? "" : " failure=" + failure);
+        }
+    }
+
+    /**
+     * @return the threshold in milliseconds or <code>-1</code> when the
+     *   runs are not logged by their duration
+     */
+    public static long getThresholdMillis() {
+        long nanos = thresholdNanos;
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+    /**
+     * @param millis the duration of the runs to log or a negative number
+     *   to log none by their duration
+     */
+    public static void setThresholdMillis(long millis) {
+        thresholdNanos = millisToNanos(millis);
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+    /**
+     * @param rate the fraction of all the runs to log, from <code>0</code>
+     *   to <code>1</code>
+     */
+    public static void setSampleRate(double rate) {
+        sampleRate = Math.max(0, Math.min(1, rate));
+    }
+
+    public static boolean isEnabled() {
+        return thresholdNanos >= 0 || sampleRate > 0;
+    }
+    /**
+     * Logs a run of a query with the fetch options of the descriptor when
+     * it is slow or sampled.
+     * @param nanos the duration of the run
+     * @param failure the exception the run failed with or <code>null</code>
+     */
+    static void record(QueryDescriptor descriptor, Object[] values, long nanos, Throwable failure) {
+        record(descriptor, values, null, nanos, failure);
+    }
+    /**
+     * Logs a run of a query when it is slow or sampled.
+     * @param options the fetch options the query was run with or
+     *   <code>null</code> for the options of the descriptor
+     * @param nanos the duration of the run
+     * @param failure the exception the run failed with or <code>null</code>
+     */
+    static void record(QueryDescriptor descriptor, Object[] values, FetchOptions options, long nanos,
+            Throwable failure) {
+        long threshold = thresholdNanos;
+        double rate = sampleRate;
+        if (threshold < 0 && rate <= 0) {
+            return;
+        }
+        if ((threshold < 0 || nanos < threshold) && (rate <= 0 || random.get().nextDouble() >= rate)) {
+            return;
+        }
+        long sequence = next.getAndIncrement();
+        slots.set((int) (sequence & (CAPACITY - 1)), new Entry(sequence, descriptor, values, options, nanos, failure));
+    }
+    /**
+     * @return the entries in the buffer, the oldest first. The entries
+     *   logged while the buffer is read may be missing
+     */
+    public static List<Entry> entries() {
+        long last = next.get();
+        List<Entry> result = new ArrayList<Entry>(CAPACITY);
+        for (long sequence = Math.max(0, last - CAPACITY); sequence < last; sequence++) {
+            Entry entry = slots.get((int) (sequence & (CAPACITY - 1)));
+            if (entry != null && entry.sequence == sequence) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+    /**
+     * Writes the entries, one a line.
+     */
+    public static void dump(Writer out) throws IOException {
+        for (Entry entry : entries()) {
+            out.write(entry.toString());
+            out.write('\n');
+        }
+        out.flush();
+    }
+    /**
+     * Appends the entries to a file.
+     */
+    public static void dump(File file) throws IOException {
+        Writer out = new FileWriter(file, true);
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+    }
+    /**
+     * Removes all the entries.
+     */
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots.set(i, null);
+        }
+    }
+
+    static String parameters(Object[] values) {
+        if (values == null || values.length == 0) {
+            return "[]";
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String text = String.valueOf(values[i]);
+            if (text.length() > MAX_VALUE_LENGTH) {
+                text = text.substring(0, MAX_VALUE_LENGTH) + "...";
+            }
+            sb.append('?').append(i + 1).append('=').append(text);
+        }
+        return sb.append(']').toString();
+    }
+
+    static String fetchOptions(QueryDescriptor descriptor, Object[] values) {
+        FetchOptions options;
+        try {
+            options = descriptor.createFetchOptions(values);
+        } catch (RuntimeException e) {
+            return "?";
+        }
+        return fetchOptions(options);
+    }
+
+    static String fetchOptions(FetchOptions options) {
+        StringBuilder sb = new StringBuilder("{");
+        append(sb, "limit", options.getLimit());
+        append(sb, "offset", options.getOffset());
+        append(sb, "chunkSize", options.getChunkSize());
+        append(sb, "prefetchSize", options.getPrefetchSize());
+        append(sb, "startCursor", options.getStartCursor() == null ? null : "yes");
+        return sb.append('}').toString();
+    }
+
+    private static void append(StringBuilder sb, String name, Object value) {
+        if (value != null) {
+            sb.append(sb.length() > 1 ? ", " : "").append(name).append('=').append(value);
+        }
+    }
+
+    private static long millisToNanos(long millis) {
+        return millis < 0 ? -1 : millis * 1000000;
+    }
+
+    private static double parseRate(String rate) {
+        try {
+            return rate == null ? 0 : Math.max(0, Math.min(1, Double.parseDouble(rate)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
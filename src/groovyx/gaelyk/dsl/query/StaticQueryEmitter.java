@@ -0,0 +1,165 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.ast.AnnotationNode;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.expr.ClassExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+
+import static groovyx.gaelyk.dsl.query.Helper.*;
+import static groovyx.gaelyk.dsl.query.QueryNodeFactory.*;
+
+/**
+ * The emitter of the static mode (see @{link Helper#STATIC_PROPERTY}).
+ * <p/>
+ * Creates the same statements as @{link NodeQueryEmitter} but puts them
+ * into a new static method of the class that owns the closure. The method
+ * is annotated with <code>@groovy.transform.CompileStatic</code>, so the
+ * compiler reports an error when the generated code cannot be compiled
+ * statically. The values of the query are still evaluated in the closure
+ * and passed to the method as arguments, so the closure may refer to any
+ * variable it sees:
+ * <pre>
+ *   select all
+ *   from Person
+ *   where age &gt; minAge
+ * </pre>
+ * becomes
+ * <pre>
+ *   Owner.staticQuery0__123(it, minAge)
+ * </pre>
+ * and the class gets
+ * <pre>
+ *   &#64;CompileStatic
+ *   public static Object staticQuery0__123(DatastoreService service__123, Object value0__123) {
+ *       ...
+ *       query__123.addFilter('age', Query.FilterOperator.GREATER_THAN, value0__123)
+ *       return service__123.prepare(query__123).asList(fetchOptions__123)
+ *   }
+ * </pre>
+ * Constants and lists of constants are not passed as arguments, the fetch options and
+ * the lists of constants are hoisted as @{link NodeQueryEmitter} does. The annotation is referred
+ * to by name and Groovy 1.8 doesn't have it, so the transformation reports an error for each
+ * query when the compiler cannot load the annotation (see @{link #isSupported }) and emits the
+ * query as if the static mode was off.
+ *
+ * @author V. Shyshkin
+ */
+public class StaticQueryEmitter extends NodeQueryEmitter {
+
+    protected static final String COMPILE_STATIC = "groovy.transform.CompileStatic";
+    protected static final String METHOD_PREFIX = "staticQuery";
+    protected final List<Parameter> parameters = new ArrayList<Parameter>();
+    /**
+     * The expressions of the closure passed to the method, one for
+     * each of the @{link #parameters} after the service.
+     */
+    protected final List<Expression> arguments = new ArrayList<Expression>();
+    /**
+     * The statements of the transformed closure.
+     */
+    protected List<Statement> callStatements;
+
+    public StaticQueryEmitter(ClassNode owner) {
+        super(owner);
+        parameters.add(new Parameter(type(DATASTORE + "DatastoreService"), trname("service")));
+    }
+    /**
+     * @param loader the class loader of the compiler
+     * @return <code>true</code> when the loader has the annotation
+     *   <code>@CompileStatic</code>, which appeared in Groovy 2.0
+     */
+    public static boolean isSupported(ClassLoader loader) {
+        try {
+            Class.forName(COMPILE_STATIC, false, loader);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected Expression service() {
+        return var("service");
+    }
+    /**
+     * A value of the closure becomes an argument of the method call and
+     * the method refers to the corresponding parameter.
+     */
+    @Override
+    protected Expression value(Expression value, ClassNode type) {
+        if (isConstant(value)) {
+            return super.value(value, type);
+        }
+        String name = "value" + arguments.size();
+        parameters.add(new Parameter(ClassHelper.OBJECT_TYPE, trname(name)));
+        arguments.add(transplant(value));
+        return type == null ? var(name) : cast(type, var(name));
+    }
+    /**
+     * Adds the method to the @{link #owner} on the first call.
+     * @return the statement that calls the method
+     */
+    @Override
+    public List<Statement> getStatements() {
+        if (callStatements != null) {
+            return callStatements;
+        }
+        List<Statement> body = new ArrayList<Statement>(statements);
+        Statement last = body.remove(body.size() - 1);
+        ReturnStatement ret = new ReturnStatement(((ExpressionStatement) last).getExpression());
+        ret.setSourcePosition(last);
+        body.add(ret);
+
+        String name = methodName();
+        if (hoistedText != null) {
+            hoistedText.put(name, "static Object " + name + methodText(body));
+        } else {
+            MethodNode method = owner.addMethod(name, Modifier.PUBLIC | Modifier.STATIC,
+                    ClassHelper.OBJECT_TYPE, parameters.toArray(new Parameter[parameters.size()]),
+                    ClassNode.EMPTY_ARRAY, block(body.toArray(new Statement[body.size()])));
+            method.addAnnotation(new AnnotationNode(type(COMPILE_STATIC)));
+        }
+
+        List<Expression> args = new ArrayList<Expression>();
+        args.add(closureService());
+        args.addAll(arguments);
+        callStatements = new ArrayList<Statement>();
+        callStatements.add(stmt(call(new ClassExpression(owner), name, args.toArray(new Expression[args.size()]))));
+        return callStatements;
+    }
+    /**
+     * @return the parameters and the body of the method as text, for
+     *   @{link #getText} in the text only mode
+     */
+    protected String methodText(List<Statement> body) {
+        StringBuilder result = new StringBuilder("(");
+        for (Parameter parameter : parameters) {
+            if (result.length() > 1) {
+                result.append(", ");
+            }
+            result.append(parameter.getType().getNameWithoutPackage()).append(' ').append(parameter.getName());
+        }
+        result.append(") {\n").append(text(block(body.toArray(new Statement[body.size()])), "    "));
+        return result.append("\n}").toString();
+    }
+    /**
+     * @return <code>staticQuery0__123</code>, <code>staticQuery1__123</code>
+     *   and so on, a name no other method of the owner has
+     */
+    protected String methodName() {
+        int index = 0;
+        while (!owner.getMethods(METHOD_PREFIX + index + NAME_SUFFIX).isEmpty()) {
+            index++;
+        }
+        return METHOD_PREFIX + index + NAME_SUFFIX;
+    }
+}
@@ -0,0 +1,337 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.codehaus.groovy.ast.ASTNode;
+import org.codehaus.groovy.ast.VariableScope;
+import org.codehaus.groovy.ast.builder.AstBuilder;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilePhase;
+
+import static groovyx.gaelyk.dsl.query.Helper.*;
+
+/**
+ * Builds a source code of the transformed closure as a string.
+ * The method @{link #getStatements} hands the source to
+ * <code>AstBuilder</code> to get the AST.
+ * <p/>
+ * This is the original way the closures were transformed. It is
+ * selected by setting the system property @{link Helper#BACKEND_PROPERTY}
+ * to <code>"string"</code> and is kept to compare the output of
+ * the @{link NodeQueryEmitter}.
+ * <p/>
+ * By default the fixed fragments of the code are not parsed for each closure.
+ * The source contains marker statements in their place and the markers are
+ * replaced with the copies of the templates held by @{link QueryTemplates}.
+ *
+ * @author V. Shyshkin
+ */
+public class StringQueryEmitter implements QueryEmitter {
+
+    protected StringBuilder source = new StringBuilder();
+    /**
+     * Since the class @{link DefaultExpressionConverter} implements
+     * @{link ExpressionConverter} it is used as a converter by default.
+     */
+    protected ExpressionConverter converter;
+    /**
+     * When <code>true</code> the fixed fragments are taken from
+     * @{link QueryTemplates}.
+     */
+    protected boolean useTemplates;
+
+    public StringQueryEmitter() {
+        this(true);
+    }
+
+    public StringQueryEmitter(boolean useTemplates) {
+        this.useTemplates = useTemplates;
+    }
+
+    /**
+     * @return an object of type <code>String</code> which represents
+     *    the initial part of a source for AST transformation.
+     */
+    protected String initTransform() {
+        return
+                defVariable("markerProperty")
+                + ("def whereFields" + NAME_SUFFIX + " = \"\" \n")
+                + ("def orderByFields" + NAME_SUFFIX + " = \"\" \n")
+                + defVariable("pojo")
+                + defVariable("pojoClass")
+                + defVariable("entity")
+                + "def fetchOptions" + NAME_SUFFIX + " = FetchOptions.Builder.withDefaults() \n"
+                + defVariable("select")
+                + defVariable("cursor")
+                + defVariable("kind")
+                + defVariable("all")
+                + defVariable("keys")
+                + defVariable("single")
+                + defVariable("count")
+                + defVariable("iterate")
+                + defVariable("ancestorKey")
+                + defVariable("limit")
+                + defVariable("offset")
+                + defVariable("chunkSize")
+                + defVariable("prefetchSize")
+                + defVariable("deadLine")
+                + defVariable("startCursor")
+                + defVariable("endCursor")
+                + defVariable("childOf")
+                + defVariable("query")
+                + defVariable("preparedQuery");
+    }
+    /**
+     * The method is invoked at the end of the method
+     * @{link QueryTransformer#transformFetchOptionsArguments }.
+     *
+     * @return a string with a part of source code for <code>AstBuilder</code>.
+     */
+    protected String postFetchOptionsTransform() {
+        return
+                "if (" + trname("chunkSize") + ") { \n"
+                + "   fetchOptions" + NAME_SUFFIX + ".chunkSize(" + trname("chunkSize") + ")\n"
+                + "}\n "
+                + "if (" + trname("prefetchSize") + ") { \n"
+                + trname("fetchOptions") + ".prefetchSize(" + trname("prefetchSize") + ")\n"
+                + "}\n ";
+    }
+
+    /**
+     * The method is invoked at the end of the method
+     * @{link QueryTransformer#transformFromArguments }.
+     *
+     * @return a string with a part of source code for <code>AstBuilder</code>.
+     */
+    protected String postFromTransform() {
+        return
+                "if (" + trname("kind") + ") { \n"
+                + trname("query") + " = new com.google.appengine.api.datastore.Query(" + trname("kind") + ")\n"
+                + "    if (" + trname("childOf") + ") { \n"
+                + "       if (childOf" + NAME_SUFFIX + " instanceof Key ) { \n"
+                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ")\n"
+                + "       } else { \n"
+                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ".key)\n"
+                + "       }\n"
+                + "    }\n"
+                + "} else {\n"
+                + trname("query") + " = new com.google.appengine.api.datastore.Query()\n"
+                + "    if (" + trname("childOf") + ") { \n"
+                + "       if (childOf" + NAME_SUFFIX + " instanceof Key ) { \n"
+                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ")\n"
+                + "       } else { \n"
+                + "           query" + NAME_SUFFIX + ".setAncestor(" + "childOf" + NAME_SUFFIX + ".key)\n"
+                + "       }\n"
+                + "    }\n"
+                + "}\n"
+                + "if (" + trname("keys") + ") {\n"
+                + "query" + NAME_SUFFIX + ".setKeysOnly()\n"
+                + "}\n";
+
+    }
+    /**
+     * The method is invoked when the last statement in the closure
+     * is treated.
+     *
+     * @return a string with a final part of source code for <code>AstBuilder</code>.
+     */
+    protected String finalTransform() {
+        return trname("preparedQuery") + " = it.prepare(" + "query" + NAME_SUFFIX + ")\n"
+                + "if ("
+                + "cursor" + NAME_SUFFIX + ") {\n"
+                + "     if (" + "startCursor" + NAME_SUFFIX + ") {\n"
+                + "           if (" + "(startCursor" + NAME_SUFFIX
+                + " instanceof String) && startCursor" + NAME_SUFFIX + ".trim() != 'null' "
+                + " && ! startCursor" + NAME_SUFFIX + ".trim().isEmpty() ) {\n"
+                + "                fetchOptions" + NAME_SUFFIX + ".startCursor("
+                + "Cursor.fromWebSafeString(startCursor" + NAME_SUFFIX + "))\n"
+                + "           } else if (startCursor" + NAME_SUFFIX + " instanceof Cursor ) { \n"
+                + "                fetchOptions" + NAME_SUFFIX + ".startCursor("
+                + "startCursor" + NAME_SUFFIX + ")\n"
+                + "           }\n"
+                + "     }\n"
+                + "    if (" + "iterate" + NAME_SUFFIX + ") {\n"
+                + "        preparedQuery" + NAME_SUFFIX + ".asQueryResultIterator(fetchOptions" + NAME_SUFFIX + ")\n"
+                + "    } else {\n"
+                + "        preparedQuery" + NAME_SUFFIX + ".asQueryResultList(fetchOptions" + NAME_SUFFIX + ")\n"
+                + "    }\n"
+                + "}\n"
+                + "else if (" + "all" + NAME_SUFFIX + ") { \n"
+                + "    preparedQuery" + NAME_SUFFIX + ".asList(fetchOptions" + NAME_SUFFIX + ")\n"
+                + "}\n"
+                + "else if (" + "count" + NAME_SUFFIX + ") {\n"
+                + "    preparedQuery" + NAME_SUFFIX + ".countEntities(fetchOptions" + NAME_SUFFIX + ")\n"
+                + "}\n"
+                + "else if (" + "iterate" + NAME_SUFFIX + ") {\n"
+                + "    preparedQuery" + NAME_SUFFIX + ".asIterable(fetchOptions" + NAME_SUFFIX + ")\n"
+                + "}\n"
+                + "else if (" + "single" + NAME_SUFFIX + ") {\n"
+                + "    preparedQuery" + NAME_SUFFIX + ".asSingleEntity()\n"
+                + "}\n"
+                + "else {\n"
+                + "    preparedQuery" + NAME_SUFFIX + ".asList(fetchOptions" + NAME_SUFFIX + ")\n"
+                + "}\n";
+    }
+
+    /**
+     * Helper method to create a string representation of the Groovy
+     * declaration for a given variable name whose value is initialized with
+     * <code>null</code>.
+     * @param varName the variable name for which a declaration must be
+     *  created.
+     * @return a string like "def varName" + NAME_SUFFIX + "= null"
+     */
+    protected String defVariable(String varName) {
+        return "def " + varName + NAME_SUFFIX + "= " + "null\n";
+    }
+    /**
+     * Helper method to create a Groovy assign expression for a given
+     * left part and a given value.
+     * Adds a suffix @{link Helper#NAME_SUFFIX} to the name that the
+     * <code>left</code> parameter contains and uses that new name as
+     * a left side of the result assign expression.
+     *
+     * @param left the left part side of an expression to be created
+     * @param value the right part side of an expression to be created
+     * @return a string representation of the assign expression
+     */
+    protected String assignExprAsString(String left, String value) {
+        return trname(left) + " = " + value + "\n";
+    }
+    /**
+     * Converts a given expression to a string.
+     * Creates a new instance of the @{link ExpressionConverter} if needed and
+     * calls it's <code>convert()</code> method.
+     * @param expression an expression to be converted
+     * @return a string representation of the expression
+     */
+    protected String convert(Expression expression) {
+        if ( converter == null ) {
+            converter = new DefaultExpressionConverter();
+        }
+        return converter.convert(expression);
+    }
+
+    @Override
+    public void begin() {
+        appendFragment(QueryTemplates.INIT);
+    }
+
+    @Override
+    public void assignConstant(String name, String value) {
+        source.append(assignExprAsString(name, "'" + value + "'"));
+    }
+
+    @Override
+    public void assignClass(String name, String className) {
+        source.append(assignExprAsString(name, className));
+    }
+
+    @Override
+    public void assignValue(String name, Expression value) {
+        source.append(assignExprAsString(name, convert(value)));
+    }
+
+    @Override
+    public void applyFetchOption(String name) {
+        source.append("fetchOptions").append(NAME_SUFFIX).append(".").append(name)
+                .append("(").append(trname(name)).append(")\n");
+    }
+
+    @Override
+    public void endFetchOptions() {
+        appendFragment(QueryTemplates.POST_FETCH_OPTIONS);
+    }
+
+    @Override
+    public void endFrom() {
+        appendFragment(QueryTemplates.POST_FROM);
+    }
+
+    @Override
+    public void addFilter(String fieldName, boolean keyProperty, String operation, Expression value) {
+        source.append("whereFields").append(NAME_SUFFIX).append(" += ',").append(fieldName).append("'\n");
+        if (keyProperty) {
+            source.append("query").append(NAME_SUFFIX).append(".addFilter(Entity.KEY_RESERVED_PROPERTY,")
+                    .append(operation).append(",").append(convert(value)).append(")\n");
+        } else {
+            source.append("query").append(NAME_SUFFIX).append(".addFilter(").append("\"").append(fieldName).append("\",")
+                    .append(operation).append(",").append(convert(value)).append(")\n");
+        }
+    }
+
+    @Override
+    public void addSort(String fieldName, boolean keyProperty, String direction) {
+        source.append("orderByFields").append(NAME_SUFFIX).append(" += '," + fieldName + "'\n");
+        if (keyProperty) {
+            source.append("query").append(NAME_SUFFIX).append(".addSort(Entity.KEY_RESERVED_PROPERTY,")
+                    .append(direction).append(")\n");
+        } else {
+            source.append("query").append(NAME_SUFFIX).append(".addSort(").append("\"").append(fieldName).append("\",")
+                    .append(direction).append(")\n");
+        }
+    }
+
+    @Override
+    public void end() {
+        appendFragment(QueryTemplates.FINAL);
+    }
+    /**
+     * Appends either the marker of the template with a given id or
+     * the source code of the fragment.
+     */
+    protected void appendFragment(int id) {
+        if (useTemplates) {
+            source.append(QueryTemplates.marker(id));
+        } else {
+            switch (id) {
+                case QueryTemplates.INIT:
+                    source.append(initTransform());
+                    break;
+                case QueryTemplates.POST_FROM:
+                    source.append(postFromTransform());
+                    break;
+                case QueryTemplates.POST_FETCH_OPTIONS:
+                    source.append(postFetchOptionsTransform());
+                    break;
+                default:
+                    source.append(finalTransform());
+            }
+        }
+    }
+    /**
+     * Builds AST from the source code produced so far.
+     * @return a list with a single <code>BlockStatement</code>
+     */
+    @Override
+    public List<Statement> getStatements() {
+        List<Statement> stmtList = new ArrayList<Statement>(1);
+        if (useTemplates) {
+            stmtList.add(new BlockStatement(QueryTemplates.expand(QueryTemplates.parse(source.toString())),
+                    new VariableScope()));
+            return stmtList;
+        }
+        AstBuilder b = new AstBuilder();
+        List<ASTNode> astNodes = b.buildFromString(CompilePhase.CONVERSION, true, source.toString());
+        for (ASTNode s : astNodes) {
+            stmtList.add((Statement) s);
+        }
+        return stmtList;
+    }
+    /**
+     * @return the source code produced so far with the template 
+     *  markers replaced by the source of the fragments
+     */
+    @Override
+    public String toString() {
+        String result = source.toString();
+        if (useTemplates) {
+            for (int id = QueryTemplates.INIT; id <= QueryTemplates.FINAL; id++) {
+                result = result.replace(QueryTemplates.marker(id), QueryTemplates.getSource(id));
+            }
+        }
+        return result;
+    }
+}
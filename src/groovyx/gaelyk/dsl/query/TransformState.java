@@ -1,7 +1,12 @@
 package groovyx.gaelyk.dsl.query;
 
+import java.util.List;
+import java.util.Set;
+import org.codehaus.groovy.ast.ClassNode;
 import org.codehaus.groovy.ast.expr.CastExpression;
 import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.stmt.Statement;
 
 /**
  * The instance of the class is created for each closure which is recognized
@@ -26,10 +31,52 @@ public class TransformState {
      * looks like <code>from entity as Person</code> or <code>null</code>.
      */
     private CastExpression kindCast;
+    /**
+     * The class whose field or method contains the closure.
+     */
+    private ClassNode owner;
+    /**
+     * <code>true</code> when the closure is an argument of
+     * <code>defineQuery</code>.
+     */
+    private boolean definition;
+    /**
+     * The call of <code>executeQuery</code> or <code>defineQuery</code>
+     * whose argument is the closure or <code>null</code>.
+     */
+    private MethodCallExpression call;
+    /**
+     * <code>true</code> when the code of the query replaces the
+     * @{link #call} instead of the code of the closure.
+     */
+    private boolean inline;
+    /**
+     * <code>true</code> for the closure of <code>executeQueryAsync</code>.
+     */
+    private boolean async;
+    /**
+     * <code>true</code> for the closure of <code>transformedText</code>.
+     */
+    private boolean explain;
+    /**
+     * The names the closure of <code>defineQuery</code> may be executed
+     * with or <code>null</code>.
+     */
+    private Set<String> bindNames;
+    /**
+     * The properties of the class referred by the @{link #kindCast}.
+     * Resolved once for the closure.
+     */
+    private KindMetadata kindMetadata;
+    private boolean kindMetadataResolved;
     /**
      * The result of the transformation as a string
      */
     private String transformAsString;
+    /**
+     * The result of the transformation as a list of statements
+     */
+    private List<Statement> transformStatements;
     /**
      * A store of the <code>cursor</code> property 
      */
@@ -60,6 +107,78 @@ public class TransformState {
         return kindCast;
     }
 
+    public ClassNode getOwner() {
+        return owner;
+    }
+
+    public void setOwner(ClassNode owner) {
+        this.owner = owner;
+    }
+
+    public boolean isDefinition() {
+        return definition;
+    }
+
+    public void setDefinition(boolean definition) {
+        this.definition = definition;
+    }
+
+    public MethodCallExpression getCall() {
+        return call;
+    }
+
+    public void setCall(MethodCallExpression call) {
+        this.call = call;
+    }
+
+    public boolean isInline() {
+        return inline;
+    }
+
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public boolean isExplain() {
+        return explain;
+    }
+
+    public void setExplain(boolean explain) {
+        this.explain = explain;
+    }
+
+    public Set<String> getBindNames() {
+        return bindNames;
+    }
+
+    public void setBindNames(Set<String> bindNames) {
+        this.bindNames = bindNames;
+    }
+
+    public KindMetadata getKindMetadata() {
+        return kindMetadata;
+    }
+
+    public void setKindMetadata(KindMetadata kindMetadata) {
+        this.kindMetadata = kindMetadata;
+        this.kindMetadataResolved = true;
+    }
+    /**
+     * @return <code>true</code> if an attempt to resolve the 
+     *   @{link #getKindMetadata() } was already made
+     */
+    public boolean isKindMetadataResolved() {
+        return kindMetadataResolved;
+    }
+
     public String getTransformAsString() {
         return transformAsString;
     }
@@ -67,6 +186,13 @@ public class TransformState {
     public void setTransformAsString(String transformAsString) {
         this.transformAsString = transformAsString;
     }
+    public List<Statement> getTransformStatements() {
+        return transformStatements;
+    }
+
+    public void setTransformStatements(List<Statement> transformStatements) {
+        this.transformStatements = transformStatements;
+    }
     /**
      * @return <code>true</code> if the closure represents a cursor. 
      *      <code>false</code> otherwise
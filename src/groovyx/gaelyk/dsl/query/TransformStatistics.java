@@ -0,0 +1,268 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import org.codehaus.groovy.ast.CompileUnit;
+import org.codehaus.groovy.control.SourceUnit;
+
+/**
+ * Counters of the work done by @{link QueryASTTransformation} in the
+ * current JVM. The counters are shared by all compilations and may be
+ * read at any time, for example from a test or a debugging page of
+ * the development server.
+ * <p/>
+ * The time of a transformation is divided into the @{link Phase}s. When
+ * the system property @{link Helper#STATISTICS_PROPERTY} is
+ * <code>"true"</code> the times of each source unit with queries are
+ * logged at the <code>INFO</code> level to the
+ * <code>java.util.logging</code> logger of this class, and so is a summary
+ * when the last source unit of a compilation with queries has been
+ * transformed.
+ *
+ * @author V. Shyshkin
+ */
+public class TransformStatistics {
+
+    /**
+     * The parts of the transformation of a source unit.
+     */
+    public enum Phase {
+
+        /**
+         * Walking the AST to find the query closures
+         */
+        VISIT,
+        /**
+         * Resolving the classes of the kinds
+         */
+        RESOLVE,
+        /**
+         * Running the emitters: the source text for the string back end,
+         * the AST nodes for the others
+         */
+        GENERATE,
+        /**
+         * Parsing the source of the string back end with
+         * <code>AstBuilder</code>
+         */
+        PARSE,
+        /**
+         * Replacing the closures and the calls with the generated code
+         */
+        REPLACE
+    }
+
+    /**
+     * The times of the transformation of a source unit.
+     */
+    public static class Unit {
+
+        private final String name;
+        private final long[] nanos = new long[Phase.values().length];
+        private int closures;
+
+        public Unit(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getNanos(Phase phase) {
+            return nanos[phase.ordinal()];
+        }
+
+        public void add(Phase phase, long nanos) {
+            this.nanos[phase.ordinal()] += nanos;
+        }
+
+        public int getClosures() {
+            return closures;
+        }
+
+        public void setClosures(int closures) {
+            this.closures = closures;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": closures=" + closures + times(nanos);
+        }
+    }
+
+    /**
+     * The source units of a compilation seen so far.
+     */
+    private static class Compilation {
+
+        int units;
+        int skipped;
+        int closures;
+        final long[] nanos = new long[Phase.values().length];
+    }
+
+    private static final Logger logger = Logger.getLogger(TransformStatistics.class.getName());
+    private static final AtomicLong unitsSkipped = new AtomicLong();
+    private static final AtomicLong unitsVisited = new AtomicLong();
+    private static final AtomicLong unitsTransformed = new AtomicLong();
+    private static final AtomicLong closuresTransformed = new AtomicLong();
+    private static final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private static final Map<CompileUnit, Compilation> compilations = new WeakHashMap<CompileUnit, Compilation>();
+
+    private TransformStatistics() {
+    }
+    /**
+     * Counts a source unit that was not walked, without adding it to the
+     * summary of a compilation.
+     */
+    public static void unitSkipped() {
+        unitsSkipped.incrementAndGet();
+    }
+    /**
+     * Called by @{link QueryASTTransformation} when
+     * @{link QuerySourceFilter} rejects a source unit. The unit is counted
+     * and added, with no closures, to its compilation, so the summary is
+     * logged after the last unit even when that one is skipped.
+     */
+    public static void unitSkipped(SourceUnit sourceUnit) {
+        unitSkipped();
+        compiled(sourceUnit, null);
+    }
+    /**
+     * Called when the AST of a source unit was walked.
+     * @param closureCount the number of "query DSL" closures found
+     */
+    public static void unitVisited(int closureCount) {
+        unitsVisited.incrementAndGet();
+        if (closureCount > 0) {
+            unitsTransformed.incrementAndGet();
+            closuresTransformed.addAndGet(closureCount);
+        }
+    }
+    /**
+     * Called when a source unit was transformed.
+     * @param unit the times of the transformation
+     */
+    public static void unitVisited(SourceUnit sourceUnit, Unit unit) {
+        unitVisited(unit.getClosures());
+        for (Phase phase : Phase.values()) {
+            phaseNanos.addAndGet(phase.ordinal(), unit.getNanos(phase));
+        }
+        if (isLogged() && unit.getClosures() > 0) {
+            logger.info("query transformation of " + unit);
+        }
+        compiled(sourceUnit, unit);
+    }
+    /**
+     * Adds a unit to its compilation and logs the summary of the
+     * compilation after its last unit. All the units of a compilation
+     * are converted before the first one is transformed, so the module
+     * of each is already in the <code>CompileUnit</code>.
+     */
+    private static void compiled(SourceUnit sourceUnit, Unit unit) {
+        if (!isLogged() || sourceUnit.getAST() == null || sourceUnit.getAST().getUnit() == null) {
+            return;
+        }
+        CompileUnit compileUnit = sourceUnit.getAST().getUnit();
+        String summary = null;
+        synchronized (compilations) {
+            Compilation c = compilations.get(compileUnit);
+            if (c == null) {
+                c = new Compilation();
+                compilations.put(compileUnit, c);
+            }
+            c.units++;
+            if (unit == null) {
+                c.skipped++;
+            } else {
+                c.closures += unit.getClosures();
+                for (Phase phase : Phase.values()) {
+                    c.nanos[phase.ordinal()] += unit.getNanos(phase);
+                }
+            }
+            if (c.units >= compileUnit.getModules().size()) {
+                //
+                // The compilations of AstBuilder and of the kinds, with
+                // no queries, are not reported
+                //
+                summary = c.closures == 0 ? null : "query transformation summary: units=" + c.units + " skipped=" + c.skipped
+                        + " closures=" + c.closures + times(c.nanos);
+                compilations.remove(compileUnit);
+            }
+        }
+        if (summary != null) {
+            logger.info(summary);
+        }
+    }
+
+    private static boolean isLogged() {
+        return Boolean.getBoolean(Helper.STATISTICS_PROPERTY);
+    }
+
+    private static String times(long[] nanos) {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        for (Phase phase : Phase.values()) {
+            sb.append(' ').append(phase.name().toLowerCase()).append('=')
+                    .append(nanos[phase.ordinal()] / 1000000.0).append("ms");
+            total += nanos[phase.ordinal()];
+        }
+        return sb.append(" total=").append(total / 1000000.0).append("ms").toString();
+    }
+    /**
+     * @return the number of source units that were not walked because
+     *   their source doesn't mention a query
+     */
+    public static long getUnitsSkipped() {
+        return unitsSkipped.get();
+    }
+    /**
+     * @return the number of source units whose AST was walked
+     */
+    public static long getUnitsVisited() {
+        return unitsVisited.get();
+    }
+    /**
+     * @return the number of source units that contain at least one
+     *   transformed closure
+     */
+    public static long getUnitsTransformed() {
+        return unitsTransformed.get();
+    }
+
+    public static long getClosuresTransformed() {
+        return closuresTransformed.get();
+    }
+    /**
+     * @return the time spent in a phase by all the transformations
+     */
+    public static long getNanos(Phase phase) {
+        return phaseNanos.get(phase.ordinal());
+    }
+
+    public static void reset() {
+        unitsSkipped.set(0);
+        unitsVisited.set(0);
+        unitsTransformed.set(0);
+        closuresTransformed.set(0);
+        for (Phase phase : Phase.values()) {
+            phaseNanos.set(phase.ordinal(), 0);
+        }
+    }
+
+    public static String summary() {
+        long[] nanos = new long[Phase.values().length];
+        for (Phase phase : Phase.values()) {
+            nanos[phase.ordinal()] = getNanos(phase);
+        }
+        return "units skipped: " + getUnitsSkipped()
+                + ", visited: " + getUnitsVisited()
+                + ", transformed: " + getUnitsTransformed()
+                + ", closures transformed: " + getClosuresTransformed()
+                + "," + times(nanos);
+    }
+}
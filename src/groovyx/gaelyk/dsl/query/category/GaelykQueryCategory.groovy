@@ -1,6 +1,12 @@
 package groovyx.gaelyk.dsl.query.category
 
 import com.google.appengine.api.datastore.DatastoreService
+import com.google.appengine.api.datastore.DatastoreServiceConfig
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import groovyx.gaelyk.dsl.query.CompiledQuery
+import groovyx.gaelyk.dsl.query.QueryExecutor
+import groovyx.gaelyk.dsl.query.QueryPlan
+import java.util.concurrent.Future
 
 /**
  *
@@ -10,14 +16,36 @@ class GaelykQueryCategory {
     static Object query(DatastoreService service, Closure closure) {    
         closure(service)
     }
-    static Closure defineQuery(DatastoreService service, Closure closure) {    
-        closure
+    static CompiledQuery defineQuery(DatastoreService service, Closure closure) {    
+        new CompiledQuery(service, closure)
     }
     /**
-     * Not yet implemented
+     * The transformed closure passes the names it binds, which are checked
+     * on each execution
      */
-    static String transformedText(DatastoreService service, Closure closure) {    
-        ""
+    static CompiledQuery defineQuery(DatastoreService service, List<String> names, Closure closure) {
+        new CompiledQuery(service, names, closure)
+    }
+    /**
+     * The query runs on the receiver when it is an asynchronous service,
+     * otherwise on the asynchronous service of the factory
+     */
+    static Future executeQueryAsync(DatastoreService service, Closure closure) {
+        closure(QueryExecutor.asyncService(service))
+    }
+    /**
+     * The query runs on the asynchronous service of the factory with the
+     * given configuration, for example a deadline
+     */
+    static Future executeQueryAsync(DatastoreService service, DatastoreServiceConfig config, Closure closure) {
+        closure(DatastoreServiceFactory.getAsyncDatastoreService(config))
+    }
+    /**
+     * The closure is transformed into a call of QueryExecutor.explain, the
+     * query is not run
+     */
+    static QueryPlan transformedText(DatastoreService service, Closure closure) {    
+        closure(service)
     }
 
 }
@@ -0,0 +1,52 @@
+package groovyx.gaelyk.dsl.query;
+
+import java.util.List;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.stmt.BlockStatement;
+import org.codehaus.groovy.ast.stmt.EmptyStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+
+/**
+ * Renders statements as a text which includes the node types.
+ * Used to compare the AST produced in different ways.
+ *
+ * @author V.Shyshkin
+ */
+public class AstDumper {
+
+    public static String dump(List<Statement> statements) {
+        StringBuilder sb = new StringBuilder();
+        for (Statement s : statements) {
+            dump(s, sb, "");
+        }
+        return sb.toString();
+    }
+
+    public static void dump(Statement stmt, StringBuilder sb, String indent) {
+        if (stmt instanceof BlockStatement) {
+            sb.append(indent).append("{\n");
+            for (Statement s : ((BlockStatement) stmt).getStatements()) {
+                dump(s, sb, indent + "  ");
+            }
+            sb.append(indent).append("}\n");
+        } else if (stmt instanceof IfStatement) {
+            IfStatement ifStmt = (IfStatement) stmt;
+            sb.append(indent).append("if ").append(dump(ifStmt.getBooleanExpression())).append("\n");
+            dump(ifStmt.getIfBlock(), sb, indent);
+            sb.append(indent).append("else\n");
+            dump(ifStmt.getElseBlock(), sb, indent);
+        } else if (stmt instanceof ExpressionStatement) {
+            sb.append(indent).append(dump(((ExpressionStatement) stmt).getExpression())).append("\n");
+        } else if (stmt instanceof EmptyStatement) {
+            sb.append(indent).append("<empty>\n");
+        } else {
+            sb.append(indent).append(stmt.getClass().getSimpleName()).append(":").append(stmt.getText()).append("\n");
+        }
+    }
+
+    public static String dump(Expression expr) {
+        return expr.getClass().getSimpleName() + ":" + expr.getText();
+    }
+}
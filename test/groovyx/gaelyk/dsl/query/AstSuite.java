@@ -12,7 +12,27 @@ import org.junit.runners.Suite;
  * @author V. Shyshkin
  */
 @RunWith(Suite.class)
-@Suite.SuiteClasses({groovyx.gaelyk.dsl.query.DefaultExpressionConverterTest.class})
+@Suite.SuiteClasses({groovyx.gaelyk.dsl.query.DefaultExpressionConverterTest.class,
+    groovyx.gaelyk.dsl.query.QueryTemplatesTest.class,
+    groovyx.gaelyk.dsl.query.KindMetadataTest.class,
+    groovyx.gaelyk.dsl.query.QueryKeywordTest.class,
+    groovyx.gaelyk.dsl.query.QuerySourceFilterTest.class,
+    groovyx.gaelyk.dsl.query.NodeQueryEmitterTest.class,
+    groovyx.gaelyk.dsl.query.StaticQueryEmitterTest.class,
+    groovyx.gaelyk.dsl.query.ExecutorQueryEmitterTest.class,
+    groovyx.gaelyk.dsl.query.QueryDescriptorTest.class,
+    groovyx.gaelyk.dsl.query.InlineCallTest.class,
+    groovyx.gaelyk.dsl.query.QueryExecutorTest.class,
+    groovyx.gaelyk.dsl.query.PojoMapperTest.class,
+    groovyx.gaelyk.dsl.query.QueryFutureTest.class,
+    groovyx.gaelyk.dsl.query.ParallelQueriesTest.class,
+    groovyx.gaelyk.dsl.query.QueryMergerTest.class,
+    groovyx.gaelyk.dsl.query.QueryPagesTest.class,
+    groovyx.gaelyk.dsl.query.FetchSizeTunerTest.class,
+    groovyx.gaelyk.dsl.query.QueryMetricsTest.class,
+    groovyx.gaelyk.dsl.query.QueryBudgetTest.class,
+    groovyx.gaelyk.dsl.query.SlowQueryLogTest.class,
+    groovyx.gaelyk.dsl.query.QueryPlanTest.class})
 public class AstSuite {
 
     @BeforeClass
@@ -160,7 +160,67 @@ class DefaultExpressionConverterTest {
         def expResult = '(123,"Black")'
         assertEquals expResult,result
     }
-    
+    @Test
+    public void visitTernaryExpression() {
+        print "visitTernaryExpression()"
+        def expr = ExpressionProducer.create("a > 1 ? 'x' : 'y'")
+        def support = new DefaultExpressionConverter() 
+        def result = support.getResult(expr)
+        print result
+        def expResult = '((a>1) ? "x" : "y")'
+        assertEquals expResult,result
+        
+        expr = ExpressionProducer.create("a ?: 10")
+        result = support.getResult(expr)
+        print result
+        expResult = '(a ?: 10)'
+        assertEquals expResult,result
+    }
+    @Test
+    public void visitMapExpression() {
+        print "visitMapExpression()"
+        def expr = ExpressionProducer.create("[name:'Bill', age:30]")
+        def support = new DefaultExpressionConverter() 
+        def result = support.getResult(expr)
+        print result
+        def expResult = '["name":"Bill","age":30]'
+        assertEquals expResult,result
+        
+        expr = ExpressionProducer.create("[:]")
+        result = support.getResult(expr)
+        assertEquals '[:]',result
+    }
+    @Test
+    public void visitRangeExpression() {
+        print "visitRangeExpression()"
+        def expr = ExpressionProducer.create("(1..10)")
+        def support = new DefaultExpressionConverter() 
+        def result = support.getResult(expr)
+        print result
+        assertEquals '(1..10)',result
+        
+        expr = ExpressionProducer.create("(1..<n)")
+        result = support.getResult(expr)
+        print result
+        assertEquals '(1..<n)',result
+    }
+    @Test
+    public void visitNotExpression() {
+        print "visitNotExpression()"
+        def expr = ExpressionProducer.create("!a.b")
+        def support = new DefaultExpressionConverter() 
+        def result = support.getResult(expr)
+        print result
+        assertEquals '!(a."b")',result
+    }
+    @Test
+    public void escapedConstantExpression() {
+        print "escapedConstantExpression()"
+        def expr = ExpressionProducer.create('''"a\\"b\\$c"''')
+        def support = new DefaultExpressionConverter() 
+        def result = support.getResult(expr)
+        print result
+        assertEquals '''"a\\"b\\$c"''',result
+    }
 
 }
-
@@ -0,0 +1,98 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+import org.codehaus.groovy.ast.ClassHelper
+import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.ast.stmt.ExpressionStatement
+/**
+ * @author V. Shyshkin
+ */
+class ExecutorQueryEmitterTest {
+
+    def emit(ClassNode owner, String clause, String result, Closure body = {}) {
+        def e = new ExecutorQueryEmitter(owner)
+        e.begin()
+        e.assignConstant(clause, clause)
+        e.assignConstant(result, result)
+        body(e)
+        e.assignConstant("kind", "Person")
+        e.endFrom()
+        e.end()
+        return e.statements
+    }
+    @Test
+    public void singleCall() {
+        print "singleCall()"
+        def owner = new ClassNode("Owner", 1, ClassHelper.OBJECT_TYPE)
+        def statements = emit(owner, "select", "all") { e ->
+            e.assignValue("limit", ExpressionProducer.create("10"))
+            e.applyFetchOption("limit")
+            e.addFilter("age", false, "Query.FilterOperator.GREATER_THAN", ExpressionProducer.create("minAge"))
+            e.addFilter("status", false, "Query.FilterOperator.EQUAL", ExpressionProducer.create("'ACTIVE'"))
+        }
+        assertEquals 1, statements.size()
+        def call = statements[0].expression
+        assertEquals "execute", call.method.value
+        // the service, the descriptor and the array with minAge
+        assertEquals 3, call.arguments.expressions.size()
+        assertEquals 1, call.arguments.expressions[2].expressions.size()
+        def field = owner.getField("hoistedDescriptor0__123")
+        assertNotNull field
+        def text = AstDumper.dump([new ExpressionStatement(field.initialExpression)])
+        assertTrue text, text.contains("ACTIVE")
+        assertFalse text, text.contains("minAge")
+    }
+    @Test
+    public void withoutOwner() {
+        print "withoutOwner()"
+        def statements = emit(null, "cursor", "keys")
+        def text = AstDumper.dump(statements)
+        assertTrue text, text.contains("PAGE")
+        assertTrue text, text.contains("QueryDescriptor")
+    }
+    @Test
+    public void iterate() {
+        print "iterate()"
+        assertTrue AstDumper.dump(emit(null, "select", "iterate")).contains("ITERABLE")
+        assertTrue AstDumper.dump(emit(null, "cursor", "iterate")).contains("ITERATOR")
+    }
+    @Test
+    public void each() {
+        print "each()"
+        def text = AstDumper.dump(emit(null, "select", "all") { e ->
+            e.assignValue("each", ExpressionProducer.create("consumer"))
+        })
+        assertTrue text, text.contains("EACH")
+        assertTrue text, text.contains("consumer")
+    }
+    @Test
+    public void disjunction() {
+        print "disjunction()"
+        def text = AstDumper.dump(emit(null, "select", "all") { e ->
+            e.disjunct(0, 0)
+            e.addFilter("age", false, "Query.FilterOperator.LESS_THAN", ExpressionProducer.create("18"))
+            e.disjunct(0, 1)
+            e.addFilter("status", false, "Query.FilterOperator.EQUAL", ExpressionProducer.create("'NEW'"))
+            e.conjunct()
+        })
+        assertTrue text, text.contains("disjunct")
+        assertTrue text, text.contains("conjunct")
+    }
+    @Test
+    public void explain() {
+        print "explain()"
+        def e = new ExecutorQueryEmitter(null)
+        e.explain = true
+        e.begin()
+        e.assignConstant("select", "select")
+        e.assignConstant("all", "all")
+        e.addFilter("age", false, "Query.FilterOperator.GREATER_THAN", ExpressionProducer.create("minAge"))
+        e.assignConstant("kind", "Person")
+        e.endFrom()
+        e.end()
+        def call = e.statements[0].expression
+        assertEquals "explain", call.method.value
+        assertTrue call.arguments.expressions[1].value.contains("execute(")
+    }
+}
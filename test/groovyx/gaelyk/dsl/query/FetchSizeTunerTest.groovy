@@ -0,0 +1,67 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.FetchOptions
+/**
+ * @author V. Shyshkin
+ */
+class FetchSizeTunerTest {
+
+    def descriptor(QueryDescriptor.Result result, String site) {
+        return new QueryDescriptor('Item', result, false).site(site)
+    }
+    @Test
+    public void sizesFollowTheLimit() {
+        print "sizesFollowTheLimit()"
+        FetchSizeTuner.reset()
+        def options = FetchOptions.Builder.withLimit(5).offset(2)
+        def tuned = FetchSizeTuner.tune(descriptor(QueryDescriptor.Result.LIST, 'Owner:1'), options)
+        assertEquals 5, tuned.limit
+        assertEquals 2, tuned.offset
+        assertEquals 5, tuned.prefetchSize
+        assertEquals FetchSizeTuner.MIN_CHUNK_SIZE, tuned.chunkSize
+        def streamed = FetchSizeTuner.tune(descriptor(QueryDescriptor.Result.ITERABLE, 'Owner:2'),
+            FetchOptions.Builder.withLimit(5000))
+        assertEquals FetchSizeTuner.STREAM_FIRST_BATCH, streamed.prefetchSize
+        assertEquals FetchSizeTuner.MAX_SIZE, streamed.chunkSize
+    }
+    @Test
+    public void sizesFollowEarlierRuns() {
+        print "sizesFollowEarlierRuns()"
+        FetchSizeTuner.reset()
+        def d = descriptor(QueryDescriptor.Result.LIST, 'Owner:3')
+        def options = FetchOptions.Builder.withDefaults()
+        // nothing to choose from on the first run
+        assertSame options, FetchSizeTuner.tune(d, options)
+        FetchSizeTuner.record(d, [1] * 40, System.nanoTime())
+        FetchSizeTuner.record(d, 80, System.nanoTime())
+        def site = FetchSizeTuner.sites['Owner:3']
+        assertEquals 2, site.runs
+        assertEquals 50, site.meanSize, 0.001
+        assertEquals 64, FetchSizeTuner.tune(d, options).prefetchSize
+        // the sizes written by the query are kept
+        def own = FetchOptions.Builder.withChunkSize(7)
+        assertSame own, FetchSizeTuner.tune(d, own)
+    }
+    @Test
+    public void sizesOfARunComeFromOneChoice() {
+        print "sizesOfARunComeFromOneChoice()"
+        FetchSizeTuner.reset()
+        def d = descriptor(QueryDescriptor.Result.LIST, 'Owner:4')
+        def mixed = []
+        def threads = (1..4).collect { n ->
+            Thread.start {
+                500.times { i ->
+                    int limit = (n + i) % 2 ? 5 : 900
+                    def tuned = FetchSizeTuner.tune(d, FetchOptions.Builder.withLimit(limit))
+                    if (tuned.prefetchSize != limit || tuned.chunkSize != Math.max(limit, FetchSizeTuner.MIN_CHUNK_SIZE)) {
+                        synchronized (mixed) { mixed << tuned }
+                    }
+                }
+            }
+        }
+        threads*.join()
+        assertEquals([], mixed)
+    }
+}
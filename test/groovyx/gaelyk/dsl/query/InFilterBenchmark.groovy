@@ -0,0 +1,104 @@
+package groovyx.gaelyk.dsl.query
+
+import java.util.concurrent.Executors
+import com.google.appengine.api.datastore.BaseDatastoreService
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.api.datastore.QueryResultIterator
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * Compares a query with an <code>IN</code> filter executed one sub-query
+ * after another, as the datastore does, with the @{link QueryMerger}.
+ * <p/>
+ * The service is simulated: a sub-query answers with its entities after
+ * <code>latency</code> milliseconds, counted from the moment its iterator
+ * is obtained. The sub-queries are built in a local App Engine environment
+ * and the 100 values of the largest <code>IN</code> run as 100 sub-queries,
+ * above the default of @{link QueryMerger#getMaxSubQueries() }. Not a part
+ * of @{link AstSuite}, run with
+ * <pre>
+ *   groovy groovyx.gaelyk.dsl.query.InFilterBenchmark [latency]
+ * </pre>
+ *
+ * @author V. Shyshkin
+ */
+class InFilterBenchmark {
+
+    static final int PER_VALUE = 20
+
+    long latency
+    def executor = Executors.newCachedThreadPool()
+
+    def service() {
+        return [prepare: { Query q ->
+                def tag = q.filterPredicates[0].value
+                def list = (1..PER_VALUE).collect {
+                    def e = new Entity(KeyFactory.createKey('Item', tag * 1000 + it))
+                    e.setProperty('tag', tag)
+                    e.setProperty('rank', it * 7 % PER_VALUE)
+                    e
+                }.sort { it.getProperty('rank') }
+                [asQueryResultIterator: { fo ->
+                        def batch = executor.submit({ Thread.sleep(latency); list } as java.util.concurrent.Callable)
+                        def i = null
+                        def entities = { if (i == null) { i = batch.get().iterator() }; i }
+                        [hasNext: { entities().hasNext() }, next: { entities().next() },
+                         getCursor: { null }] as QueryResultIterator
+                    }] as PreparedQuery
+            }] as BaseDatastoreService
+    }
+
+    long serial(QueryDescriptor d, Object[] values) {
+        long start = System.nanoTime()
+        def service = service()
+        def all = []
+        for (Query q : d.createSubQueries(values, false)) {
+            all.addAll(service.prepare(q).asQueryResultIterator(d.createFetchOptions(values)).collect { it })
+        }
+        all.sort { a, b -> QueryMerger.compare(a, b, d.effectiveSorts) }
+        return (System.nanoTime() - start) / 1000000
+    }
+
+    long merged(QueryDescriptor d, Object[] values) {
+        long start = System.nanoTime()
+        QueryExecutor.executeMerged(service(), d, values)
+        return (System.nanoTime() - start) / 1000000
+    }
+
+    static void main(String[] args) {
+        def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+        helper.setUp()
+        int maxSubQueries = QueryMerger.maxSubQueries
+        QueryMerger.maxSubQueries = 100
+        try {
+            run(args)
+        } finally {
+            QueryMerger.maxSubQueries = maxSubQueries
+            helper.tearDown()
+        }
+    }
+
+    static void run(String[] args) {
+        def benchmark = new InFilterBenchmark(latency: args ? args[0] as long : 20)
+        def d = new QueryDescriptor('Item', QueryDescriptor.Result.LIST, false)
+            .filter('tag', Query.FilterOperator.IN)
+            .sort('rank', Query.SortDirection.ASCENDING)
+        def limited = new QueryDescriptor('Item', QueryDescriptor.Result.LIST, false)
+            .filter('tag', Query.FilterOperator.IN)
+            .sort('rank', Query.SortDirection.ASCENDING)
+            .option('limit', 10)
+        println "latency ${benchmark.latency} ms, ${PER_VALUE} entities per value"
+        [5, 30, 100].each { n ->
+            Object[] values = [(1..n).toList()] as Object[]
+            // warm up
+            benchmark.serial(d, values); benchmark.merged(d, values)
+            println "IN of ${n} values: serial ${benchmark.serial(d, values)} ms, " +
+                "merged ${benchmark.merged(d, values)} ms, " +
+                "merged with limit(10) ${benchmark.merged(limited, values)} ms"
+        }
+        benchmark.executor.shutdown()
+    }
+}
@@ -0,0 +1,126 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.Phases
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class InlineCallTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+
+    def compile(String source) {
+        def cu = new CompilationUnit()
+        cu.addSource("Inline.groovy", source)
+        cu.compile(Phases.CLASS_GENERATION)
+        return cu.classes
+    }
+    @Test
+    public void executeQueryIsInlined() {
+        print "executeQueryIsInlined()"
+        def classes = compile('''
+            def minAge = 18
+            datastore.executeQuery { select all; from Person; where age >= minAge }
+            Entitystore.executeQuery { select count; from Person }
+        ''')
+        // no closure classes are generated
+        assertEquals classes*.name.toString(), 1, classes.size()
+    }
+    @Test
+    public void defineQueryKeepsClosure() {
+        print "defineQueryKeepsClosure()"
+        def classes = compile('''
+            datastore.defineQuery { select all; from Person; where age >= minAge }
+        ''')
+        assertEquals classes*.name.toString(), 2, classes.size()
+    }
+    @Test
+    public void unknownNamesAreRejected() {
+        print "unknownNamesAreRejected()"
+        def service = DatastoreServiceFactory.datastoreService
+        [10, 20, 30].each { age ->
+            def e = new Entity('Person')
+            e.setProperty('age', age)
+            service.put(e)
+        }
+        def adults = new GroovyShell(new Binding(datastore: service)).evaluate('''
+            use(groovyx.gaelyk.dsl.query.category.GaelykQueryCategory) {
+                def minAge = 18
+                datastore.defineQuery { select all; from Person; where age >= minAge }
+            }
+        ''')
+        assertTrue adults.names.containsAll(['minAge', 'limit', 'offset'])
+        assertEquals 2, adults.execute().size()
+        assertEquals 1, adults(minAge: 25).size()
+        try {
+            adults.execute(limt: 50)
+            fail()
+        } catch (IllegalArgumentException e) {
+            assertTrue e.message, e.message.contains("'limt'")
+        }
+    }
+    @Test
+    public void reuseIsOptIn() {
+        print "reuseIsOptIn()"
+        def service = DatastoreServiceFactory.datastoreService
+        ['Ann', 'Bob'].each { name ->
+            def e = new Entity('MappedPerson')
+            e.setProperty('firstName', name)
+            service.put(e)
+        }
+        def shell = new GroovyShell(new Binding(datastore: service))
+        def run = { String select ->
+            shell.evaluate('''
+                use(groovyx.gaelyk.dsl.query.category.GaelykQueryCategory) {
+                    def kept = []
+                    datastore.executeQuery {
+                        ''' + select + '''
+                        from pojo as groovyx.gaelyk.dsl.query.MappedPerson
+                    }
+                    kept
+                }
+            ''')
+        }
+        def kept = run('select each: { p -> kept << p }')
+        assertEquals 2, kept.size()
+        assertNotSame kept[0], kept[1]
+        kept = run('select each: { p -> kept << p }, reuse: true')
+        assertSame kept[0], kept[1]
+        try {
+            run('select all, reuse: true')
+            fail()
+        } catch (org.codehaus.groovy.control.MultipleCompilationErrorsException e) {
+            assertTrue e.message, e.message.contains("'reuse' may only be used with 'each'")
+        }
+    }
+    @Test
+    public void parallelIsInlined() {
+        print "parallelIsInlined()"
+        def classes = compile('''
+            def minAge = 18
+            datastore.parallel(deadline: 2) {
+                adults: query { select all; from Person; where age >= minAge }
+                total: query { select count; from Person }
+            }
+        ''')
+        assertEquals classes*.name.toString(), 1, classes.size()
+    }
+}
@@ -0,0 +1,61 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.Phases
+import com.google.appengine.api.datastore.Text
+/**
+ * @author V. Shyshkin
+ */
+class KindMetadataTest {
+    static class BasePerson {
+        String firstName
+    }
+    static class Person extends BasePerson {
+        int age
+        Text bio
+        static int COUNT
+        transient String temp
+    }
+    @Test
+    public void forClass() {
+        print "forClass()"
+        def kind = KindMetadata.forClass(Person)
+        assertEquals "Person", kind.name
+        assertTrue kind.hasProperty("age")
+        assertTrue kind.hasProperty("firstName")
+        assertFalse kind.hasProperty("COUNT")
+        assertFalse kind.hasProperty("temp")
+        assertFalse kind.hasProperty("metaClass")
+        assertEquals "int", kind.getPropertyType("age")
+        assertTrue kind.isUnindexed("bio")
+        assertFalse kind.isUnindexed("age")
+        assertSame kind, KindMetadata.forClass(Person)
+    }
+    @Test
+    public void forClassNode() {
+        print "forClassNode()"
+        def cu = new CompilationUnit()
+        cu.addSource("Kinds.groovy", '''
+            @interface Unindexed {}
+            class Base { String firstName }
+            class Customer extends Base { int age; @Unindexed String notes }
+            class Other extends Unknown { int age }
+        ''')
+        cu.compile(Phases.CONVERSION)
+        def classes = cu.AST.classes
+        def node = classes.find { it.name == "Customer" }
+        def kind = KindMetadata.forClassNode(node, cu.AST)
+        assertTrue kind.complete
+        assertTrue kind.hasProperty("age")
+        assertTrue kind.hasProperty("firstName")
+        assertFalse kind.hasProperty("lastName")
+        assertTrue kind.isUnindexed("notes")
+        assertSame kind, KindMetadata.forClassNode(node, cu.AST)
+
+        kind = KindMetadata.forClassNode(classes.find { it.name == "Other" }, cu.AST)
+        assertFalse kind.complete
+        assertTrue kind.hasProperty("lastName")
+    }
+}
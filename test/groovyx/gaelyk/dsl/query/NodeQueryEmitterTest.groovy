@@ -0,0 +1,142 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+import org.codehaus.groovy.ast.stmt.IfStatement
+import org.codehaus.groovy.ast.expr.CastExpression
+import org.codehaus.groovy.ast.expr.DeclarationExpression
+import org.codehaus.groovy.ast.ClassHelper
+import org.codehaus.groovy.ast.ClassNode
+/**
+ * @author V. Shyshkin
+ */
+class NodeQueryEmitterTest {
+
+    def emit(String clause, String result, Closure body = {}) {
+        return emit((ClassNode) null, clause, result, body)
+    }
+
+    def emit(ClassNode owner, String clause, String result, Closure body = {}) {
+        return emit(new NodeQueryEmitter(owner), clause, result, body)
+    }
+
+    def emit(NodeQueryEmitter e, String clause, String result, Closure body = {}) {
+        e.begin()
+        e.assignConstant(clause, clause)
+        e.assignConstant(result, result)
+        body(e)
+        e.assignConstant("kind", "Person")
+        e.endFrom()
+        e.end()
+        return e.statements
+    }
+    @Test
+    public void selectAll() {
+        print "selectAll()"
+        def statements = emit("select", "all") { e ->
+            e.assignValue("limit", ExpressionProducer.create("10"))
+            e.applyFetchOption("limit")
+        }
+        assertEquals 4, statements.size()
+        assertFalse statements.any { it instanceof IfStatement }
+        def text = AstDumper.dump(statements)
+        assertTrue text, text.contains("asList")
+        assertFalse text, text.contains("countEntities")
+        assertFalse text, text.contains("whereFields")
+    }
+    @Test
+    public void selectSingle() {
+        print "selectSingle()"
+        def text = AstDumper.dump(emit("select", "single"))
+        assertTrue text, text.contains("asSingleEntity")
+        assertFalse text, text.contains("fetchOptions")
+    }
+    @Test
+    public void selectIterate() {
+        print "selectIterate()"
+        def text = AstDumper.dump(emit("select", "iterate") { e ->
+            e.assignValue("chunkSize", ExpressionProducer.create("500"))
+            e.endFetchOptions()
+        })
+        assertTrue text, text.contains("asIterable")
+        assertTrue text, text.contains("chunkSize")
+        assertFalse text, text.contains("asList")
+        text = AstDumper.dump(emit("cursor", "iterate"))
+        assertTrue text, text.contains("asQueryResultIterator")
+        assertFalse text, text.contains("asQueryResultList")
+    }
+    @Test
+    public void cursorWithStartCursor() {
+        print "cursorWithStartCursor()"
+        def statements = emit("cursor", "keys") { e ->
+            e.assignValue("startCursor", ExpressionProducer.create("web"))
+        }
+        def text = AstDumper.dump(statements)
+        assertTrue text, text.contains("setKeysOnly")
+        assertTrue text, text.contains("asQueryResultList")
+        assertEquals 1, statements.count { it instanceof IfStatement }
+    }
+    @Test
+    public void ancestorIsTestedOnce() {
+        print "ancestorIsTestedOnce()"
+        def text = AstDumper.dump(emit("select", "all") { e ->
+            e.assignValue("childOf", ExpressionProducer.create("parent"))
+        })
+        assertEquals text, 1, text.count("instanceof")
+    }
+    @Test
+    public void localsAreTyped() {
+        print "localsAreTyped()"
+        def statements = emit("select", "all")
+        def types = statements.findAll { it.expression instanceof DeclarationExpression }
+                .collect { it.expression.variableExpression.originType.name }
+        assertEquals(["com.google.appengine.api.datastore.FetchOptions",
+                "com.google.appengine.api.datastore.Query"], types)
+        assertTrue statements.last().expression.objectExpression.objectExpression instanceof CastExpression
+    }
+    @Test
+    public void constantPartsAreHoisted() {
+        print "constantPartsAreHoisted()"
+        def owner = new ClassNode("Owner", 1, ClassHelper.OBJECT_TYPE)
+        def statements = emit(owner, "select", "all") { e ->
+            e.assignValue("limit", ExpressionProducer.create("20"))
+            e.applyFetchOption("limit")
+            e.addFilter("status", false, "Query.FilterOperator.EQUAL", ExpressionProducer.create("'ACTIVE'"))
+            e.addFilter("tag", false, "Query.FilterOperator.IN", ExpressionProducer.create("['a', 'b']"))
+        }
+        assertEquals 5, statements.size()
+        assertNotNull owner.getField("hoistedFetchOptions0__123")
+        assertNotNull owner.getField("hoistedList0__123")
+        // the query takes the namespace of the request, so it is created by the closure
+        assertNull owner.getField("hoistedQuery0__123")
+        def text = AstDumper.dump(statements)
+        assertTrue text, text.contains("addFilter")
+        assertFalse text, text.contains("withDefaults")
+    }
+    @Test
+    public void variableFilterIsNotHoisted() {
+        print "variableFilterIsNotHoisted()"
+        def owner = new ClassNode("Owner", 1, ClassHelper.OBJECT_TYPE)
+        def text = AstDumper.dump(emit(owner, "select", "all") { e ->
+            e.addFilter("status", false, "Query.FilterOperator.EQUAL", ExpressionProducer.create("status"))
+        })
+        assertNull owner.getField("hoistedList0__123")
+        assertNotNull owner.getField("hoistedFetchOptions0__123")
+        assertTrue text, text.contains("addFilter")
+    }
+    @Test
+    public void definitionBindsValues() {
+        print "definitionBindsValues()"
+        def e = new NodeQueryEmitter()
+        e.definition = true
+        def text = AstDumper.dump(emit(e, "select", "all") { q ->
+            q.addFilter("age", false, "Query.FilterOperator.GREATER_THAN", ExpressionProducer.create("minAge"))
+        })
+        assertTrue text, text.contains("has(minAge)")
+        // the options the closure doesn't set are bindable
+        assertTrue text, text.contains("get(limit)")
+        assertTrue text, text.contains("get(chunkSize)")
+        assertTrue text, text.contains("getService")
+        assertFalse text, text.contains("startCursor")
+    }
+}
@@ -0,0 +1,66 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.AsyncDatastoreService
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.DatastoreTimeoutException
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.api.datastore.QueryResultIterator
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class ParallelQueriesTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+    def queries = []
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+
+    def service(List entities) {
+        def prepared = [asQueryResultIterator: { fo ->
+                def i = entities.iterator()
+                [hasNext: { i.hasNext() }, next: { i.next() }, getCursor: { null }] as QueryResultIterator
+            }] as PreparedQuery
+        return [prepare: { q -> queries << q; prepared }] as AsyncDatastoreService
+    }
+    @Test
+    public void receiverIsUsed() {
+        print "receiverIsUsed()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.COUNT, false)
+        def results = new ParallelQueries(service([new Entity('Person')]), null)
+            .start('a', d, [] as Object[])
+            .start('b', d, [] as Object[])
+            .results
+        assertEquals(['a', 'b'], results.keySet() as List)
+        assertEquals 1, results.a
+        assertEquals 2, queries.size()
+    }
+    @Test
+    public void deadlineIsShared() {
+        print "deadlineIsShared()"
+        DatastoreServiceFactory.datastoreService.put(new Entity('Person'))
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+        def results = new ParallelQueries(null, 5).start('a', d, [] as Object[]).results
+        assertEquals 1, results.a.size()
+        try {
+            new ParallelQueries(null, 0).start('a', d, [] as Object[])
+            fail()
+        } catch (DatastoreTimeoutException e) {
+            assertTrue e.message, e.message.contains("'a'")
+        }
+    }
+}
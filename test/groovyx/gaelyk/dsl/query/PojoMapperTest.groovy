@@ -0,0 +1,69 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.Key
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+
+class MappedPerson { String firstName; int age; Key key }
+class MappedTagged { String firstName; List tags = [] }
+class MappedTotal { int age; int getDoubleAge() { age * 2 } }
+/**
+ * @author V. Shyshkin
+ */
+class PojoMapperTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+
+    def entity(Map props) {
+        def e = new Entity('Person')
+        props.each { k, v -> e.setProperty(k, v) }
+        return e
+    }
+    @Test
+    public void objectIsReused() {
+        print "objectIsReused()"
+        def mapper = new PojoMapper(MappedPerson, true)
+        assertTrue mapper.reused
+        def first = mapper.map(entity(firstName: 'Ann', age: 30L))
+        assertEquals 30, first.age
+        def second = mapper.map(entity(firstName: 'Bob'))
+        assertSame first, second
+        assertEquals 'Bob', second.firstName
+        // the property the entity doesn't have is reset
+        assertEquals 0, second.age
+    }
+    @Test
+    public void objectIsNotReused() {
+        print "objectIsNotReused()"
+        // a mutable initial value
+        def mapper = new PojoMapper(MappedTagged, true)
+        assertFalse mapper.reused
+        assertNotSame mapper.map(entity(firstName: 'Ann')), mapper.map(entity(firstName: 'Bob'))
+        // a read only property
+        assertFalse new PojoMapper(MappedTotal, true).reused
+    }
+    @Test
+    public void objectIsNotReusedByDefault() {
+        print "objectIsNotReusedByDefault()"
+        assertFalse new PojoMapper(MappedPerson).reused
+        def kept = []
+        def entities = [entity(firstName: 'Ann'), entity(firstName: 'Bob')]
+        assertEquals 2, QueryExecutor.each(entities, MappedPerson, false) { kept << it }
+        assertEquals(['Ann', 'Bob'], kept*.firstName)
+    }
+}
@@ -0,0 +1,111 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.BaseDatastoreService
+import com.google.appengine.api.datastore.DatastoreService
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.api.datastore.QueryResultIterator
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryBudgetTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void end() {
+        QueryBudget.end()
+        helper.tearDown()
+    }
+
+    def service() {
+        return [prepare: { Query q ->
+                def tag = q.filterPredicates[0].value
+                def list = (1..3).collect {
+                    def e = new Entity(KeyFactory.createKey('Person', tag * 10 + it))
+                    e.setProperty('tag', tag)
+                    e
+                }
+                [asQueryResultIterator: { fo ->
+                        def i = list.iterator()
+                        [hasNext: { i.hasNext() }, next: { i.next() }, getCursor: { null }] as QueryResultIterator
+                    }] as PreparedQuery
+            }] as BaseDatastoreService
+    }
+
+    def descriptor(String site, QueryDescriptor.Result result) {
+        return new QueryDescriptor('Person', result, false)
+            .filter('tag', Query.FilterOperator.IN)
+            .site(site)
+    }
+    @Test
+    public void costIsCharged() {
+        print "costIsCharged()"
+        def d = descriptor('QueryBudgetTest:1:1', QueryDescriptor.Result.LIST)
+        d.metrics.reset()
+        def budget = QueryBudget.begin(0, 0, QueryBudget.Action.THROW)
+        assertEquals 6, QueryExecutor.executeMerged(service(), d, [[1, 2]] as Object[]).size()
+        def s = d.metrics.snapshot()
+        assertEquals 2, s.queries
+        assertEquals 8, s.entityReads
+        assertEquals 0, s.smallOps
+        assertEquals 8, budget.reads
+
+        def count = descriptor('QueryBudgetTest:2:1', QueryDescriptor.Result.COUNT)
+        count.metrics.reset()
+        assertEquals 9, QueryExecutor.executeMerged(service(), count, [[1, 2, 3]] as Object[])
+        assertEquals 3, count.metrics.snapshot().entityReads
+        assertEquals 9, count.metrics.snapshot().smallOps
+        assertEquals 11, budget.reads
+        assertEquals 5, budget.queries
+    }
+    @Test
+    public void budgetIsEnforced() {
+        print "budgetIsEnforced()"
+        def d = descriptor('QueryBudgetTest:3:1', QueryDescriptor.Result.LIST)
+        def budget = QueryBudget.begin(5, 0, QueryBudget.Action.LOG)
+        QueryExecutor.executeMerged(service(), d, [[1, 2]] as Object[])
+        assertTrue budget.exceeded
+        QueryBudget.begin(5, 0, QueryBudget.Action.THROW)
+        try {
+            QueryExecutor.executeMerged(service(), d, [[1, 2]] as Object[])
+            fail()
+        } catch (QueryBudget.ExceededException e) {
+            assertTrue e.message.contains('QueryBudgetTest:3:1')
+        }
+        assertNotNull QueryBudget.end()
+        assertNull QueryBudget.current()
+    }
+    @Test
+    public void offsetAndLazyResultsAreCharged() {
+        print "offsetAndLazyResultsAreCharged()"
+        def service = [prepare: { Query q ->
+                [asList: { fo -> (1..3).collect { new Entity('Person') } },
+                 asIterable: { fo -> [] }] as PreparedQuery
+            }] as DatastoreService
+        def budget = QueryBudget.begin(0, 0, QueryBudget.Action.THROW)
+        def list = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .option('offset', 2).option('limit', 3).site('QueryBudgetTest:4:1')
+        assertEquals 3, QueryExecutor.execute(service, list).size()
+        // the query, the 3 entities returned and the 2 skipped
+        assertEquals 6, budget.reads
+        def lazy = new QueryDescriptor('Person', QueryDescriptor.Result.ITERABLE, false)
+            .site('QueryBudgetTest:5:1')
+        QueryExecutor.execute(service, lazy)
+        assertEquals 7, budget.reads
+        assertEquals 2, budget.queries
+    }
+}
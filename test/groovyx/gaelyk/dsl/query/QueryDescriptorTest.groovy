@@ -0,0 +1,109 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.NamespaceManager
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryDescriptorTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+    @Test
+    public void constantOptionsAreBuiltOnce() {
+        print "constantOptionsAreBuiltOnce()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .filter('status', Query.FilterOperator.EQUAL, 'ACTIVE')
+            .option('limit', 20)
+        def values = [] as Object[]
+        assertSame d.createFetchOptions(values), d.createFetchOptions(values)
+        assertNotSame d.createQuery(values), d.createQuery(values)
+        assertEquals 0, d.parameterCount
+    }
+    @Test
+    public void constantQueryRunsInCurrentNamespace() {
+        print "constantQueryRunsInCurrentNamespace()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.COUNT, false)
+            .filter('status', Query.FilterOperator.EQUAL, 'ACTIVE')
+        def datastore = DatastoreServiceFactory.datastoreService
+        ['a': 2, 'b': 5].each { namespace, count ->
+            NamespaceManager.set(namespace)
+            count.times {
+                def e = new Entity('Person')
+                e.setProperty('status', 'ACTIVE')
+                datastore.put(e)
+            }
+        }
+        NamespaceManager.set('a')
+        assertEquals 2, QueryExecutor.execute(datastore, d)
+        NamespaceManager.set('b')
+        assertEquals 5, QueryExecutor.execute(datastore, d)
+    }
+    @Test
+    public void parametersAreTakenInOrder() {
+        print "parametersAreTakenInOrder()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, true)
+            .option('limit')
+            .filter('age', Query.FilterOperator.GREATER_THAN)
+            .sort('age', Query.SortDirection.DESCENDING)
+            .option('chunkSize')
+        assertEquals 3, d.parameterCount
+        def q = d.createQuery([5, 18, 0] as Object[])
+        assertTrue q.keysOnly
+        assertEquals 18, q.filterPredicates[0].value
+        assertNotSame q, d.createQuery([5, 21, 0] as Object[])
+        def fo = d.createFetchOptions([5, 18, 0] as Object[])
+        assertEquals 5, fo.limit
+        assertNull fo.chunkSize
+        assertNull d.createFetchOptions([null, 18, 0] as Object[]).limit
+    }
+    @Test
+    public void describesQuery() {
+        print "describesQuery()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.COUNT, false)
+            .filter('age', Query.FilterOperator.GREATER_THAN)
+            .sort('name', Query.SortDirection.DESCENDING)
+        def text = d.toString()
+        assertTrue text, text.startsWith("SELECT COUNT(*) FROM Person WHERE age")
+        assertTrue text, text.contains("?1")
+        assertTrue text, text.endsWith("ORDER BY name DESC")
+    }
+    @Test
+    public void disjunctsAreSplit() {
+        print "disjunctsAreSplit()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .filter('kind', Query.FilterOperator.EQUAL, 'A')
+            .disjunct(0, 0)
+            .filter('age', Query.FilterOperator.LESS_THAN)
+            .disjunct(0, 1)
+            .filter('status', Query.FilterOperator.IN)
+            .conjunct()
+        assertTrue d.multiQuery
+        def queries = d.createSubQueries([18, ['NEW', 'OLD']] as Object[], false)
+        assertEquals 3, queries.size()
+        assertTrue queries.every { it.filterPredicates[0].propertyName == 'kind' }
+        assertEquals(['age', 'status', 'status'], queries.collect { it.filterPredicates[1].propertyName })
+        assertNull d.effectiveSorts
+        def text = d.toString()
+        assertTrue text, text.contains("A AND (age ")
+        assertTrue text, text.contains("?1 OR status ")
+        assertTrue text, text.endsWith("?2)")
+    }
+}
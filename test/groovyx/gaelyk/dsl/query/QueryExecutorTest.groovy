@@ -0,0 +1,74 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.Blob
+import com.google.appengine.api.datastore.DatastoreService
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryExecutorTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+    def options = []
+    int produced
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+    /**
+     * Answers every query with <code>count</code> entities of 64 KB,
+     * each created when the iterator reaches it.
+     */
+    def service(int count) {
+        def prepared = [asIterable: { fo ->
+                options << fo
+                [iterator: {
+                        [hasNext: { produced < count },
+                         next: {
+                                def e = new Entity('Person')
+                                e.setProperty('data', new Blob(new byte[65536]))
+                                e.setProperty('n', produced++)
+                                e
+                            },
+                         remove: { throw new UnsupportedOperationException() }] as Iterator
+                    }] as Iterable
+            }] as PreparedQuery
+        return [prepare: { q -> prepared }] as DatastoreService
+    }
+    @Test
+    public void selectIterateStreams() {
+        print "selectIterateStreams()"
+        int count = 100000
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.ITERABLE, false)
+            .option('chunkSize', 500)
+        def result = QueryExecutor.execute(service(count), d)
+        assertTrue result instanceof Iterable
+        assertFalse result instanceof List
+        assertEquals 0, produced
+        assertEquals 500, options[0].chunkSize
+        //
+        // 100000 entities of 64 KB would take 6.4 GB: they are only read
+        // one at a time and none is kept by the result
+        //
+        int consumed = 0
+        for (Entity e : result) {
+            assertEquals consumed, e.getProperty('n')
+            consumed++
+            assertEquals consumed, produced
+        }
+        assertEquals count, consumed
+    }
+}
@@ -0,0 +1,111 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import com.google.appengine.api.datastore.AsyncDatastoreService
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.api.datastore.QueryResultIterator
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryFutureTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+    def queries = []
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+    /**
+     * @param latency the milliseconds the first <code>hasNext</code>
+     *   waits, as for the first batch of the datastore
+     */
+    def service(List entities, long latency = 0) {
+        def prepared = [asQueryResultIterator: { fo ->
+                def i = entities.iterator()
+                boolean waited
+                [hasNext: {
+                        if (!waited) {
+                            waited = true
+                            Thread.sleep(latency)
+                        }
+                        i.hasNext()
+                    }, next: { i.next() }, getCursor: { null }] as QueryResultIterator
+            }] as PreparedQuery
+        return [prepare: { q -> queries << q; prepared }] as AsyncDatastoreService
+    }
+
+    def future(QueryDescriptor.Result result, List entities) {
+        def d = new QueryDescriptor('Person', result, false)
+        return QueryExecutor.executeAsync(service(entities), d)
+    }
+    @Test
+    public void queryIsStartedAtOnce() {
+        print "queryIsStartedAtOnce()"
+        def f = future(QueryDescriptor.Result.LIST, [new Entity('Person'), new Entity('Person')])
+        assertEquals 1, queries.size()
+        assertFalse f.done
+        assertEquals 2, f.get().size()
+        assertTrue f.done
+    }
+    @Test
+    public void countAndSingle() {
+        print "countAndSingle()"
+        assertEquals 3, future(QueryDescriptor.Result.COUNT, (1..3).collect { new Entity('Person') }).get()
+        assertTrue queries[0].keysOnly
+        assertNull future(QueryDescriptor.Result.SINGLE, []).get()
+        try {
+            future(QueryDescriptor.Result.SINGLE, [new Entity('Person'), new Entity('Person')]).get()
+            fail()
+        } catch (ExecutionException e) {
+            assertTrue e.cause instanceof PreparedQuery.TooManyResultsException
+        }
+    }
+    @Test
+    public void timeoutIsApplied() {
+        print "timeoutIsApplied()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+        def f = QueryExecutor.executeAsync(service([new Entity('Person'), new Entity('Person')], 200), d)
+        try {
+            f.get(10, TimeUnit.MILLISECONDS)
+            fail()
+        } catch (TimeoutException e) {
+        }
+        assertFalse f.done
+        // the next call goes on with the entities not read yet
+        assertEquals 2, f.get(1, TimeUnit.SECONDS).size()
+        assertTrue f.done
+    }
+    @Test
+    public void futureIsCancelled() {
+        print "futureIsCancelled()"
+        def f = future(QueryDescriptor.Result.LIST, [new Entity('Person')])
+        assertTrue f.cancel(false)
+        assertTrue f.cancelled
+        assertTrue f.done
+        try {
+            f.get()
+            fail()
+        } catch (CancellationException e) {
+        }
+        f = future(QueryDescriptor.Result.COUNT, [new Entity('Person')])
+        assertEquals 1, f.get()
+        assertFalse f.cancel(false)
+        assertFalse f.cancelled
+    }
+}
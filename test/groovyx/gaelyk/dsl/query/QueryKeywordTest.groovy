@@ -0,0 +1,40 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+/**
+ * @author V. Shyshkin
+ */
+class QueryKeywordTest {
+    @Test
+    public void lookup() {
+        print "lookup()"
+        assertEquals QueryKeyword.SELECT, QueryKeyword.lookup("Select")
+        assertEquals QueryKeyword.OPTIONS, QueryKeyword.lookup("fetchOptions")
+        assertEquals QueryKeyword.CHILD_OF, QueryKeyword.lookup("asChildOf")
+        assertEquals QueryKeyword.DESC, QueryKeyword.lookup("DESC")
+        assertNull QueryKeyword.lookup("SELECT")
+        assertNull QueryKeyword.lookup(null)
+        assertEquals "limit", QueryKeyword.lookup("Limit").name
+    }
+    @Test
+    public void clause() {
+        print "clause()"
+        assertEquals QueryKeyword.ORDER_BY, QueryKeyword.clause("OrderBy")
+        assertNull QueryKeyword.clause("limit")
+        assertNull QueryKeyword.clause("datastore")
+    }
+    @Test
+    public void accepts() {
+        print "accepts()"
+        assertTrue QueryKeyword.SELECT.accepts(QueryKeyword.OFFSET)
+        assertTrue QueryKeyword.SELECT.accepts(QueryKeyword.SINGLE)
+        assertFalse QueryKeyword.CURSOR.accepts(QueryKeyword.SINGLE)
+        assertTrue QueryKeyword.CURSOR.accepts(QueryKeyword.ITERATE)
+        assertTrue QueryKeyword.CURSOR.accepts(QueryKeyword.PAGES)
+        assertFalse QueryKeyword.SELECT.accepts(QueryKeyword.PREFETCH_PAGES)
+        assertFalse QueryKeyword.SELECT.accepts(QueryKeyword.CHUNK_SIZE)
+        assertTrue QueryKeyword.OPTIONS.accepts(QueryKeyword.PREFETCH_SIZE)
+        assertFalse QueryKeyword.ORDER_BY.accepts(null)
+    }
+}
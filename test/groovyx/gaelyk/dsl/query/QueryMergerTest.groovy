@@ -0,0 +1,156 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.BaseDatastoreService
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.api.datastore.QueryResultIterator
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryMergerTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+    def entities = []
+    def queries = []
+    int fetched
+    int started
+    int received
+    int inFlight
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+        QueryMerger.setMaxSubQueries(30)
+        QueryMerger.setMaxInFlight(10)
+    }
+
+    def person(long id, String tag, int age) {
+        def e = new Entity(KeyFactory.createKey('Person', id))
+        e.setProperty('tag', tag)
+        e.setProperty('age', age)
+        entities << e
+        return e
+    }
+    /**
+     * Answers an equality query on 'tag' in the order of 'age' and counts
+     * the sub-queries started and not yet received.
+     */
+    def service() {
+        return [prepare: { Query q ->
+                queries << q
+                def tag = q.filterPredicates[0].value
+                def list = entities.findAll { it.getProperty('tag') == tag }.sort { it.getProperty('age') }
+                [asQueryResultIterator: { fo ->
+                        def i = list.iterator()
+                        boolean first = true
+                        started++
+                        inFlight = Math.max(inFlight, started - received)
+                        [hasNext: { if (first) { first = false; received++ }; i.hasNext() },
+                         next: { fetched++; i.next() }, getCursor: { null }] as QueryResultIterator
+                    }] as PreparedQuery
+            }] as BaseDatastoreService
+    }
+
+    def descriptor(QueryDescriptor.Result result) {
+        return new QueryDescriptor('Person', result, false)
+            .filter('tag', Query.FilterOperator.IN)
+            .sort('age', Query.SortDirection.ASCENDING)
+    }
+    @Test
+    public void entitiesAreMergedInOrder() {
+        print "entitiesAreMergedInOrder()"
+        person(1, 'a', 30); person(2, 'b', 20); person(3, 'c', 40); person(4, 'a', 10); person(5, 'd', 5)
+        def d = descriptor(QueryDescriptor.Result.LIST)
+        assertTrue QueryMerger.canMerge(d)
+        def list = QueryExecutor.executeMerged(service(), d, [['a', 'b', 'c', 'a']] as Object[])
+        assertEquals 3, queries.size()
+        assertEquals([10, 20, 30, 40], list*.getProperty('age'))
+    }
+    @Test
+    public void keyIsReturnedOnce() {
+        print "keyIsReturnedOnce()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.COUNT, false)
+            .filter('tag', Query.FilterOperator.IN)
+        person(1, 'a', 30)
+        def same = new Entity(entities[0].key)
+        same.setProperty('tag', 'b')
+        entities << same
+        assertEquals 1, QueryExecutor.executeMerged(service(), d, [['a', 'b']] as Object[])
+        assertTrue queries.every { it.keysOnly }
+    }
+    @Test
+    public void limitStopsTheMerge() {
+        print "limitStopsTheMerge()"
+        (1..10).each { person(it, it % 2 ? 'a' : 'b', it) }
+        def d = descriptor(QueryDescriptor.Result.LIST).option('limit', 2).option('offset', 1)
+        def list = QueryExecutor.executeMerged(service(), d, [['a', 'b']] as Object[])
+        assertEquals([2, 3], list*.getProperty('age'))
+        assertTrue fetched <= 5
+    }
+    @Test
+    public void notEqualIsSplit() {
+        print "notEqualIsSplit()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .filter('age', Query.FilterOperator.NOT_EQUAL, 30)
+        def subQueries = d.createSubQueries([] as Object[], false)
+        assertEquals([Query.FilterOperator.LESS_THAN, Query.FilterOperator.GREATER_THAN],
+            subQueries*.filterPredicates.flatten()*.operator)
+        assertFalse QueryMerger.canMerge(new QueryDescriptor('Person', QueryDescriptor.Result.PAGE, false)
+            .filter('age', Query.FilterOperator.NOT_EQUAL, 30))
+    }
+    @Test
+    public void subQueriesInFlightAreBounded() {
+        print "subQueriesInFlightAreBounded()"
+        QueryMerger.setMaxInFlight(2)
+        ('a'..'e').eachWithIndex { tag, i -> person(i + 1, tag, 50 - i) }
+        def merger = QueryMerger.open(service(), descriptor(QueryDescriptor.Result.LIST),
+            [['a', 'b', 'c', 'd', 'e']] as Object[])
+        // open starts the first sub-queries and doesn't wait for them
+        assertEquals 2, started
+        assertEquals 0, received
+        def list = merger.collect { it }
+        assertEquals 5, started
+        assertEquals 2, inFlight
+        assertEquals([46, 47, 48, 49, 50], list*.getProperty('age'))
+    }
+    @Test
+    public void fanOutIsLimited() {
+        print "fanOutIsLimited()"
+        QueryMerger.setMaxSubQueries(2)
+        def d = descriptor(QueryDescriptor.Result.LIST)
+        assertEquals 0, QueryExecutor.executeMerged(service(), d, [['a', 'b']] as Object[]).size()
+        try {
+            QueryExecutor.executeMerged(service(), d, [['a', 'b', 'c']] as Object[])
+            fail()
+        } catch (IllegalArgumentException e) {
+            assertTrue e.message, e.message.contains('3 sub-queries')
+            assertTrue e.message, e.message.contains(QueryMerger.MAX_SUB_QUERIES_PROPERTY)
+        }
+        assertEquals 2, started
+    }
+    @Test
+    public void valuesAreComparedInTheOrderOfTheDatastore() {
+        print "valuesAreComparedInTheOrderOfTheDatastore()"
+        def ordered = [null, -5L, new Date(0), 3, 100L, false, true, '', 'a', -1.5d, 0.5f, 2.5d,
+            KeyFactory.createKey('Person', 1)]
+        for (int i = 0; i < ordered.size(); i++) {
+            for (int j = 0; j < ordered.size(); j++) {
+                assertEquals("${ordered[i]} and ${ordered[j]}", Integer.signum(i <=> j),
+                    Integer.signum(QueryMerger.compareValues(ordered[i], ordered[j])))
+            }
+        }
+    }
+}
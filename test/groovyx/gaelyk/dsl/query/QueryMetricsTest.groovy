@@ -0,0 +1,39 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+/**
+ * @author V. Shyshkin
+ */
+class QueryMetricsTest {
+
+    @Test
+    public void bucketsKeepThePrecision() {
+        print "bucketsKeepThePrecision()"
+        def previous = -1
+        [0, 1, 3, 4, 7, 8, 100, 1000, 123456, 10000000].each { micros ->
+            int b = QueryMetrics.bucket(micros)
+            assertTrue b >= previous
+            previous = b
+            assertEquals((double) micros, QueryMetrics.middle(b), Math.max(1d, micros * 0.125d))
+        }
+        assertEquals QueryMetrics.BUCKETS - 1, QueryMetrics.bucket(Long.MAX_VALUE)
+    }
+    @Test
+    public void percentiles() {
+        print "percentiles()"
+        def site = QueryMetrics.site('QueryMetricsTest:1:1')
+        site.reset()
+        94.times { site.success(1000000, 2) }
+        5.times { site.success(100000000, 0) }
+        site.failure(1000000000)
+        def s = site.snapshot()
+        assertEquals 100, s.invocations
+        assertEquals 1, s.errors
+        assertEquals 188, s.results
+        assertEquals 1, s.p50Millis, 0.125
+        assertEquals 100, s.p95Millis, 12.5
+        assertEquals 100, s.p99Millis, 12.5
+        assertTrue QueryMetrics.snapshot()*.site.contains('QueryMetricsTest:1:1')
+    }
+}
@@ -0,0 +1,93 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.AsyncDatastoreService
+import com.google.appengine.api.datastore.DatastoreService
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.FetchOptions
+import com.google.appengine.api.datastore.PreparedQuery
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.api.datastore.QueryResultIterator
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryPagesTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+    def requests = []
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+
+    /**
+     * Serves the entities in the order of the requests.
+     */
+    def service(int total) {
+        int position = 0
+        def prepared = [asQueryResultIterator: { FetchOptions fo ->
+                requests << fo
+                def list = (position..<Math.min(total, position + fo.limit)).collect { new Entity('Item') }
+                position += list.size()
+                def i = list.iterator()
+                [hasNext: { i.hasNext() }, next: { i.next() }, getCursor: { null }] as QueryResultIterator
+            }] as PreparedQuery
+        return [prepare: { q -> prepared }] as AsyncDatastoreService
+    }
+    @Test
+    public void nextPagesAreRequestedAhead() {
+        print "nextPagesAreRequestedAhead()"
+        def pages = new QueryPages(service(7), new Query('Item'), FetchOptions.Builder.withLimit(3), null)
+        assertEquals 1, requests.size()
+        assertEquals 3, pages.next().size()
+        // the second page is requested before the caller takes it
+        assertEquals 2, requests.size()
+        assertEquals 3, pages.next().size()
+        assertEquals 1, pages.next().size()
+        assertFalse pages.hasNext()
+        assertEquals 3, requests.size()
+    }
+    @Test
+    public void severalPagesAreRequestedAtOnce() {
+        print "severalPagesAreRequestedAtOnce()"
+        def pages = new QueryPages(service(6), new Query('Item'), FetchOptions.Builder.withLimit(2), 3)
+        assertEquals 6, requests[0].limit
+        assertEquals([2, 2, 2], pages.collect { it.size() })
+        // the last request finds no more entities
+        assertEquals 2, requests.size()
+    }
+    @Test
+    public void limitIsRequired() {
+        print "limitIsRequired()"
+        try {
+            new QueryPages(service(1), new Query('Item'), FetchOptions.Builder.withDefaults(), null)
+            fail()
+        } catch (IllegalArgumentException e) {
+            assertTrue e.message.contains("limit")
+        }
+    }
+    @Test
+    public void pagesPrepareTheQueryOnce() {
+        print "pagesPrepareTheQueryOnce()"
+        3.times { DatastoreServiceFactory.datastoreService.put(new Entity('Item')) }
+        def prepared = []
+        def service = [prepare: { q -> prepared << q; null }] as DatastoreService
+        def d = new QueryDescriptor('Item', QueryDescriptor.Result.PAGES, false).option('limit', 2)
+        def pages = QueryExecutor.execute(service, d)
+        assertEquals([2, 1], pages.collect { it.size() })
+        // the pages are read with the asynchronous service only
+        assertEquals([], prepared)
+    }
+}
@@ -0,0 +1,130 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class QueryPlanTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+    @Test
+    public void builtInIndexes() {
+        print "builtInIndexes()"
+        assertNull QueryPlan.index(new Query('Person'))
+        assertNull QueryPlan.index(new Query('Person').addFilter('a', Query.FilterOperator.EQUAL, 1)
+            .addFilter('b', Query.FilterOperator.EQUAL, 2))
+        assertNull QueryPlan.index(new Query('Person').addFilter('a', Query.FilterOperator.GREATER_THAN, 1)
+            .addSort('a', Query.SortDirection.DESCENDING))
+        assertNull QueryPlan.index(new Query('Person').addFilter('a', Query.FilterOperator.EQUAL, 1).addSort('a'))
+    }
+    @Test
+    public void compositeIndexes() {
+        print "compositeIndexes()"
+        assertEquals '<datastore-index kind="Person" ancestor="false"><property name="a" direction="asc"/>' +
+            '<property name="b" direction="desc"/></datastore-index>',
+            QueryPlan.index(new Query('Person').addFilter('a', Query.FilterOperator.EQUAL, 1)
+                .addSort('b', Query.SortDirection.DESCENDING))
+        assertEquals '<datastore-index kind="Person" ancestor="true"><property name="b" direction="asc"/></datastore-index>',
+            QueryPlan.index(new Query('Person', KeyFactory.createKey('Group', 1))
+                .addFilter('b', Query.FilterOperator.LESS_THAN, 1))
+        assertEquals '<datastore-index kind="Person" ancestor="false"><property name="a" direction="asc"/>' +
+            '<property name="b" direction="asc"/></datastore-index>',
+            QueryPlan.index(new Query('Person').addSort('a').addSort('b'))
+    }
+    @Test
+    public void plan() {
+        print "plan()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .filter('tag', Query.FilterOperator.IN)
+            .filter('age', Query.FilterOperator.GREATER_THAN_OR_EQUAL)
+            .sort('age', Query.SortDirection.ASCENDING)
+            .option('limit', 10)
+        def plan = QueryExecutor.explain(d, 'code', [['a', 'b', 'c'], 18] as Object[])
+        assertEquals 3, plan.subQueries
+        assertEquals 'age', plan.inequalityProperty
+        assertEquals 2, plan.filters.size()
+        assertTrue plan.filters[1].endsWith('?2 = 18')
+        assertEquals(['age'], plan.sorts)
+        assertEquals '{limit=10}', plan.fetchOptions
+        assertTrue plan.compositeIndexRequired
+        assertEquals 1, plan.indexes.size()
+        assertTrue plan.toString().startsWith('code:\n  code\n')
+    }
+    @Test
+    public void errorIsKept() {
+        print "errorIsKept()"
+        def d = new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .filter('tag', Query.FilterOperator.IN)
+        // the value of the IN parameter is missing
+        def plan = QueryExecutor.explain(d, 'code', [] as Object[])
+        assertNotNull plan.error
+        assertEquals 0, plan.subQueries
+        assertEquals([], plan.indexes)
+        assertTrue plan.toString().contains('error: ' + plan.error)
+        assertNull QueryExecutor.explain(d, 'code', [['a']] as Object[]).error
+    }
+    def explain(String backend, boolean staticMode, String where) {
+        System.setProperty(Helper.BACKEND_PROPERTY, backend)
+        System.setProperty(Helper.STATIC_PROPERTY, String.valueOf(staticMode))
+        try {
+            return new GroovyShell(new Binding(datastore: DatastoreServiceFactory.datastoreService)).evaluate('''
+                use(groovyx.gaelyk.dsl.query.category.GaelykQueryCategory) {
+                    def minAge = 18
+                    datastore.transformedText { select all; from Person; ''' + where + ''' }
+                }
+            ''')
+        } finally {
+            System.clearProperty(Helper.BACKEND_PROPERTY)
+            System.clearProperty(Helper.STATIC_PROPERTY)
+        }
+    }
+    @Test
+    public void codeOfTheBackEnd() {
+        print "codeOfTheBackEnd()"
+        def where = "where age >= minAge"
+        def plan = explain(Helper.EXECUTOR_BACKEND, false, where)
+        assertTrue plan.code, plan.code.startsWith('groovyx.gaelyk.dsl.query.QueryExecutor.execute(')
+        assertTrue plan.code, plan.code.contains('hoistedDescriptor0__123 = ')
+        plan = explain(Helper.NODE_BACKEND, false, where)
+        assertFalse plan.code, plan.code.contains('QueryExecutor.execute(')
+        assertTrue plan.code, plan.code.contains('query__123.addFilter(age, ')
+        // the plan is still described by the descriptor
+        assertEquals 1, plan.filters.size()
+        plan = explain(Helper.STRING_BACKEND, false, where)
+        assertFalse plan.code, plan.code.contains('QueryExecutor.execute(')
+        assertTrue plan.code, plan.code.contains('addFilter')
+        plan = explain(Helper.EXECUTOR_BACKEND, true, where)
+        assertTrue plan.code, plan.code.contains('.staticQuery0__123(')
+        assertTrue plan.code, plan.code.contains('static Object staticQuery0__123(DatastoreService service__123')
+        assertEquals 1, plan.filters.size()
+    }
+    @Test
+    public void codeOfTheBackEndWhichCannotRunTheQuery() {
+        print "codeOfTheBackEndWhichCannotRunTheQuery()"
+        def where = "where (age >= minAge) || (tag == 'a')"
+        def plan = explain(Helper.EXECUTOR_BACKEND, false, where)
+        assertTrue plan.code, plan.code.startsWith('groovyx.gaelyk.dsl.query.QueryExecutor.execute(')
+        assertEquals 2, plan.subQueries
+        plan = explain(Helper.NODE_BACKEND, false, where)
+        assertTrue plan.code, plan.code.startsWith('executeQuery cannot run the query: ')
+        assertEquals 2, plan.subQueries
+    }
+}
@@ -0,0 +1,40 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+/**
+ * @author V. Shyshkin
+ */
+class QuerySourceFilterTest {
+    @Test
+    public void containsReceiverName() {
+        print "containsReceiverName()"
+        assertTrue QuerySourceFilter.containsReceiverName(new StringReader("def r = datastore.executeQuery {"))
+        assertTrue QuerySourceFilter.containsReceiverName(new StringReader("Entitystore"))
+        assertFalse QuerySourceFilter.containsReceiverName(new StringReader("def datastoreService = 1"))
+        assertFalse QuerySourceFilter.containsReceiverName(new StringReader("myEntitystore.executeQuery {}"))
+        assertFalse QuerySourceFilter.containsReceiverName(new StringReader(""))
+    }
+    @Test
+    public void unitsCounted() {
+        print "unitsCounted()"
+        TransformStatistics.reset()
+        new GroovyShell().parse("println 'no queries'")
+        assertEquals 1, TransformStatistics.unitsSkipped
+        assertEquals 0, TransformStatistics.unitsVisited
+
+        new GroovyShell().parse("def datastore = null; println datastore")
+        assertEquals 1, TransformStatistics.unitsVisited
+        assertEquals 0, TransformStatistics.unitsTransformed
+    }
+    @Test
+    public void phasesTimed() {
+        print "phasesTimed()"
+        TransformStatistics.reset()
+        new GroovyShell().parse("def datastore = null; datastore.executeQuery { select all; from Person; where age > 18 }")
+        assertEquals 1, TransformStatistics.closuresTransformed
+        assertTrue TransformStatistics.getNanos(TransformStatistics.Phase.VISIT) > 0
+        assertTrue TransformStatistics.getNanos(TransformStatistics.Phase.GENERATE) > 0
+        assertTrue TransformStatistics.summary().contains("generate=")
+    }
+}
@@ -0,0 +1,53 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.Test
+import static org.junit.Assert.*
+/**
+ * @author V. Shyshkin
+ */
+class QueryTemplatesTest {
+    @Test
+    public void templatesMatchFragments() {
+        print "templatesMatchFragments()"
+        for (id in QueryTemplates.INIT..QueryTemplates.FINAL) {
+            def expResult = AstDumper.dump(QueryTemplates.parse(QueryTemplates.getSource(id)))
+            def result = AstDumper.dump(QueryTemplates.get(id))
+            assertEquals expResult, result
+        }
+    }
+    @Test
+    public void templatesAreCopied() {
+        print "templatesAreCopied()"
+        def first = QueryTemplates.get(QueryTemplates.FINAL)
+        def second = QueryTemplates.get(QueryTemplates.FINAL)
+        assertEquals first.size(), second.size()
+        first.eachWithIndex { s, i ->
+            assertNotSame s, second[i]
+            if (s instanceof org.codehaus.groovy.ast.stmt.ExpressionStatement) {
+                assertNotSame s.expression, second[i].expression
+            }
+        }
+    }
+    @Test
+    public void templateOutputMatchesStringOutput() {
+        print "templateOutputMatchesStringOutput()"
+        def string = new StringQueryEmitter(false)
+        def template = new StringQueryEmitter(true)
+        [string, template].each { e ->
+            e.begin()
+            e.assignConstant("select", "select")
+            e.assignConstant("all", "all")
+            e.assignValue("limit", ExpressionProducer.create("10"))
+            e.applyFetchOption("limit")
+            e.assignConstant("kind", "Person")
+            e.endFrom()
+            e.addFilter("age", false, "Query.FilterOperator.GREATER_THAN", ExpressionProducer.create("minAge"))
+            e.addSort("age", false, "Query.SortDirection.DESCENDING")
+            e.assignValue("chunkSize", ExpressionProducer.create("5"))
+            e.endFetchOptions()
+            e.end()
+        }
+        assertEquals string.toString(), template.toString()
+        assertEquals AstDumper.dump(string.statements), AstDumper.dump(template.statements)
+    }
+}
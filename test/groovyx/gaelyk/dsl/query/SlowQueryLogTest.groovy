@@ -0,0 +1,100 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.FetchOptions
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class SlowQueryLogTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    def descriptor() {
+        return new QueryDescriptor('Person', QueryDescriptor.Result.LIST, false)
+            .filter('age', Query.FilterOperator.GREATER_THAN)
+            .sort('age', Query.SortDirection.ASCENDING)
+            .option('limit')
+            .site('SlowQueryLogTest:1:1')
+    }
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void off() {
+        SlowQueryLog.thresholdMillis = -1
+        SlowQueryLog.sampleRate = 0
+        SlowQueryLog.clear()
+        FetchSizeTuner.enabled = false
+        FetchSizeTuner.reset()
+        helper.tearDown()
+    }
+    @Test
+    public void slowRunsAreLogged() {
+        print "slowRunsAreLogged()"
+        SlowQueryLog.clear()
+        def d = descriptor()
+        SlowQueryLog.record(d, [18, 10] as Object[], 50000000, null)
+        assertTrue SlowQueryLog.entries().isEmpty()
+        SlowQueryLog.thresholdMillis = 20
+        SlowQueryLog.record(d, [18, 10] as Object[], 10000000, null)
+        SlowQueryLog.record(d, [18, 10] as Object[], 50000000, null)
+        def entries = SlowQueryLog.entries()
+        assertEquals 1, entries.size()
+        def e = entries[0]
+        assertEquals 'SlowQueryLogTest:1:1', e.site
+        assertEquals 'Person', e.kind
+        assertEquals 'LIST', e.result
+        assertEquals 50, e.elapsedMillis, 0.001
+        assertEquals '[?1=18, ?2=10]', e.parameters
+        assertEquals '{limit=10}', e.fetchOptions
+        assertTrue e.plan.contains('ORDER BY age')
+        def out = new StringWriter()
+        SlowQueryLog.dump(out)
+        assertEquals e.toString() + '\n', out.toString()
+    }
+    @Test
+    public void bufferKeepsTheLastEntries() {
+        print "bufferKeepsTheLastEntries()"
+        SlowQueryLog.clear()
+        SlowQueryLog.sampleRate = 1
+        def d = descriptor()
+        (SlowQueryLog.CAPACITY + 10).times {
+            SlowQueryLog.record(d, [it, 1] as Object[], 1000, null)
+        }
+        def entries = SlowQueryLog.entries()
+        assertEquals SlowQueryLog.CAPACITY, entries.size()
+        assertTrue entries[0].parameters.startsWith('[?1=10,')
+        assertTrue entries[-1].parameters.startsWith("[?1=${SlowQueryLog.CAPACITY + 9},")
+    }
+    @Test
+    public void appliedOptionsAreLogged() {
+        print "appliedOptionsAreLogged()"
+        SlowQueryLog.sampleRate = 1
+        def d = descriptor()
+        SlowQueryLog.record(d, [18, 10] as Object[], FetchOptions.Builder.withLimit(10).chunkSize(20), 1000, null)
+        assertEquals '{limit=10, chunkSize=20}', SlowQueryLog.entries()[-1].fetchOptions
+
+        def service = DatastoreServiceFactory.datastoreService
+        [10, 20, 30].each { age ->
+            def e = new Entity('Person')
+            e.setProperty('age', age)
+            service.put(e)
+        }
+        FetchSizeTuner.enabled = true
+        SlowQueryLog.clear()
+        assertEquals 2, QueryExecutor.execute(service, d, [15, 10] as Object[]).size()
+        def tuned = FetchSizeTuner.tune(d, d.createFetchOptions([15, 10] as Object[]))
+        assertEquals SlowQueryLog.fetchOptions(tuned), SlowQueryLog.entries()[-1].fetchOptions
+        assertFalse SlowQueryLog.entries()[-1].fetchOptions == '{limit=10}'
+    }
+}
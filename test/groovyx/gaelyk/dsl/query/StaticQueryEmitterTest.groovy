@@ -0,0 +1,114 @@
+package groovyx.gaelyk.dsl.query
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import static org.junit.Assert.*
+import org.codehaus.groovy.ast.ClassHelper
+import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.ast.stmt.ReturnStatement
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+/**
+ * @author V. Shyshkin
+ */
+class StaticQueryEmitterTest {
+
+    def helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig())
+
+    @Before
+    public void setUp() {
+        helper.setUp()
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown()
+    }
+
+    def emit(ClassNode owner, Closure body = {}) {
+        def e = new StaticQueryEmitter(owner)
+        e.begin()
+        e.assignConstant("select", "select")
+        e.assignConstant("all", "all")
+        body(e)
+        e.assignConstant("kind", "Person")
+        e.endFrom()
+        e.end()
+        return e.statements
+    }
+
+    ClassNode owner() {
+        return new ClassNode("Owner", 1, ClassHelper.OBJECT_TYPE)
+    }
+    @Test
+    public void methodIsAdded() {
+        print "methodIsAdded()"
+        def owner = owner()
+        def statements = emit(owner) { e ->
+            e.assignValue("limit", ExpressionProducer.create("10"))
+            e.applyFetchOption("limit")
+            e.addFilter("age", false, "Query.FilterOperator.GREATER_THAN", ExpressionProducer.create("minAge"))
+        }
+        assertEquals 1, statements.size()
+        def call = statements[0].expression
+        assertEquals "staticQuery0__123", call.method.value
+        // the service and minAge, the constant limit is not passed
+        assertEquals 2, call.arguments.expressions.size()
+
+        def method = owner.getMethods("staticQuery0__123")[0]
+        assertTrue method.isStatic()
+        assertEquals 2, method.parameters.length
+        assertEquals "groovy.transform.CompileStatic", method.annotations[0].classNode.name
+        assertTrue method.code.statements.last() instanceof ReturnStatement
+    }
+    @Test
+    public void namesAreUnique() {
+        print "namesAreUnique()"
+        def owner = owner()
+        emit(owner)
+        def statements = emit(owner)
+        assertEquals "staticQuery1__123", statements[0].expression.method.value
+    }
+    @Test
+    public void queryIsCompiledStatically() {
+        print "queryIsCompiledStatically()"
+        def service = DatastoreServiceFactory.datastoreService
+        [10, 20, 30].each { age ->
+            def e = new Entity('Person')
+            e.setProperty('age', age)
+            e.setProperty('tag', age == 20 ? 'b' : 'a')
+            service.put(e)
+        }
+        System.setProperty(Helper.STATIC_PROPERTY, 'true')
+        def script
+        try {
+            script = new GroovyShell().parse('''
+                import groovyx.gaelyk.dsl.query.Entitystore
+                def minAge = 15
+                Entitystore.executeQuery {
+                    select all, limit(10)
+                    from Person
+                    where age >= minAge
+                    where tag in ['a', 'c']
+                    orderBy age
+                }
+            ''')
+        } finally {
+            System.clearProperty(Helper.STATIC_PROPERTY)
+        }
+        def method = script.class.declaredMethods.find { it.name == 'staticQuery0__123' }
+        assertNotNull method
+        def result = script.run()
+        assertEquals([30L], result*.getProperty('age')*.longValue())
+    }
+    @Test
+    public void compileStaticIsRequired() {
+        print "compileStaticIsRequired()"
+        assertTrue StaticQueryEmitter.isSupported(getClass().classLoader)
+        // only the classes of the JDK
+        assertFalse StaticQueryEmitter.isSupported(new URLClassLoader(new URL[0], (ClassLoader) null))
+    }
+}